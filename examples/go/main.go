@@ -13,6 +13,7 @@ import (
 	"log"
 	"os"
 	"path/filepath"
+	"strconv"
 	"strings"
 	"sync"
 	"time"
@@ -21,6 +22,7 @@ import (
 
 	"google.golang.org/grpc"
 	"google.golang.org/grpc/credentials/insecure"
+	"google.golang.org/grpc/metadata"
 )
 
 var (
@@ -73,6 +75,9 @@ func (m *Message) send() {
 	ctx, cancel := context.WithTimeout(context.Background(), *timeout)
 	defer cancel()
 
+	// lets the server reject an unattended request before reading the file
+	ctx = metadata.AppendToOutgoingContext(ctx, "fea-attended", strconv.FormatBool(*attended))
+
 	reply, err := m.client.Send(ctx, &proto.SignRequest{
 		Name:      *name,
 		File:      m.file,
@@ -0,0 +1,158 @@
+package cl.uchile.fea.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.itextpdf.text.Rectangle;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.PdfSignature;
+import com.itextpdf.text.pdf.PdfSignatureAppearance;
+import com.itextpdf.text.pdf.PdfSignatureAppearance.RenderingMode;
+import com.itextpdf.text.pdf.PdfStamper;
+import com.itextpdf.text.pdf.PdfString;
+
+import cl.uchile.fea.segpres.AppearanceCache;
+import cl.uchile.fea.segpres.ImageCache;
+import cl.uchile.fea.segpres.SegpresService;
+
+/**
+ * The visible signature appearance: rendered by iText on every document against drawn from the
+ * appearance cache, with the invisible signature as the baseline. Each invocation signs a one page
+ * document with empty contents.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class AppearanceBenchmark {
+
+    /**
+     * The signature image size (in pixels).
+     */
+    @Param({ "400x160", "1600x640" })
+    public String size;
+
+    /**
+     * The signature rectangle.
+     */
+    private final Rectangle rectangle = new Rectangle(100, 100, 300, 180);
+
+    /**
+     * The document.
+     */
+    private byte[] document;
+    /**
+     * The signature image.
+     */
+    private byte[] image;
+    /**
+     * The signature image cache.
+     */
+    private ImageCache imageCache;
+    /**
+     * The appearance cache.
+     */
+    private AppearanceCache appearanceCache;
+
+    /**
+     * Creates the document, the image and the caches.
+     * @throws Exception on error
+     */
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        String[] dimensions = size.split("x");
+
+        document = SamplePdf.create(1);
+        image = SamplePdf.createImage(Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]));
+
+        imageCache = new ImageCache(67108864, 0);
+        appearanceCache = new AppearanceCache(imageCache, 67108864);
+    }
+
+    /**
+     * Signs without appearance.
+     * @return The signed document
+     * @throws Exception on error
+     */
+    @Benchmark
+    public byte[] invisible() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        PdfSignatureAppearance appearance = PdfStamper.createSignature(new PdfReader(document), baos, '\0').getSignatureAppearance();
+
+        return close(appearance, baos);
+    }
+
+    /**
+     * Signs with the appearance rendered by iText (the parsed image comes from the image cache).
+     * @return The signed document
+     * @throws Exception on error
+     */
+    @Benchmark
+    public byte[] rendered() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        PdfSignatureAppearance appearance = PdfStamper.createSignature(new PdfReader(document), baos, '\0').getSignatureAppearance();
+        appearance.setSignatureGraphic(imageCache.get(image, rectangle.getWidth(), rectangle.getHeight()));
+        appearance.setVisibleSignature(rectangle, 1, null);
+
+        return close(appearance, baos);
+    }
+
+    /**
+     * Signs with the appearance drawn from the appearance cache.
+     * @return The signed document
+     * @throws Exception on error
+     */
+    @Benchmark
+    public byte[] cached() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        PdfSignatureAppearance appearance = PdfStamper.createSignature(new PdfReader(document), baos, '\0').getSignatureAppearance();
+        appearance.setVisibleSignature(rectangle, 1, null);
+        appearanceCache.get(image, rectangle.getWidth(), rectangle.getHeight()).apply(appearance);
+
+        return close(appearance, baos);
+    }
+
+    /**
+     * Closes the appearance with empty contents, as SegpresService prepares it.
+     * @param appearance The PDF signature appearance
+     * @param baos The output
+     * @return The signed document
+     * @throws Exception on error
+     */
+    private static byte[] close(PdfSignatureAppearance appearance, ByteArrayOutputStream baos) throws Exception {
+        appearance.setRenderingMode(RenderingMode.GRAPHIC);
+        appearance.setLayer2Text(" ");
+        appearance.setCryptoDictionary(new PdfSignature(PdfName.ADOBE_PPKLITE, new PdfName("adbe.pkcs7.detached")));
+
+        HashMap<PdfName, Integer> exclusionSizes = new HashMap<>();
+        exclusionSizes.put(PdfName.CONTENTS, SegpresService.CONTENTS * 2 + 2); // in hexadecimal
+        appearance.preClose(exclusionSizes);
+
+        PdfDictionary dictionary = new PdfDictionary();
+        dictionary.put(PdfName.CONTENTS, new PdfString());
+        appearance.close(dictionary);
+
+        return baos.toByteArray();
+    }
+}
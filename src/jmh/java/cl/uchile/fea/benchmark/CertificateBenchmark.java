@@ -0,0 +1,85 @@
+package cl.uchile.fea.benchmark;
+
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cl.uchile.fea.segpres.CertificateProvider;
+
+/**
+ * The placeholder certificate: generated on the request (RSA key pair and self signature) against
+ * served from the rotated cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class CertificateBenchmark {
+
+    /**
+     * The provider generating on every request (a zero rotation interval is always stale).
+     */
+    private CertificateProvider generating;
+    /**
+     * The provider serving the cached certificate.
+     */
+    private CertificateProvider cached;
+
+    /**
+     * Creates the providers.
+     * @throws Exception on error
+     */
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+
+        generating = new CertificateProvider(0); // never started, nothing is scheduled
+
+        cached = new CertificateProvider(TimeUnit.HOURS.toMillis(1));
+        cached.start();
+    }
+
+    /**
+     * Stops the rotation.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        cached.shutdown();
+    }
+
+    /**
+     * Generates a certificate.
+     * @return The certificate
+     * @throws Exception on error
+     */
+    @Benchmark
+    public X509Certificate generate() throws Exception {
+        return generating.getCertificate();
+    }
+
+    /**
+     * Gets the cached certificate.
+     * @return The certificate
+     * @throws Exception on error
+     */
+    @Benchmark
+    public X509Certificate cached() throws Exception {
+        return cached.getCertificate();
+    }
+}
@@ -0,0 +1,98 @@
+package cl.uchile.fea.benchmark;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cl.uchile.fea.crypto.KeyMaterialService;
+
+/**
+ * The RSA password decryption of the attended requests, with a 2048 bits key as in the README.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class DecryptBenchmark {
+
+    /**
+     * The private key file.
+     */
+    private File file;
+    /**
+     * The key material.
+     */
+    private KeyMaterialService keyMaterialService;
+    /**
+     * The encrypted password encoded in base64.
+     */
+    private String encryptedPassword;
+
+    /**
+     * Generates the key and encrypts the password.
+     * @throws Exception on error
+     */
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+
+        KeyPair keyPair = generator.generateKeyPair();
+
+        file = File.createTempFile("benchmark-", ".pem");
+        try (PemWriter writer = new PemWriter(new FileWriter(file))) {
+            writer.writeObject(new PemObject("PRIVATE KEY", keyPair.getPrivate().getEncoded())); // PKCS #8
+        }
+
+        keyMaterialService = new KeyMaterialService(file, TimeUnit.HOURS.toMillis(1));
+        keyMaterialService.start();
+
+        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, keyPair.getPublic());
+
+        encryptedPassword = Base64.getEncoder().encodeToString(cipher.doFinal("123456".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Stops the reload check and deletes the key.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        keyMaterialService.shutdown();
+
+        file.delete();
+    }
+
+    /**
+     * Decrypts the password.
+     * @return The password
+     * @throws Exception on error
+     */
+    @Benchmark
+    public String decrypt() throws Exception {
+        return keyMaterialService.decrypt(encryptedPassword);
+    }
+}
@@ -0,0 +1,38 @@
+package cl.uchile.fea.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cl.uchile.fea.jwt.JwtUtil;
+
+/**
+ * The Segpres JSON Web Token of a signer, minted once every few minutes and served from the cache
+ * otherwise (SEGPRES_SECRET must be set, the benchmark profile sets a dummy one).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class JwtBenchmark {
+
+    /**
+     * Gets the token of an unattended signer.
+     * @return The token
+     * @throws Exception on error
+     */
+    @Benchmark
+    public String generate() throws Exception {
+        return JwtUtil.generate("0123456785", false);
+    }
+}
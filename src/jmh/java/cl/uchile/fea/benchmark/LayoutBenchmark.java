@@ -0,0 +1,85 @@
+package cl.uchile.fea.benchmark;
+
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cl.uchile.fea.segpres.Layout;
+import cl.uchile.fea.segpres.LayoutUtil;
+
+/**
+ * The signature layout: the XML layout built by LayoutUtil and parsed back, against the typed
+ * layout built from the request fields.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LayoutBenchmark {
+
+    /**
+     * The signature image.
+     */
+    private byte[] image;
+
+    /**
+     * Creates the signature image.
+     * @throws Exception on error
+     */
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        image = SamplePdf.createImage(400, 160);
+    }
+
+    /**
+     * Builds the invisible XML layout.
+     * @return The layout
+     * @throws Exception on error
+     */
+    @Benchmark
+    public String invisibleXml() throws Exception {
+        return LayoutUtil.getInvisibleLayout();
+    }
+
+    /**
+     * Builds the visible XML layout, with the image encoded in base64.
+     * @return The layout
+     * @throws Exception on error
+     */
+    @Benchmark
+    public String visibleXml() throws Exception {
+        return LayoutUtil.getVisibleLayout(100, 100, 300, 180, 0, Base64.getEncoder().encodeToString(image));
+    }
+
+    /**
+     * Builds the visible XML layout and parses it.
+     * @return The layout
+     * @throws Exception on error
+     */
+    @Benchmark
+    public Layout visibleXmlParsed() throws Exception {
+        return Layout.parse(LayoutUtil.getVisibleLayout(100, 100, 300, 180, 0, Base64.getEncoder().encodeToString(image)));
+    }
+
+    /**
+     * Builds the visible typed layout.
+     * @return The layout
+     */
+    @Benchmark
+    public Layout visibleTyped() {
+        return Layout.visible(100, 100, 300, 180, 0, image);
+    }
+}
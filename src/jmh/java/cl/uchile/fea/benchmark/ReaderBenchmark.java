@@ -0,0 +1,177 @@
+package cl.uchile.fea.benchmark;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jol.info.GraphLayout;
+
+import com.google.protobuf.ByteString;
+import com.itextpdf.text.pdf.PdfReader;
+
+import cl.uchile.fea.segpres.PdfReaderFactory;
+
+/**
+ * The opening of the document, in partial mode or fully parsed, from the request bytes or from the
+ * spooled file.
+ * <p>
+ * The {@code retained} benchmark reports, as the {@code retainedBytes} counter, the heap reachable
+ * from the open reader (the document itself excluded), i.e. what each concurrent signature holds
+ * while stamping, which the allocation rate of the GC profiler does not show. A spooled reader
+ * parses the same objects, its document being off the heap. Its time includes walking the object
+ * graph and is not meaningful.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ReaderBenchmark {
+
+    /**
+     * The size of the document (in megabytes).
+     */
+    @Param({ "1", "10", "100" })
+    public int megabytes;
+
+    /**
+     * Whether the document is read in partial mode.
+     */
+    @Param({ "false", "true" })
+    public boolean partial;
+
+    /**
+     * The document.
+     */
+    private ByteString file;
+    /**
+     * The spooled document.
+     */
+    private File spooled;
+    /**
+     * The PDF reader factory.
+     */
+    private PdfReaderFactory readerFactory;
+
+    /**
+     * Creates the document.
+     * @throws Exception on error
+     */
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        byte[] document = SamplePdf.createOfSize(megabytes * 1024L * 1024L);
+
+        file = ByteString.copyFrom(document);
+
+        spooled = File.createTempFile("benchmark-", ".pdf");
+        Files.write(spooled.toPath(), document);
+
+        readerFactory = new PdfReaderFactory(partial);
+    }
+
+    /**
+     * Deletes the spooled document.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        spooled.delete();
+    }
+
+    /**
+     * Opens the document from the request bytes and reads the last page, as the stamper does.
+     * @return The number of pages
+     * @throws Exception on error
+     */
+    @Benchmark
+    public int bytes() throws Exception {
+        return read(readerFactory.open(file));
+    }
+
+    /**
+     * Opens the spooled document and reads the last page, as the stamper does.
+     * @return The number of pages
+     * @throws Exception on error
+     */
+    @Benchmark
+    public int spooled() throws Exception {
+        return read(readerFactory.open(spooled));
+    }
+
+    /**
+     * Opens the document from the request bytes, reads the last page and measures the heap retained
+     * by the reader.
+     * @param heap The retained heap counter
+     * @return The number of pages
+     * @throws Exception on error
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 1) // the counter is summed over the iterations
+    public int retained(Heap heap) throws Exception {
+        return retain(readerFactory.open(file), heap);
+    }
+
+    /**
+     * Reads the last page, measures the heap retained by the open reader and closes it.
+     * @param reader The PDF reader
+     * @param heap The retained heap counter
+     * @return The number of pages
+     */
+    private int retain(PdfReader reader, Heap heap) {
+        try {
+            int n = reader.getNumberOfPages();
+            reader.getPageN(n);
+
+            heap.retainedBytes = GraphLayout.parseInstance(reader).subtract(GraphLayout.parseInstance(file)).totalSize();
+
+            return n;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Reads the last page and closes the reader.
+     * @param reader The PDF reader
+     * @return The number of pages
+     */
+    private static int read(PdfReader reader) {
+        try {
+            int n = reader.getNumberOfPages();
+            reader.getPageN(n);
+
+            return n;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * The heap retained by the reader, reported as a secondary result.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Heap {
+
+        /**
+         * The heap retained by the last opened reader (in bytes).
+         */
+        public long retainedBytes;
+    }
+}
@@ -0,0 +1,148 @@
+package cl.uchile.fea.benchmark;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Image;
+import com.itextpdf.text.Paragraph;
+import com.itextpdf.text.pdf.PdfWriter;
+
+/**
+ * The sample documents and signature images of the benchmarks.
+ * <p>
+ * Generated with a fixed seed instead of stored in the repository, so every run measures the same
+ * bytes. Each page has a few paragraphs and every tenth page a noisy (incompressible) image, which
+ * gives roughly 200 KB for 1 page, 600 KB for 20 pages and 4 MB for 200 pages.
+ */
+final class SamplePdf {
+
+    /**
+     * The random seed.
+     */
+    private static final long SEED = 20211115L;
+
+    /**
+     * The paragraph text.
+     */
+    private static final String TEXT = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore et dolore magna aliqua. Ut enim ad minim veniam, quis nostrud exercitation ullamco laboris nisi ut aliquip ex ea commodo consequat.";
+
+    private SamplePdf() {
+    }
+
+    /**
+     * Creates a document.
+     * @param pages The number of pages
+     * @return The document
+     * @throws DocumentException on error
+     * @throws IOException on error
+     */
+    static byte[] create(int pages) throws DocumentException, IOException {
+        Random random = new Random(SEED);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        Document document = new Document();
+        PdfWriter.getInstance(document, baos);
+        document.open();
+
+        for (int i = 0; i < pages; i++) {
+            addPage(document, random, i);
+        }
+
+        document.close();
+
+        return baos.toByteArray();
+    }
+
+    /**
+     * Creates a document of at least a size, adding pages until it is reached.
+     * @param size The minimum size (in bytes)
+     * @return The document
+     * @throws DocumentException on error
+     * @throws IOException on error
+     */
+    static byte[] createOfSize(long size) throws DocumentException, IOException {
+        Random random = new Random(SEED);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        Document document = new Document();
+        PdfWriter.getInstance(document, baos);
+        document.open();
+
+        // the writer flushes each page and image to the stream, so its size grows with the document
+        for (int i = 0; i == 0 || baos.size() < size; i++) {
+            addPage(document, random, i);
+        }
+
+        document.close();
+
+        return baos.toByteArray();
+    }
+
+    /**
+     * Adds a page: a few paragraphs and, every tenth page, a noisy image.
+     * @param document The document
+     * @param random The random generator
+     * @param i The page index (starting at 0)
+     * @throws DocumentException on error
+     */
+    private static void addPage(Document document, Random random, int i) throws DocumentException {
+        if (i > 0) {
+            document.newPage();
+        }
+
+        for (int j = 0; j < 5; j++) {
+            document.add(new Paragraph(TEXT));
+        }
+
+        if (i % 10 == 0) {
+            byte[] pixels = new byte[256 * 256 * 3];
+            random.nextBytes(pixels);
+
+            document.add(Image.getInstance(256, 256, 3, 8, pixels));
+        }
+    }
+
+    /**
+     * Creates a signature image: random strokes over a transparent background, encoded in PNG.
+     * @param width The width (in pixels)
+     * @param height The height (in pixels)
+     * @return The image
+     * @throws IOException on error
+     */
+    static byte[] createImage(int width, int height) throws IOException {
+        Random random = new Random(SEED);
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+
+        Graphics2D graphics = image.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            graphics.setStroke(new BasicStroke(3));
+            graphics.setColor(new Color(0, 32, 96));
+
+            for (int i = 0; i < 40; i++) {
+                graphics.drawLine(random.nextInt(width), random.nextInt(height), random.nextInt(width), random.nextInt(height));
+            }
+        } finally {
+            graphics.dispose();
+        }
+
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            ImageIO.write(image, "png", baos);
+
+            return baos.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package cl.uchile.fea.benchmark;
+
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.Security;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.ByteString;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfSignatureAppearance;
+import com.itextpdf.text.pdf.PdfString;
+
+import cl.uchile.fea.segpres.AppearanceCache;
+import cl.uchile.fea.segpres.CertificateProvider;
+import cl.uchile.fea.segpres.ImageCache;
+import cl.uchile.fea.segpres.Layout;
+import cl.uchile.fea.segpres.PdfReaderFactory;
+import cl.uchile.fea.segpres.SegpresService;
+
+/**
+ * The signing pipeline stages on the document: stamping, range stream hashing and contents injection.
+ * <p>
+ * Each stage runs on a document prepared by the previous ones outside the measurement, the same
+ * way SignerService chains them.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SigningBenchmark {
+
+    /**
+     * The number of pages of the document.
+     */
+    @Param({ "1", "20", "200" })
+    public int pages;
+
+    /**
+     * Whether the signature is visible.
+     */
+    @Param({ "false", "true" })
+    public boolean visible;
+
+    /**
+     * The document.
+     */
+    private ByteString file;
+    /**
+     * The layout.
+     */
+    private Layout layout;
+    /**
+     * The placeholder certificate provider.
+     */
+    private CertificateProvider certificateProvider;
+    /**
+     * The Segpres service (only generates, nothing is sent).
+     */
+    private SegpresService service;
+    /**
+     * The PDF reader factory.
+     */
+    private PdfReaderFactory readerFactory;
+
+    /**
+     * Creates the document and the service.
+     * @throws Exception on error
+     */
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Security.addProvider(new BouncyCastleProvider());
+
+        file = ByteString.copyFrom(SamplePdf.create(pages));
+
+        if (visible) {
+            layout = Layout.visible(100, 100, 300, 180, 0, SamplePdf.createImage(400, 160));
+        } else {
+            layout = Layout.invisible();
+        }
+
+        certificateProvider = new CertificateProvider(TimeUnit.HOURS.toMillis(1));
+        certificateProvider.start();
+
+        service = new SegpresService(certificateProvider, null, new AppearanceCache(new ImageCache(16777216, 0), 16777216));
+        service.setReason("");
+        service.setLocation("");
+        service.setUsername("0123456785");
+
+        readerFactory = new PdfReaderFactory(true);
+    }
+
+    /**
+     * Stops the certificate rotation.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        certificateProvider.shutdown();
+    }
+
+    /**
+     * Stamps the document in memory (certificate served from the cache).
+     * @param signature The signature, closed after the measurement
+     * @return The PDF signature appearance
+     * @throws Exception on error
+     */
+    @Benchmark
+    public PdfSignatureAppearance stamp(Signature signature) throws Exception {
+        signature.appearance = service.generate(readerFactory.open(file), ByteString.newOutput(), null, layout);
+
+        return signature.appearance;
+    }
+
+    /**
+     * Computes the SHA-256 range stream digest, as SignerService does.
+     * @param signature The stamped signature
+     * @return The digest
+     * @throws Exception on error
+     */
+    @Benchmark
+    public byte[] hash(StampedSignature signature) throws Exception {
+        InputStream rs = signature.appearance.getRangeStream();
+
+        byte[] input = new byte[8192];
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+
+        int n;
+        while ((n = rs.read(input)) > 0) {
+            md.update(input, 0, n);
+        }
+
+        return md.digest();
+    }
+
+    /**
+     * Injects the signature contents and closes the appearance, writing the signed document.
+     * @param signature The stamped signature
+     * @throws Exception on error
+     */
+    @Benchmark
+    public void close(StampedSignature signature) throws Exception {
+        PdfDictionary dictionary = new PdfDictionary();
+        dictionary.put(PdfName.CONTENTS, new PdfString(signature.contents).setHexWriting(true));
+
+        signature.appearance.close(dictionary);
+        signature.appearance = null;
+    }
+
+    /**
+     * The signature stamped by the benchmark, closed with empty contents after each invocation.
+     */
+    @State(Scope.Thread)
+    public static class Signature {
+
+        /**
+         * The PDF signature appearance (null if closed).
+         */
+        PdfSignatureAppearance appearance;
+
+        /**
+         * Closes the appearance with empty contents.
+         * @throws Exception on error
+         */
+        @TearDown(Level.Invocation)
+        public void close() throws Exception {
+            if (appearance != null) {
+                PdfDictionary dictionary = new PdfDictionary();
+                dictionary.put(PdfName.CONTENTS, new PdfString());
+
+                appearance.close(dictionary);
+                appearance = null;
+            }
+        }
+    }
+
+    /**
+     * The signature stamped before each invocation.
+     */
+    @State(Scope.Thread)
+    public static class StampedSignature extends Signature {
+
+        /**
+         * The signature contents (a CMS sized as the placeholder).
+         */
+        final byte[] contents = new byte[SegpresService.CONTENTS];
+
+        /**
+         * Stamps the document.
+         * @param benchmark The benchmark
+         * @throws Exception on error
+         */
+        @Setup(Level.Invocation)
+        public void stamp(SigningBenchmark benchmark) throws Exception {
+            appearance = benchmark.service.generate(benchmark.readerFactory.open(benchmark.file), ByteString.newOutput(), null, benchmark.layout);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package cl.uchile.fea.loadtest;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+import com.itextpdf.text.pdf.security.BouncyCastleDigest;
+import com.itextpdf.text.pdf.security.MakeSignature.CryptoStandard;
+import com.itextpdf.text.pdf.security.PdfPKCS7;
+
+/**
+ * The CMS signer of the mock: a detached CMS over a SHA-256 digest, as Segpres returns it.
+ * <p>
+ * The key and its self signed certificate are generated on startup, so the signed documents are
+ * structurally valid but not trusted.
+ */
+final class CmsSigner {
+
+    /**
+     * The key pair.
+     */
+    private final KeyPair keyPair;
+    /**
+     * The certificate chain.
+     */
+    private final Certificate[] chain;
+
+    /**
+     * Creates a CMS signer with a new RSA 2048 bits key.
+     * @throws GeneralSecurityException on key or certificate errors
+     * @throws OperatorCreationException if the content signer cannot be created
+     */
+    CmsSigner() throws GeneralSecurityException, OperatorCreationException {
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA");
+        keyPairGenerator.initialize(2048);
+
+        keyPair = keyPairGenerator.generateKeyPair();
+
+        X500Name owner = new X500Name("CN=Mock Segpres"); // issuer and subject
+
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
+            owner,
+            BigInteger.valueOf(System.currentTimeMillis()),
+            new Date(System.currentTimeMillis() - 24L * 60 * 60 * 1000), // from yesterday
+            new Date(System.currentTimeMillis() + 365L * 24 * 60 * 60 * 1000), // in 1 year
+            owner,
+            keyPair.getPublic()
+        );
+
+        X509Certificate certificate = new JcaX509CertificateConverter().getCertificate(builder.build(new JcaContentSignerBuilder("SHA256WithRSAEncryption").build(keyPair.getPrivate())));
+
+        chain = new Certificate[] { certificate };
+    }
+
+    /**
+     * Signs the digest.
+     * @param hash The SHA-256 digest of the document byte range
+     * @return The CMS (DER encoded)
+     * @throws GeneralSecurityException on signature errors
+     */
+    byte[] sign(byte[] hash) throws GeneralSecurityException {
+        PdfPKCS7 pkcs7 = new PdfPKCS7(null, chain, "SHA-256", null, new BouncyCastleDigest(), false);
+
+        byte[] attributes = pkcs7.getAuthenticatedAttributeBytes(hash, null, null, CryptoStandard.CMS);
+
+        Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(attributes);
+
+        pkcs7.setExternalDigest(signature.sign(), null, "RSA");
+
+        return pkcs7.getEncodedPKCS7(hash, null, null, null, CryptoStandard.CMS);
+    }
+}
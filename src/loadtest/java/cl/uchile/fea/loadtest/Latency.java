@@ -0,0 +1,96 @@
+package cl.uchile.fea.loadtest;
+
+import java.util.Random;
+
+/**
+ * The latency distribution of the mock responses.
+ * <p>
+ * Parsed from a specification such as {@code fixed:200}, {@code uniform:100:400},
+ * {@code exponential:250} or {@code lognormal:300:0.5} (median and sigma), in milliseconds.
+ */
+final class Latency {
+
+    /**
+     * The distribution.
+     */
+    private final String distribution;
+    /**
+     * The first parameter (the value, minimum, mean or median).
+     */
+    private final double a;
+    /**
+     * The second parameter (the maximum or sigma, 0 if not used).
+     */
+    private final double b;
+
+    private Latency(String distribution, double a, double b) {
+        this.distribution = distribution;
+        this.a = a;
+        this.b = b;
+    }
+
+    /**
+     * Parses the specification.
+     * @param specification The specification
+     * @return The latency distribution
+     * @throws IllegalArgumentException if the specification is invalid
+     */
+    static Latency parse(String specification) {
+        String[] parts = specification.trim().split(":");
+
+        try {
+            switch (parts[0]) {
+            case "fixed":
+            case "exponential":
+                if (parts.length == 2) {
+                    return new Latency(parts[0], Double.parseDouble(parts[1]), 0);
+                }
+
+                break;
+            case "uniform":
+            case "lognormal":
+                if (parts.length == 3) {
+                    return new Latency(parts[0], Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+                }
+
+                break;
+            default:
+                break;
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Got invalid latency %s (%s)", specification, e.getMessage()), e);
+        }
+
+        throw new IllegalArgumentException(String.format("Got invalid latency %s", specification));
+    }
+
+    /**
+     * Samples a latency.
+     * @param random The random number generator
+     * @return The latency (in milliseconds)
+     */
+    long sample(Random random) {
+        double value;
+        switch (distribution) {
+        case "uniform":
+            value = a + random.nextDouble() * (b - a);
+            break;
+        case "exponential":
+            value = -a * Math.log(1 - random.nextDouble());
+            break;
+        case "lognormal":
+            value = a * Math.exp(b * random.nextGaussian());
+            break;
+        default:
+            value = a;
+            break;
+        }
+
+        return Math.max(0, Math.round(value));
+    }
+
+    @Override
+    public String toString() {
+        return b != 0 ? String.format("%s:%s:%s", distribution, a, b) : String.format("%s:%s", distribution, a);
+    }
+}
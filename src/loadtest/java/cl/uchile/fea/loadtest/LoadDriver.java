@@ -0,0 +1,469 @@
+package cl.uchile.fea.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ByteString;
+import com.itextpdf.text.Document;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Paragraph;
+import com.itextpdf.text.pdf.PdfWriter;
+
+import cl.uchile.fea.App;
+import cl.uchile.fea.Utils;
+import cl.uchile.fea.lib.proto.SignReply;
+import cl.uchile.fea.lib.proto.SignRequest;
+import cl.uchile.fea.lib.proto.SignerGrpc;
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.Metadata;
+import io.grpc.stub.MetadataUtils;
+import io.grpc.stub.StreamObserver;
+
+/**
+ * The load driver: sends unattended signature requests to the signer and reports the throughput and
+ * the latency percentiles.
+ * <p>
+ * Runs either at a fixed concurrency (closed loop, each caller sends the next request when the
+ * previous one completes) or at a fixed arrival rate (open loop, requests are sent on schedule
+ * whether or not the previous ones completed). In the open loop the latency is measured from the
+ * scheduled send time, so a stalled server is not hidden by the driver sending less (coordinated
+ * omission). By default the signer and the Segpres mock run embedded in the same JVM.
+ */
+public class LoadDriver {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadDriver.class);
+
+    /**
+     * The RUT of the signer (unattended, no OTP).
+     */
+    private static final String RUT = "0123456785";
+
+    /**
+     * The header telling the signer the requests are unattended before they are read.
+     */
+    private static final Metadata.Key<String> ATTENDED = Metadata.Key.of("fea-attended", Metadata.ASCII_STRING_MARSHALLER);
+
+    /**
+     * The signer stub.
+     */
+    private final SignerGrpc.SignerStub stub;
+    /**
+     * The request (the same document every time).
+     */
+    private final SignRequest request;
+    /**
+     * The deadline of each request (in milliseconds).
+     */
+    private final long deadline;
+
+    /**
+     * The latencies recorded after the warmup (in nanoseconds).
+     */
+    private final Recorder recorder = new Recorder();
+    /**
+     * The number of requests in flight.
+     */
+    private final AtomicInteger outstanding = new AtomicInteger();
+
+    /**
+     * The number of signed documents.
+     */
+    private final AtomicLong success = new AtomicLong();
+    /**
+     * The number of replies asking to retry.
+     */
+    private final AtomicLong retry = new AtomicLong();
+    /**
+     * The number of replies with an invalid password.
+     */
+    private final AtomicLong invalidPassword = new AtomicLong();
+    /**
+     * The number of other failed replies and gRPC errors (deadline exceeded included).
+     */
+    private final AtomicLong errors = new AtomicLong();
+
+    /**
+     * Creates a load driver.
+     * @param stub The signer stub
+     * @param request The request
+     * @param deadline The deadline of each request (in milliseconds)
+     */
+    public LoadDriver(SignerGrpc.SignerStub stub, SignRequest request, long deadline) {
+        this.stub = stub;
+        this.request = request;
+        this.deadline = deadline;
+    }
+
+    /**
+     * Runs at a fixed concurrency.
+     * @param concurrency The number of requests in flight
+     * @param warmup The warmup, not recorded (in nanoseconds)
+     * @param duration The recorded duration (in nanoseconds)
+     * @throws InterruptedException if interrupted
+     */
+    public void runConcurrency(int concurrency, long warmup, long duration) throws InterruptedException {
+        Semaphore permits = new Semaphore(concurrency);
+
+        long start = System.nanoTime();
+        long from = start + warmup;
+        long to = from + duration;
+
+        while (System.nanoTime() < to) {
+            permits.acquire();
+
+            send(System.nanoTime(), from, to, permits);
+        }
+
+        drain();
+    }
+
+    /**
+     * Runs at a fixed arrival rate.
+     * @param rate The number of requests per second
+     * @param warmup The warmup, not recorded (in nanoseconds)
+     * @param duration The recorded duration (in nanoseconds)
+     * @throws InterruptedException if interrupted
+     */
+    public void runRate(double rate, long warmup, long duration) throws InterruptedException {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+
+        long start = System.nanoTime();
+        long from = start + warmup;
+        long to = from + duration;
+
+        for (long i = 0; ; i++) {
+            long scheduled = start + i * interval;
+            if (scheduled >= to) {
+                break;
+            }
+
+            long delay;
+            while ((delay = scheduled - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(delay);
+            }
+
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+
+            send(scheduled, from, to, null);
+        }
+
+        drain();
+    }
+
+    /**
+     * Sends a request.
+     * @param scheduled The scheduled send time (in nanoseconds)
+     * @param from The start of the recorded window (in nanoseconds)
+     * @param to The end of the recorded window (in nanoseconds)
+     * @param permits The concurrency permits, released on completion (null if open loop)
+     */
+    private void send(long scheduled, long from, long to, Semaphore permits) {
+        boolean recorded = scheduled >= from && scheduled < to;
+
+        outstanding.incrementAndGet();
+
+        stub.withDeadlineAfter(deadline, TimeUnit.MILLISECONDS).send(request, new StreamObserver<SignReply>() {
+
+            @Override
+            public void onNext(SignReply reply) {
+                if (recorded) {
+                    if (reply.getSuccess()) {
+                        success.incrementAndGet();
+                    } else if (reply.getInvalidPassword()) {
+                        invalidPassword.incrementAndGet();
+                    } else if (reply.getRetry()) {
+                        retry.incrementAndGet();
+                    } else {
+                        errors.incrementAndGet();
+
+                        LOGGER.debug("Got failed reply ({})", reply.getMessage());
+                    }
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                if (recorded) {
+                    errors.incrementAndGet();
+
+                    LOGGER.debug("Got error ({})", t.getMessage());
+                }
+
+                complete();
+            }
+
+            @Override
+            public void onCompleted() {
+                complete();
+            }
+
+            private void complete() {
+                if (recorded) {
+                    recorder.record(System.nanoTime() - scheduled);
+                }
+
+                outstanding.decrementAndGet();
+
+                if (permits != null) {
+                    permits.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Waits for the requests in flight (at most the deadline).
+     * @throws InterruptedException if interrupted
+     */
+    private void drain() throws InterruptedException {
+        long limit = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline);
+
+        while (outstanding.get() > 0 && System.nanoTime() < limit) {
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Logs the report.
+     * @param duration The recorded duration (in nanoseconds)
+     */
+    public void report(long duration) {
+        long[] latencies = recorder.toSortedArray();
+
+        LOGGER.info("Requests: {} ({} success, {} retry, {} invalid password, {} errors)",
+            latencies.length, success.get(), retry.get(), invalidPassword.get(), errors.get());
+        LOGGER.info("Throughput: {} requests/s ({} success/s)",
+            String.format("%.2f", latencies.length * 1e9 / duration),
+            String.format("%.2f", success.get() * 1e9 / duration));
+
+        if (latencies.length > 0) {
+            LOGGER.info("Latency (ms): p50 {}, p90 {}, p99 {}, p999 {}, max {}",
+                toMillis(percentile(latencies, 0.5)),
+                toMillis(percentile(latencies, 0.9)),
+                toMillis(percentile(latencies, 0.99)),
+                toMillis(percentile(latencies, 0.999)),
+                toMillis(latencies[latencies.length - 1]));
+        }
+    }
+
+    /**
+     * Gets a percentile (nearest rank).
+     * @param sorted The sorted values
+     * @param p The percentile (between 0 and 1)
+     * @return The value
+     */
+    private static long percentile(long[] sorted, double p) {
+        int rank = (int) Math.ceil(p * sorted.length);
+
+        return sorted[Math.max(0, Math.min(sorted.length, rank) - 1)];
+    }
+
+    /**
+     * Formats nanoseconds as milliseconds.
+     * @param nanos The nanoseconds
+     * @return The milliseconds (2 decimals)
+     */
+    private static String toMillis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+
+    /**
+     * Creates a document of text pages.
+     * @param pages The number of pages
+     * @return The document
+     * @throws DocumentException on error
+     */
+    private static byte[] createDocument(int pages) throws DocumentException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+
+        Document document = new Document();
+        PdfWriter.getInstance(document, baos);
+        document.open();
+
+        for (int i = 0; i < pages; i++) {
+            if (i > 0) {
+                document.newPage();
+            }
+
+            for (int j = 0; j < 5; j++) {
+                document.add(new Paragraph(String.format("Página %d, párrafo %d. Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore et dolore magna aliqua.", i + 1, j + 1)));
+            }
+        }
+
+        document.close();
+
+        return baos.toByteArray();
+    }
+
+    /**
+     * Gets a positive integer from the environment.
+     * @param name The environment name
+     * @param min The minimum value
+     * @param max The maximum value
+     * @param defVal The default value
+     * @return The value
+     */
+    private static int getEnv(String name, int min, int max, int defVal) {
+        try {
+            return Utils.getEnv(name, min, max, defVal);
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get {} ({}), using {}", name, e.getMessage(), defVal);
+
+            return defVal;
+        }
+    }
+
+    /**
+     * Main method.
+     * @param args The arguments
+     * @throws Exception on error
+     */
+    public static void main(String[] args) throws Exception {
+        boolean embedded = Boolean.parseBoolean(Utils.getEnv("LOAD_EMBEDDED", "true"));
+        String target = Utils.getEnv("LOAD_TARGET", "localhost:8080");
+        String mode = Utils.getEnv("LOAD_MODE", "concurrency");
+
+        int concurrency = getEnv("LOAD_CONCURRENCY", 1, 10000, 10);
+        int rate = getEnv("LOAD_RATE", 1, 100000, 10); // requests per second
+        int warmup = getEnv("LOAD_WARMUP", 0, 3600, 10); // seconds
+        int duration = getEnv("LOAD_DURATION", 1, 86400, 60); // seconds
+        int pages = getEnv("LOAD_PAGES", 1, 10000, 1);
+        int deadline = getEnv("LOAD_DEADLINE", 1000, 600000, 120000); // milliseconds
+
+        byte[] file;
+        String path = Utils.getEnv("LOAD_FILE", "");
+        if (!path.isEmpty()) {
+            file = Files.readAllBytes(Paths.get(path));
+        } else {
+            file = createDocument(pages);
+        }
+
+        if (embedded) {
+            LOGGER.info("Starting embedded signer on Java {} ({} executor)", System.getProperty("java.version"), Utils.getEnv("APP_EXECUTOR", "fixed"));
+
+            startEmbedded();
+        }
+
+        ManagedChannel channel = ManagedChannelBuilder.forTarget(target)
+            .usePlaintext()
+            .maxInboundMessageSize(Integer.MAX_VALUE)
+            .build();
+
+        try {
+            SignRequest request = SignRequest.newBuilder()
+                .setName("loadtest.pdf")
+                .setFile(ByteString.copyFrom(file))
+                .setRut(RUT)
+                .setAttended(false)
+                .build();
+
+            Metadata headers = new Metadata();
+            headers.put(ATTENDED, "false");
+
+            SignerGrpc.SignerStub stub = SignerGrpc.newStub(channel)
+                .withWaitForReady()
+                .withInterceptors(MetadataUtils.newAttachHeadersInterceptor(headers));
+
+            LoadDriver driver = new LoadDriver(stub, request, deadline);
+
+            long warmupNanos = TimeUnit.SECONDS.toNanos(warmup);
+            long durationNanos = TimeUnit.SECONDS.toNanos(duration);
+
+            if ("rate".equals(mode)) {
+                LOGGER.info("Sending {} requests/s of {} bytes to {} for {} s (warmup {} s)", rate, file.length, target, duration, warmup);
+
+                driver.runRate(rate, warmupNanos, durationNanos);
+            } else {
+                LOGGER.info("Sending {} concurrent requests of {} bytes to {} for {} s (warmup {} s)", concurrency, file.length, target, duration, warmup);
+
+                driver.runConcurrency(concurrency, warmupNanos, durationNanos);
+            }
+
+            driver.report(durationNanos);
+        } finally {
+            channel.shutdownNow();
+        }
+
+        System.exit(0); // the embedded server threads are not daemons
+    }
+
+    /**
+     * Starts the Segpres mock and the signer in this JVM.
+     * @throws Exception if the mock cannot be started
+     */
+    private static void startEmbedded() throws Exception {
+        if (Security.getProvider("BC") == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+
+        MockSegpres.fromEnv().start(); // SEGPRES_BASE_URL must point to it
+
+        Thread thread = new Thread(() -> {
+            try {
+                App.main(new String[0]);
+            } catch (Exception e) {
+                LOGGER.error("Unable to run signer", e);
+
+                System.exit(1);
+            }
+        }, "signer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * The latency recorder, a growable array of nanoseconds.
+     */
+    private static final class Recorder {
+
+        /**
+         * The values.
+         */
+        private long[] values = new long[1024];
+        /**
+         * The number of values.
+         */
+        private int size;
+
+        /**
+         * Records a value.
+         * @param value The value
+         */
+        synchronized void record(long value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+
+            values[size++] = value;
+        }
+
+        /**
+         * Gets the sorted values.
+         * @return The values
+         */
+        synchronized long[] toSortedArray() {
+            long[] sorted = Arrays.copyOf(values, size);
+            Arrays.sort(sorted);
+
+            return sorted;
+        }
+    }
+}
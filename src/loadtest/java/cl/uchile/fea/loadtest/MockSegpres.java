@@ -0,0 +1,526 @@
+package cl.uchile.fea.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.Security;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import cl.uchile.fea.Utils;
+import cl.uchile.fea.segpres.models.ErrorResponse;
+import cl.uchile.fea.segpres.models.HashResponse;
+import cl.uchile.fea.segpres.models.Metadata;
+import cl.uchile.fea.segpres.models.SignatureResponse;
+
+/**
+ * The Segpres mock: the {@code firma/v2/files/tickets} endpoint on a local HTTP server.
+ * <p>
+ * Validates the shape of the request and its JSON Web Token the way SegpresService builds them and
+ * answers with a real CMS over each hash, after a sampled latency. A configurable share of the
+ * requests fails with 5xx, an invalid OTP or no answer at all (timeout), so the retry paths of the
+ * signer are exercised too.
+ */
+public class MockSegpres {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(MockSegpres.class);
+
+    /**
+     * The endpoint path.
+     */
+    private static final String PATH = "/firma/v2/files/tickets";
+
+    /**
+     * The unattended purpose (any other one requires OTP).
+     */
+    private static final String UNATTENDED = "Desatendido";
+
+    /**
+     * The expiration date format of the token.
+     */
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+
+    /**
+     * The JSON serializer (thread safe).
+     */
+    private static final Gson GSON = new Gson();
+
+    /**
+     * The port.
+     */
+    private final int port;
+    /**
+     * The latency distribution.
+     */
+    private final Latency latency;
+    /**
+     * The share of requests failing with 500 Internal Server Error (between 0 and 1).
+     */
+    private final double errorRate;
+    /**
+     * The share of attended requests failing with an invalid OTP (between 0 and 1).
+     */
+    private final double otpFailureRate;
+    /**
+     * The share of requests never answered before the timeout (between 0 and 1).
+     */
+    private final double timeoutRate;
+    /**
+     * The time a timed out request is held (in milliseconds).
+     */
+    private final long timeout;
+
+    /**
+     * The CMS signer.
+     */
+    private final CmsSigner signer;
+
+    /**
+     * The request identifier.
+     */
+    private final AtomicLong idSolicitud = new AtomicLong();
+
+    /**
+     * The HTTP server (null if not started).
+     */
+    private HttpServer server;
+    /**
+     * The executor of the HTTP server.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Creates a Segpres mock.
+     * @param port The port
+     * @param latency The latency distribution
+     * @param errorRate The share of requests failing with 500 Internal Server Error (between 0 and 1)
+     * @param otpFailureRate The share of attended requests failing with an invalid OTP (between 0 and 1)
+     * @param timeoutRate The share of requests never answered before the timeout (between 0 and 1)
+     * @param timeout The time a timed out request is held (in milliseconds)
+     * @throws Exception if the CMS signer cannot be created
+     */
+    public MockSegpres(int port, Latency latency, double errorRate, double otpFailureRate, double timeoutRate, long timeout) throws Exception {
+        this.port = port;
+        this.latency = latency;
+        this.errorRate = errorRate;
+        this.otpFailureRate = otpFailureRate;
+        this.timeoutRate = timeoutRate;
+        this.timeout = timeout;
+
+        signer = new CmsSigner();
+    }
+
+    /**
+     * Creates a Segpres mock configured from the MOCK_* environment variables.
+     * @return The Segpres mock
+     * @throws Exception if the CMS signer cannot be created
+     */
+    public static MockSegpres fromEnv() throws Exception {
+        int port = 8081;
+        try {
+            port = Utils.getEnv("MOCK_PORT", 1, 65535, port);
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get port ({}), using {}", e.getMessage(), port);
+        }
+
+        Latency latency = Latency.parse("lognormal:300:0.5");
+        try {
+            latency = Latency.parse(Utils.getEnv("MOCK_LATENCY", latency.toString()));
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Unable to get latency ({}), using {}", e.getMessage(), latency);
+        }
+
+        int timeout = 60000;
+        try {
+            timeout = Utils.getEnv("MOCK_TIMEOUT", 0, 600000, timeout); // between 0 and 10 minutes
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get timeout ({}), using {} ms", e.getMessage(), timeout);
+        }
+
+        return new MockSegpres(port, latency, getRate("MOCK_ERROR_RATE"), getRate("MOCK_OTP_FAILURE_RATE"), getRate("MOCK_TIMEOUT_RATE"), timeout);
+    }
+
+    /**
+     * Gets a rate from the environment.
+     * @param name The environment name
+     * @return The rate (between 0 and 1, 0 if not set or invalid)
+     */
+    private static double getRate(String name) {
+        String value = Utils.getEnv(name, "0");
+        try {
+            double rate = Double.parseDouble(value);
+            if (rate < 0 || rate > 1) {
+                throw new NumberFormatException(String.format("%s is not between 0 and 1", value));
+            }
+
+            return rate;
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get {} ({}), using 0", name, e.getMessage());
+
+            return 0;
+        }
+    }
+
+    /**
+     * Starts the HTTP server.
+     * @throws IOException if unable to bind
+     */
+    public void start() throws IOException {
+        AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "mock-segpres-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(PATH, this::handle);
+        server.setExecutor(executor);
+        server.start();
+
+        LOGGER.info("Mock Segpres started, listening on {} (latency {}, error rate {}, OTP failure rate {}, timeout rate {})",
+            port, latency, errorRate, otpFailureRate, timeoutRate);
+    }
+
+    /**
+     * Stops the HTTP server.
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+
+            server = null;
+        }
+    }
+
+    /**
+     * Handles the exchange.
+     * @param exchange The HTTP exchange
+     * @throws IOException on error
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Method Not Allowed");
+
+                return;
+            }
+
+            JsonObject request;
+            try {
+                request = GSON.fromJson(new String(readAll(exchange.getRequestBody()), StandardCharsets.UTF_8), JsonObject.class);
+            } catch (JsonParseException e) {
+                request = null;
+            }
+
+            if (request == null) {
+                sendError(exchange, 400, "Bad Request");
+
+                return;
+            }
+
+            String apiTokenKey = getString(request, "api_token_key");
+            if (apiTokenKey == null || apiTokenKey.isEmpty()) {
+                sendError(exchange, 400, "ERROR : api_token_key no válido");
+
+                return;
+            }
+
+            JsonObject payload = getPayload(getString(request, "token"));
+            if (payload == null) {
+                sendError(exchange, 400, "ERROR : Token no válido");
+
+                return;
+            }
+
+            List<byte[]> hashes = getHashes(request);
+            if (hashes == null) {
+                // BUG: the same as Segpres, a 500 that must not be retried
+                sendError(exchange, 500, "ERROR : Formato de contenido o layout incorrecto");
+
+                return;
+            }
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            Thread.sleep(latency.sample(random));
+
+            if (random.nextDouble() < timeoutRate) {
+                Thread.sleep(timeout); // the client gives up first
+
+                sendError(exchange, 504, "Gateway Timeout");
+
+                return;
+            }
+
+            if (!UNATTENDED.equals(getString(payload, "purpose"))) { // the attended one is encoded in the platform charset
+                String otp = exchange.getRequestHeaders().getFirst("OTP");
+                if (otp == null || otp.isEmpty() || random.nextDouble() < otpFailureRate) {
+                    sendError(exchange, 400, "El OTP ingresado no es válido");
+
+                    return;
+                }
+            }
+
+            if (random.nextDouble() < errorRate) {
+                sendError(exchange, 500, "Internal Server Error");
+
+                return;
+            }
+
+            send(exchange, 200, GSON.toJson(sign(hashes)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // stopping
+        } catch (Exception e) {
+            LOGGER.error("Unable to handle request", e);
+
+            sendError(exchange, 500, "Internal Server Error");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Signs the hashes.
+     * @param hashes The SHA-256 digests
+     * @return The signature response
+     * @throws Exception on signature errors
+     */
+    private SignatureResponse sign(List<byte[]> hashes) throws Exception {
+        List<HashResponse> hashResponses = new ArrayList<>();
+        for (byte[] hash : hashes) {
+            HashResponse hashResponse = new HashResponse();
+            hashResponse.setContent(Base64.getEncoder().encodeToString(signer.sign(hash)));
+            hashResponse.setStatus("OK");
+            hashResponse.setContentType("application/pdf");
+            hashResponse.setDocumentStatus("FIRMADO");
+            hashResponse.setHashOriginal(Base64.getEncoder().encodeToString(hash));
+
+            hashResponses.add(hashResponse);
+        }
+
+        Metadata metadata = new Metadata();
+        metadata.setOtpExpired(false);
+        metadata.setHashesSigned(hashes.size());
+        metadata.setSignedFailed(0);
+        metadata.setHashesReceived(hashes.size());
+
+        SignatureResponse signatureResponse = new SignatureResponse();
+        signatureResponse.setHashes(hashResponses);
+        signatureResponse.setMetadata(metadata);
+        signatureResponse.setIdSolicitud(idSolicitud.incrementAndGet());
+
+        return signatureResponse;
+    }
+
+    /**
+     * Gets the payload of the JSON Web Token, checking its shape: a HS256 header, a payload with the
+     * run, entity, purpose and expiration, and the signature (verified if SEGPRES_SECRET is set).
+     * @param token The token
+     * @return The payload (null if invalid)
+     */
+    private static JsonObject getPayload(String token) {
+        if (token == null) {
+            return null;
+        }
+
+        String[] parts = token.split("\\.");
+        if (parts.length != 3) {
+            return null;
+        }
+
+        try {
+            JsonObject header = GSON.fromJson(new String(Base64.getDecoder().decode(parts[0]), StandardCharsets.UTF_8), JsonObject.class);
+            if (header == null || !"JWT".equals(getString(header, "typ")) || !"HS256".equals(getString(header, "alg"))) {
+                return null;
+            }
+
+            JsonObject payload = GSON.fromJson(new String(Base64.getDecoder().decode(parts[1]), StandardCharsets.UTF_8), JsonObject.class);
+            if (payload == null || getString(payload, "run") == null || getString(payload, "entity") == null || getString(payload, "purpose") == null) {
+                return null;
+            }
+
+            LocalDateTime.parse(getString(payload, "expiration"), FORMATTER);
+
+            String secret = System.getenv("SEGPRES_SECRET");
+            if (secret != null && !secret.isEmpty()) {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(secret.getBytes(), "HmacSHA256"));
+
+                byte[] signature = mac.doFinal((parts[0] + "." + parts[1]).getBytes());
+                if (!MessageDigest.isEqual(signature, Base64.getDecoder().decode(parts[2]))) {
+                    return null;
+                }
+            }
+
+            return payload;
+        } catch (IllegalArgumentException | NullPointerException | JsonParseException | DateTimeParseException e) {
+            return null; // invalid base64, JSON or date
+        } catch (Exception e) {
+            LOGGER.error("Unable to verify token", e);
+
+            return null;
+        }
+    }
+
+    /**
+     * Gets the hashes: a non empty array of base64 encoded SHA-256 digests.
+     * @param request The request
+     * @return The digests (null if invalid)
+     */
+    private static List<byte[]> getHashes(JsonObject request) {
+        JsonElement element = request.get("hashes");
+        if (element == null || !element.isJsonArray()) {
+            return null;
+        }
+
+        JsonArray array = element.getAsJsonArray();
+        if (array.size() == 0) {
+            return null;
+        }
+
+        List<byte[]> hashes = new ArrayList<>();
+        for (JsonElement hash : array) {
+            if (!hash.isJsonObject()) {
+                return null;
+            }
+
+            String content = getString(hash.getAsJsonObject(), "content");
+            if (content == null) {
+                return null;
+            }
+
+            try {
+                byte[] decoded = Base64.getDecoder().decode(content);
+                if (decoded.length != 32) {
+                    return null;
+                }
+
+                hashes.add(decoded);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        return hashes;
+    }
+
+    /**
+     * Gets a string member.
+     * @param object The JSON object
+     * @param name The member name
+     * @return The value (null if missing or not a string)
+     */
+    private static String getString(JsonObject object, String name) {
+        JsonElement element = object.get(name);
+        if (element == null || !element.isJsonPrimitive() || !element.getAsJsonPrimitive().isString()) {
+            return null;
+        }
+
+        return element.getAsString();
+    }
+
+    /**
+     * Reads the stream fully.
+     * @param is The input stream
+     * @return The bytes
+     * @throws IOException on error
+     */
+    private static byte[] readAll(InputStream is) throws IOException {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            byte[] buffer = new byte[8192];
+
+            int n;
+            while ((n = is.read(buffer)) > 0) {
+                baos.write(buffer, 0, n);
+            }
+
+            return baos.toByteArray();
+        }
+    }
+
+    /**
+     * Sends an error response.
+     * @param exchange The HTTP exchange
+     * @param status The status code
+     * @param error The error
+     * @throws IOException on error
+     */
+    private static void sendError(HttpExchange exchange, int status, String error) throws IOException {
+        ErrorResponse errorResponse = new ErrorResponse();
+        errorResponse.setTimestamp(LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME));
+        errorResponse.setStatus(status);
+        errorResponse.setError(error);
+
+        send(exchange, status, GSON.toJson(errorResponse));
+    }
+
+    /**
+     * Sends a JSON response.
+     * @param exchange The HTTP exchange
+     * @param status The status code
+     * @param body The body
+     * @throws IOException on error
+     */
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json;charset=UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    /**
+     * Main method.
+     * @param args The arguments
+     * @throws Exception on error
+     */
+    public static void main(String[] args) throws Exception {
+        if (Security.getProvider("BC") == null) {
+            Security.addProvider(new BouncyCastleProvider());
+        }
+
+        MockSegpres mock = fromEnv();
+        mock.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(mock::stop));
+
+        Thread.sleep(TimeUnit.DAYS.toMillis(365)); // until interrupted
+    }
+}
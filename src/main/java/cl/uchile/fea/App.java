@@ -1,7 +1,9 @@
 package cl.uchile.fea;
 
+import java.io.File;
 import java.io.IOException;
 import java.security.Security;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Level;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
@@ -9,7 +11,20 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.slf4j.bridge.SLF4JBridgeHandler;
 
+import cl.uchile.fea.crypto.KeyMaterialService;
+import cl.uchile.fea.grpc.CircuitBreaker;
+import cl.uchile.fea.grpc.RequestCoalescer;
+import cl.uchile.fea.grpc.RetryPolicy;
+import cl.uchile.fea.grpc.SessionStore;
 import cl.uchile.fea.grpc.SignerServer;
+import cl.uchile.fea.grpc.SignerService;
+import cl.uchile.fea.metrics.MetricsRegistry;
+import cl.uchile.fea.metrics.MetricsServer;
+import cl.uchile.fea.segpres.AppearanceCache;
+import cl.uchile.fea.segpres.CertificateProvider;
+import cl.uchile.fea.segpres.ImageCache;
+import cl.uchile.fea.segpres.PdfReaderFactory;
+import cl.uchile.fea.segpres.SegpresClient;
 import co.elastic.apm.attach.ElasticApmAttacher;
 
 /**
@@ -59,8 +74,32 @@ public class App {
             Security.addProvider(new BouncyCastleProvider());
         }
 
+        System.setProperty("java.awt.headless", "true"); // the signature images are downscaled without a display
+
         //PdfReader.unethicalreading = true; // PdfReader not opened with owner password
 
+        String mode = Utils.getEnv("APP_EXECUTOR", "fixed");
+
+        boolean virtual = "virtual".equals(mode);
+        if (virtual && !SignerServer.isVirtualThreadSupported()) {
+            LOGGER.warn("Unable to use virtual threads on Java {}, using a fixed thread pool", System.getProperty("java.version"));
+
+            virtual = false;
+        } else if (!virtual && !"fixed".equals(mode)) {
+            LOGGER.warn("Got invalid executor {}, using a fixed thread pool", mode);
+        }
+
+        int stampPermits = Runtime.getRuntime().availableProcessors();
+        try {
+            stampPermits = Utils.getEnv("APP_STAMP_PERMITS", 1, 1000, stampPermits); // between 1 and 1000 concurrent stampings
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get stamping permits ({}), using {}", e.getMessage(), stampPermits);
+        }
+
+        if (virtual) {
+            LOGGER.info("Running each call on a virtual thread, with {} concurrent stampings", stampPermits);
+        }
+
         int nThreads = 5;
         try {
             nThreads = Utils.getEnv("APP_THREADS", 1, 20, nThreads); // between 1 and 20 threads
@@ -68,6 +107,20 @@ public class App {
             LOGGER.warn("Unable to get threads ({}), using {}", e.getMessage(), nThreads);
         }
 
+        int reserved = 1;
+        try {
+            reserved = Utils.getEnv("APP_ATTENDED_THREADS", 0, 19, reserved); // between 0 and 19 threads (always one less than the threads)
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get attended threads ({}), using {}", e.getMessage(), reserved);
+        }
+
+        int maxWait = 30*1000; // 30 seconds
+        try {
+            maxWait = Utils.getEnv("APP_UNATTENDED_MAX_WAIT", 1000, 600*1000, maxWait); // between 1 and 600 seconds (10 minutes)
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get unattended maximum wait ({}), using {} ms", e.getMessage(), maxWait);
+        }
+
         int size = 4 * 1024 * 1024; // 4MB
         try {
             size = Utils.getEnv("APP_MAX_INBOUND_MESSAGE_SIZE", 1*1024*1024, 100*1024*1024, size); // between 1MB and 100MB
@@ -75,7 +128,376 @@ public class App {
             LOGGER.warn("Unable to get maximum inbound message size ({}), using {} bytes", e.getMessage(), size);
         }
 
-        SignerServer server = new SignerServer(8080, nThreads, size);
+        int maxQueued = 20;
+        try {
+            maxQueued = Utils.getEnv("APP_MAX_QUEUED", 0, 1000, maxQueued); // between 0 and 1000 tasks
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get maximum queued tasks ({}), using {}", e.getMessage(), maxQueued);
+        }
+
+        int maxQueueTime = 10*1000; // 10 seconds
+        try {
+            maxQueueTime = Utils.getEnv("APP_MAX_QUEUE_TIME", 0, 300*1000, maxQueueTime); // between 0 (unlimited) and 300 seconds (5 minutes)
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get maximum queue time ({}), using {} ms", e.getMessage(), maxQueueTime);
+        }
+
+        int maxInFlight = 50;
+        try {
+            maxInFlight = Utils.getEnv("APP_MAX_IN_FLIGHT", 1, 10000, maxInFlight); // between 1 and 10000 calls
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get maximum calls in flight ({}), using {}", e.getMessage(), maxInFlight);
+        }
+
+        int rotation = 60 * 60 * 1000; // 1 hour
+        try {
+            rotation = Utils.getEnv("APP_CERTIFICATE_ROTATION", 60*1000, 24*60*60*1000, rotation); // between 1 minute and 24 hours
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get certificate rotation ({}), using {} ms", e.getMessage(), rotation);
+        }
+
+        CertificateProvider certificateProvider = new CertificateProvider(rotation);
+        try {
+            certificateProvider.start();
+        } catch (Exception e) {
+            LOGGER.error("Unable to generate placeholder certificate", e);
+
+            System.exit(1);
+        }
+
+        int interval = 60 * 1000; // 1 minute
+        try {
+            interval = Utils.getEnv("APP_KEY_RELOAD_INTERVAL", 1000, 60*60*1000, interval); // between 1 second and 1 hour
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get key reload interval ({}), using {} ms", e.getMessage(), interval);
+        }
+
+        KeyMaterialService keyMaterialService = new KeyMaterialService(new File("secret/private.pem"), interval);
+        try {
+            keyMaterialService.start();
+        } catch (Exception e) {
+            LOGGER.error("Unable to load private key", e);
+
+            System.exit(1);
+        }
+
+        int timeout = 60*1000; // 60 seconds (1 minute)
+        try {
+            timeout = Utils.getEnv("APP_TIMEOUT", 10*1000, 300*1000, timeout); // between 10 and 300 seconds (5 minutes)
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get timeout ({}), using {} ms", e.getMessage(), timeout);
+        }
+
+        int maxTotal = 20;
+        try {
+            maxTotal = Utils.getEnv("APP_HTTP_MAX_TOTAL", 1, 200, maxTotal); // between 1 and 200 connections
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get maximum total connections ({}), using {}", e.getMessage(), maxTotal);
+        }
+
+        int maxPerRoute = 20;
+        try {
+            maxPerRoute = Utils.getEnv("APP_HTTP_MAX_PER_ROUTE", 1, 200, maxPerRoute); // between 1 and 200 connections
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get maximum connections per route ({}), using {}", e.getMessage(), maxPerRoute);
+        }
+
+        int idleTimeout = 30*1000; // 30 seconds
+        try {
+            idleTimeout = Utils.getEnv("APP_HTTP_IDLE_TIMEOUT", 1000, 300*1000, idleTimeout); // between 1 and 300 seconds (5 minutes)
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get idle connection timeout ({}), using {} ms", e.getMessage(), idleTimeout);
+        }
+
+        int httpMaxQueued = 20;
+        try {
+            httpMaxQueued = Utils.getEnv("APP_HTTP_MAX_QUEUED", 1, 1000, httpMaxQueued); // between 1 and 1000 requests
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get maximum queued Segpres requests ({}), using {}", e.getMessage(), httpMaxQueued);
+        }
+
+        SegpresClient client = new SegpresClient(timeout, maxTotal, maxPerRoute, idleTimeout, httpMaxQueued);
+
+        int maxAttempts = 3;
+        try {
+            maxAttempts = Utils.getEnv("APP_SEGPRES_MAX_ATTEMPTS", 1, 10, maxAttempts); // between 1 (no retries) and 10 attempts
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get Segpres maximum attempts ({}), using {}", e.getMessage(), maxAttempts);
+        }
+
+        int backoffBase = 500;
+        try {
+            backoffBase = Utils.getEnv("APP_SEGPRES_BACKOFF_BASE", 0, 60*1000, backoffBase); // between 0 and 60 seconds
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get Segpres backoff base ({}), using {} ms", e.getMessage(), backoffBase);
+        }
+
+        int backoffMax = 10*1000; // 10 seconds
+        try {
+            backoffMax = Utils.getEnv("APP_SEGPRES_BACKOFF_MAX", 0, 300*1000, backoffMax); // between 0 and 300 seconds (5 minutes)
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get Segpres maximum backoff ({}), using {} ms", e.getMessage(), backoffMax);
+        }
+
+        int budget = 10;
+        try {
+            budget = Utils.getEnv("APP_SEGPRES_RETRY_BUDGET", 0, 1000, budget); // between 0 (disabled) and 1000 tokens
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get Segpres retry budget ({}), using {}", e.getMessage(), budget);
+        }
+
+        int ratio = 10;
+        try {
+            ratio = Utils.getEnv("APP_SEGPRES_RETRY_RATIO", 1, 100, ratio); // between 1% and 100% of a token per response
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get Segpres retry ratio ({}), using {}%", e.getMessage(), ratio);
+        }
+
+        RetryPolicy retryPolicy = new RetryPolicy(maxAttempts, backoffBase, backoffMax, budget, ratio);
+
+        int breakerWindow = 20;
+        try {
+            breakerWindow = Utils.getEnv("APP_BREAKER_WINDOW", 0, 1000, breakerWindow); // between 0 (disabled) and 1000 calls
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get circuit breaker window ({}), using {} calls", e.getMessage(), breakerWindow);
+        }
+
+        int breakerMinimumCalls = 10;
+        try {
+            breakerMinimumCalls = Utils.getEnv("APP_BREAKER_MIN_CALLS", 1, 1000, breakerMinimumCalls); // between 1 and 1000 calls
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get circuit breaker minimum calls ({}), using {}", e.getMessage(), breakerMinimumCalls);
+        }
+
+        int breakerFailureRate = 50;
+        try {
+            breakerFailureRate = Utils.getEnv("APP_BREAKER_FAILURE_RATE", 1, 100, breakerFailureRate); // between 1% and 100%
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get circuit breaker failure rate ({}), using {}%", e.getMessage(), breakerFailureRate);
+        }
+
+        int breakerSlowRate = 80;
+        try {
+            breakerSlowRate = Utils.getEnv("APP_BREAKER_SLOW_RATE", 1, 100, breakerSlowRate); // between 1% and 100%
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get circuit breaker slow call rate ({}), using {}%", e.getMessage(), breakerSlowRate);
+        }
+
+        int breakerSlowCall = 10*1000; // 10 seconds
+        try {
+            breakerSlowCall = Utils.getEnv("APP_BREAKER_SLOW_CALL", 100, 300*1000, breakerSlowCall); // between 100 ms and 300 seconds (5 minutes)
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get circuit breaker slow call duration ({}), using {} ms", e.getMessage(), breakerSlowCall);
+        }
+
+        int breakerOpenDuration = 30*1000; // 30 seconds
+        try {
+            breakerOpenDuration = Utils.getEnv("APP_BREAKER_OPEN_DURATION", 1000, 600*1000, breakerOpenDuration); // between 1 and 600 seconds (10 minutes)
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get circuit breaker open duration ({}), using {} ms", e.getMessage(), breakerOpenDuration);
+        }
+
+        int breakerHalfOpenCalls = 3;
+        try {
+            breakerHalfOpenCalls = Utils.getEnv("APP_BREAKER_HALF_OPEN_CALLS", 1, 100, breakerHalfOpenCalls); // between 1 and 100 trial calls
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get circuit breaker half-open calls ({}), using {}", e.getMessage(), breakerHalfOpenCalls);
+        }
+
+        int window = 0; // disabled
+        try {
+            window = Utils.getEnv("APP_COALESCE_WINDOW", 0, 1000, window); // between 0 (disabled) and 1000 ms
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get coalesce window ({}), using {} ms", e.getMessage(), window);
+        }
+
+        int maxSize = 20;
+        try {
+            maxSize = Utils.getEnv("APP_COALESCE_MAX_SIZE", 1, 100, maxSize); // between 1 and 100 hashes
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get coalesce maximum size ({}), using {}", e.getMessage(), maxSize);
+        }
+
+        RequestCoalescer coalescer = null;
+        if (window > 0) {
+            coalescer = new RequestCoalescer(window, maxSize);
+        }
+
+        File directory = new File(Utils.getEnv("APP_SPOOL_DIR", System.getProperty("java.io.tmpdir")));
+        if (!directory.isDirectory() || !directory.canWrite()) {
+            LOGGER.error("Spool directory {} is not a writable directory", directory);
+
+            System.exit(1);
+        }
+
+        int threshold = 10485760;
+        try {
+            threshold = Utils.getEnv("APP_SPOOL_THRESHOLD", 0, 1073741824, threshold); // between 0 and 1 GB
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get spool threshold ({}), using {}", e.getMessage(), threshold);
+        }
+
+        int maxUploadSize = 104857600;
+        try {
+            maxUploadSize = Utils.getEnv("APP_MAX_UPLOAD_SIZE", 1048576, 1073741824, maxUploadSize); // between 1 MB and 1 GB
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get maximum upload size ({}), using {}", e.getMessage(), maxUploadSize);
+        }
+
+        Spool spool = new Spool(directory, threshold);
+        try {
+            spool.start();
+        } catch (IOException e) {
+            LOGGER.error("Unable to create spool directory", e);
+
+            System.exit(1);
+        }
+
+        boolean partial = Boolean.parseBoolean(Utils.getEnv("APP_PDF_PARTIAL", "true"));
+
+        PdfReaderFactory readerFactory = new PdfReaderFactory(partial);
+
+        int imageMemory = 16777216;
+        try {
+            imageMemory = Utils.getEnv("APP_IMAGE_CACHE_MEMORY", 0, 268435456, imageMemory); // between 0 and 256 MB
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get image cache memory ({}), using {}", e.getMessage(), imageMemory);
+        }
+
+        int imageScale = 0;
+        try {
+            imageScale = Utils.getEnv("APP_IMAGE_MAX_SCALE", 0, 8, imageScale); // between 0 and 8 pixels per point
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get image maximum scale ({}), using {}", e.getMessage(), imageScale);
+        }
+
+        ImageCache imageCache = new ImageCache(imageMemory, imageScale);
+
+        int appearanceMemory = 16777216;
+        try {
+            appearanceMemory = Utils.getEnv("APP_APPEARANCE_CACHE_MEMORY", 0, 268435456, appearanceMemory); // between 0 and 256 MB
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get appearance cache memory ({}), using {}", e.getMessage(), appearanceMemory);
+        }
+
+        AppearanceCache appearanceCache = new AppearanceCache(imageCache, appearanceMemory);
+
+        int ttl = 300000;
+        try {
+            ttl = Utils.getEnv("APP_SESSION_TTL", 10000, 3600000, ttl); // between 10 seconds and 1 hour
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get session TTL ({}), using {}", e.getMessage(), ttl);
+        }
+
+        int maxSessions = 1000;
+        try {
+            maxSessions = Utils.getEnv("APP_SESSION_MAX_SIZE", 1, 100000, maxSessions); // between 1 and 100000 sessions
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get session maximum size ({}), using {}", e.getMessage(), maxSessions);
+        }
+
+        int maxMemory = 268435456;
+        try {
+            maxMemory = Utils.getEnv("APP_SESSION_MAX_MEMORY", 1048576, 1073741824, maxMemory); // between 1 MB and 1 GB
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get session maximum memory ({}), using {}", e.getMessage(), maxMemory);
+        }
+
+        SessionStore sessions = new SessionStore(ttl, maxSessions, maxMemory);
+
+        int retryTtl = 60000;
+        try {
+            retryTtl = Utils.getEnv("APP_RETRY_TTL", 0, 600000, retryTtl); // between 0 and 10 minutes
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get retry TTL ({}), using {}", e.getMessage(), retryTtl);
+        }
+
+        int maxRetries = 200;
+        try {
+            maxRetries = Utils.getEnv("APP_RETRY_MAX_SIZE", 1, 100000, maxRetries); // between 1 and 100000 prepared signatures
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get retry maximum size ({}), using {}", e.getMessage(), maxRetries);
+        }
+
+        // fills up during Segpres incidents, kept well below the Prepare sessions
+        int maxRetryMemory = 67108864;
+        try {
+            maxRetryMemory = Utils.getEnv("APP_RETRY_MAX_MEMORY", 1048576, 1073741824, maxRetryMemory); // between 1 MB and 1 GB
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get retry maximum memory ({}), using {}", e.getMessage(), maxRetryMemory);
+        }
+
+        SessionStore retries = null;
+        if (retryTtl > 0) {
+            retries = new SessionStore(retryTtl, maxRetries, maxRetryMemory);
+        }
+
+        MetricsRegistry metrics = new MetricsRegistry();
+
+        metrics.counter("fea_certificate_hits_total", "The placeholder certificate requests served from the cache.", certificateProvider::getHits);
+        metrics.counter("fea_certificate_misses_total", "The placeholder certificate requests generating a certificate.", certificateProvider::getMisses);
+        metrics.counter("fea_certificate_rotations_total", "The placeholder certificate rotations.", certificateProvider::getRotations);
+
+        metrics.gauge("fea_http_leased_connections", "The Segpres connections leased to requests.", client::getLeased);
+        metrics.gauge("fea_http_available_connections", "The idle Segpres connections ready to be reused.", client::getAvailable);
+        metrics.gauge("fea_http_pending_requests", "The Segpres requests waiting for a connection.", client::getPending);
+        metrics.gauge("fea_http_queued_requests", "The Segpres requests waiting for an executor thread.", client::getQueued);
+        metrics.counter("fea_http_rejected_requests_total", "The Segpres requests rejected while too many were waiting.", client::getRejected);
+
+        metrics.counter("fea_segpres_retries_total", "The Segpres attempts retried after a transient failure.", retryPolicy::getRetries);
+        metrics.counter("fea_segpres_retries_throttled_total", "The Segpres retries denied by the retry budget.", retryPolicy::getThrottled);
+        metrics.gauge("fea_segpres_retry_tokens", "The tokens left in the Segpres retry budget.", retryPolicy::getTokens);
+
+        CircuitBreaker circuitBreaker = new CircuitBreaker(breakerWindow, breakerMinimumCalls, breakerFailureRate, breakerSlowRate, breakerSlowCall, breakerOpenDuration, breakerHalfOpenCalls, metrics);
+
+        if (coalescer != null) {
+            RequestCoalescer c = coalescer;
+
+            metrics.counter("fea_coalescer_batches_total", "The coalesced Segpres requests sent.", c::getBatches);
+            metrics.counter("fea_coalescer_hashes_total", "The hashes sent in coalesced Segpres requests.", c::getHashes);
+            metrics.gauge("fea_coalescer_largest_batch", "The largest coalesced Segpres request.", c::getLargest);
+            metrics.counter("fea_coalescer_waited_seconds_total", "The latency added by the coalesce window.", () -> c.getWaited() / 1000.0);
+        }
+
+        metrics.gauge("fea_sessions", "The prepared signatures waiting for Complete.", sessions::getSize);
+        metrics.gauge("fea_sessions_memory_bytes", "The heap held by the prepared signatures waiting for Complete.", sessions::getMemory);
+        metrics.counter("fea_sessions_evictions_total", "The prepared signatures evicted by the size or memory budget.", sessions::getEvictions);
+        metrics.counter("fea_sessions_expirations_total", "The prepared signatures expired.", sessions::getExpirations);
+
+        if (retries != null) {
+            SessionStore r = retries;
+
+            metrics.gauge("fea_retry_sessions", "The prepared signatures kept for a retry.", r::getSize);
+            metrics.gauge("fea_retry_sessions_memory_bytes", "The heap held by the prepared signatures kept for a retry.", r::getMemory);
+            metrics.counter("fea_retry_sessions_evictions_total", "The prepared signatures kept for a retry evicted by the size or memory budget.", r::getEvictions);
+            metrics.counter("fea_retry_sessions_expirations_total", "The prepared signatures kept for a retry expired.", r::getExpirations);
+        }
+
+        metrics.counter("fea_image_cache_hits_total", "The signature images served from the cache.", imageCache::getHits);
+        metrics.counter("fea_image_cache_misses_total", "The signature images parsed.", imageCache::getMisses);
+        metrics.counter("fea_image_cache_evictions_total", "The signature images evicted by the memory budget.", imageCache::getEvictions);
+        metrics.gauge("fea_image_cache_memory_bytes", "The memory held by the cached signature images.", imageCache::getMemory);
+
+        metrics.counter("fea_appearance_cache_hits_total", "The visible appearances served from the cache.", appearanceCache::getHits);
+        metrics.counter("fea_appearance_cache_misses_total", "The visible appearances rendered.", appearanceCache::getMisses);
+        metrics.counter("fea_appearance_cache_evictions_total", "The visible appearances evicted by the memory budget.", appearanceCache::getEvictions);
+        metrics.gauge("fea_appearance_cache_memory_bytes", "The memory held by the cached visible appearances.", appearanceCache::getMemory);
+
+        SignerService service = new SignerService(certificateProvider, keyMaterialService, client, coalescer, spool, maxUploadSize, readerFactory, appearanceCache, sessions, retries, retryPolicy, circuitBreaker, virtual ? new Semaphore(stampPermits, true) : null, metrics);
+
+        SignerServer server = new SignerServer(8080, virtual, nThreads, reserved, maxWait, size, maxQueued, maxQueueTime, maxInFlight, service, metrics);
+
+        int metricsPort = 9090;
+        try {
+            metricsPort = Utils.getEnv("APP_METRICS_PORT", 0, 65535, metricsPort); // 0 to disable
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Unable to get metrics port ({}), using {}", e.getMessage(), metricsPort);
+        }
+
+        if (metricsPort > 0) {
+            new MetricsServer(metricsPort, metrics).start();
+        }
+
         server.start();
         server.blockUntilShutdown();
     }
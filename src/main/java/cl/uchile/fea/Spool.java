@@ -0,0 +1,211 @@
+package cl.uchile.fea;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The spool directory, where large documents are kept on disk instead of the heap.
+ * <p>
+ * Each process spools to its own subdirectory, holding a lock on a file inside it while running.
+ * A subdirectory whose lock can be taken belongs to a process that exited without cleaning up (e.g.
+ * killed or crashed), so it is purged at startup whatever its age.
+ */
+public class Spool {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(Spool.class);
+
+    /**
+     * The file prefix.
+     */
+    private static final String PREFIX = "firmador-";
+    /**
+     * The lock file of a process subdirectory.
+     */
+    private static final String LOCK = ".lock";
+    /**
+     * The age after which a left over file of the shared directory (spooled before the process
+     * subdirectories) is purged (in milliseconds).
+     */
+    private static final long MAX_AGE = TimeUnit.HOURS.toMillis(1);
+    /**
+     * The age after which a process subdirectory without a lock file is purged, so a process still
+     * creating its lock file is left alone (in milliseconds).
+     */
+    private static final long GRACE = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * The shared directory.
+     */
+    private final File directory;
+    /**
+     * The document size from which the stamping output is spooled (in bytes).
+     */
+    private final long threshold;
+
+    /**
+     * The process subdirectory (null until started).
+     */
+    private volatile File processDirectory;
+    /**
+     * The lock file channel (null until started).
+     */
+    private FileChannel channel;
+
+    /**
+     * Creates the spool.
+     * @param directory The directory
+     * @param threshold The document size from which the stamping output is spooled (in bytes)
+     */
+    public Spool(File directory, long threshold) {
+        this.directory = directory;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Gets whether the stamping output of a document is spooled to disk.
+     * @param size The document size (in bytes)
+     * @return Whether the output is spooled
+     */
+    public boolean exceeds(long size) {
+        return size >= threshold;
+    }
+
+    /**
+     * Creates and locks the process subdirectory, then purges the files left over by the previous
+     * processes.
+     * @throws IOException if the subdirectory or its lock cannot be created
+     */
+    public void start() throws IOException {
+        File dir = Files.createTempDirectory(directory.toPath(), PREFIX).toFile();
+
+        channel = FileChannel.open(new File(dir, LOCK).toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.lock(); // released by the operating system when the process exits
+
+        processDirectory = dir;
+
+        LOGGER.info("Spooling to {}", dir);
+
+        purge();
+    }
+
+    /**
+     * Deletes the subdirectories of the processes that are no longer running, and the files of the
+     * shared directory older than the maximum age.
+     */
+    private void purge() {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(PREFIX));
+        if (files == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            if (file.equals(processDirectory)) {
+                continue;
+            }
+
+            if (file.isDirectory()) {
+                if (isOrphaned(file, now)) {
+                    LOGGER.info("Purging left over spool directory {}", file);
+
+                    deleteDirectory(file);
+                }
+            } else if (now - file.lastModified() > MAX_AGE) {
+                LOGGER.info("Purging left over spool file {}", file);
+
+                delete(file);
+            }
+        }
+    }
+
+    /**
+     * Gets whether a process subdirectory was left over, i.e. no process holds its lock.
+     * @param dir The subdirectory
+     * @param now The current time (in milliseconds)
+     * @return Whether the subdirectory was left over
+     */
+    private boolean isOrphaned(File dir, long now) {
+        File lock = new File(dir, LOCK);
+        if (!lock.exists()) {
+            return now - dir.lastModified() > GRACE;
+        }
+
+        try (FileChannel other = FileChannel.open(lock.toPath(), StandardOpenOption.WRITE)) {
+            return other.tryLock() != null; // released when closed
+        } catch (IOException e) {
+            LOGGER.warn("Unable to check spool directory {} ({})", dir, e.getMessage());
+
+            return false;
+        }
+    }
+
+    /**
+     * Deletes a process subdirectory and its files.
+     * @param dir The subdirectory
+     */
+    private void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                delete(file);
+            }
+        }
+
+        delete(dir);
+    }
+
+    /**
+     * Creates an empty spool file in the process subdirectory.
+     * @param name The name hint
+     * @return The file
+     * @throws IOException if the file cannot be created
+     */
+    public File createFile(String name) throws IOException {
+        File dir = processDirectory;
+        if (dir == null) {
+            throw new IOException("Spool not started");
+        }
+
+        return Files.createTempFile(dir.toPath(), PREFIX + name + "-", ".pdf").toFile();
+    }
+
+    /**
+     * Deletes the spool file, ignoring null or already deleted files.
+     * @param file The file
+     */
+    public void delete(File file) {
+        if (file != null && file.exists() && !file.delete()) {
+            LOGGER.warn("Unable to delete spool file {}", file);
+        }
+    }
+
+    /**
+     * Deletes the process subdirectory and releases its lock.
+     */
+    public void shutdown() {
+        File dir = processDirectory;
+        if (dir == null) {
+            return;
+        }
+
+        processDirectory = null;
+
+        deleteDirectory(dir);
+
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to release spool lock ({})", e.getMessage());
+        }
+    }
+}
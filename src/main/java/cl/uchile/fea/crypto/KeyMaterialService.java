@@ -0,0 +1,200 @@
+package cl.uchile.fea.crypto;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.Base64;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+
+import org.bouncycastle.util.io.pem.PemObject;
+import org.bouncycastle.util.io.pem.PemReader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The key material service.
+ * <p>
+ * Loads the RSA private key used to decrypt the passwords once, reloads it when the file changes and
+ * keeps a pool of initialized decrypt ciphers, so the hot path does no disk I/O nor key parsing.
+ */
+public class KeyMaterialService {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(KeyMaterialService.class);
+
+    /**
+     * The cipher transformation.
+     */
+    private static final String TRANSFORMATION = "RSA/ECB/PKCS1Padding";
+
+    /**
+     * The key file.
+     */
+    private final File file;
+    /**
+     * The reload check interval (in milliseconds).
+     */
+    private final long interval;
+    /**
+     * The reload scheduler.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * The current key material (null until the key is loaded).
+     */
+    private volatile Material material;
+
+    /**
+     * Creates a key material service.
+     * @param file The RSA private key file in PKCS #8 standard
+     * @param interval The reload check interval (in milliseconds)
+     */
+    public KeyMaterialService(File file, long interval) {
+        this.file = file;
+        this.interval = interval;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "key-material");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Loads the key and schedules the reload check.
+     * <p>
+     * A missing file is allowed (only unattended requests without password can be served), but an
+     * unreadable or invalid one fails here instead of on the first request.
+     * @throws IOException if the key file cannot be read
+     * @throws GeneralSecurityException if the key is invalid
+     */
+    public void start() throws IOException, GeneralSecurityException {
+        if (file.exists()) {
+            load();
+        } else {
+            LOGGER.warn("Private key {} not found, passwords cannot be decrypted", file);
+        }
+
+        scheduler.scheduleWithFixedDelay(this::reload, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the reload check.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Decrypts the password.
+     * @param encryptedPassword The password encrypted with RSA/PKCS1 and encoded in base64
+     * @return The password
+     * @throws GeneralSecurityException if the key is not loaded or the password cannot be decrypted
+     */
+    public String decrypt(String encryptedPassword) throws GeneralSecurityException {
+        Material current = material;
+        if (current == null) {
+            throw new InvalidKeyException(String.format("Private key %s is not loaded", file));
+        }
+
+        Cipher cipher = current.ciphers.poll();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, current.key);
+        }
+
+        byte[] decryptedPassword = cipher.doFinal(Base64.getDecoder().decode(encryptedPassword));
+
+        // only reached on success, a failed cipher is discarded
+        if (material == current) {
+            current.ciphers.offer(cipher);
+        }
+
+        return new String(decryptedPassword, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reloads the key if the file changed, keeping the current one on failure.
+     */
+    private void reload() {
+        Material current = material;
+        if (!file.exists() || (current != null && current.lastModified == file.lastModified())) {
+            return;
+        }
+
+        try {
+            load();
+
+            LOGGER.info("Private key {} reloaded", file);
+        } catch (Exception e) {
+            LOGGER.error("Unable to reload private key {}", file, e);
+        }
+    }
+
+    /**
+     * Reads the RSA private key in PKCS #8 standard.
+     * @throws IOException if the key file cannot be read
+     * @throws GeneralSecurityException if the key is invalid
+     */
+    private void load() throws IOException, GeneralSecurityException {
+        long lastModified = file.lastModified();
+
+        KeyFactory factory = KeyFactory.getInstance("RSA");
+
+        try (FileReader keyReader = new FileReader(file); PemReader pemReader = new PemReader(keyReader)) {
+            PemObject pemObject = pemReader.readPemObject();
+            if (pemObject == null) {
+                throw new InvalidKeyException(String.format("Got no PEM object in %s", file));
+            }
+
+            byte[] content = pemObject.getContent();
+            PKCS8EncodedKeySpec privKeySpec = new PKCS8EncodedKeySpec(content);
+
+            PrivateKey key = factory.generatePrivate(privKeySpec);
+
+            // fail early if the key cannot be used for decryption
+            Cipher.getInstance(TRANSFORMATION).init(Cipher.DECRYPT_MODE, key);
+
+            material = new Material(key, lastModified);
+        }
+    }
+
+    /**
+     * The loaded key and its pool of initialized ciphers.
+     */
+    private static final class Material {
+
+        /**
+         * The private key.
+         */
+        private final PrivateKey key;
+        /**
+         * The key file modification time.
+         */
+        private final long lastModified;
+        /**
+         * The initialized decrypt ciphers.
+         */
+        private final Queue<Cipher> ciphers = new ConcurrentLinkedQueue<>();
+
+        Material(PrivateKey key, long lastModified) {
+            this.key = key;
+            this.lastModified = lastModified;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+package cl.uchile.fea.grpc;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.IntSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cl.uchile.fea.lib.proto.SignBatchRequest;
+import cl.uchile.fea.lib.proto.SignHashRequest;
+import cl.uchile.fea.lib.proto.SignRequest;
+import cl.uchile.fea.lib.proto.SignStreamRequest;
+import cl.uchile.fea.metrics.Counter;
+import cl.uchile.fea.metrics.MetricsRegistry;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor.MethodType;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+/**
+ * The server interceptor shedding the calls while the signer executor is saturated.
+ * <p>
+ * A call is rejected with {@code RESOURCE_EXHAUSTED} before its request is read if too many tasks
+ * are waiting for a thread (for a stamping permit on virtual threads), or if it waited longer than the queue deadline (once started and, for
+ * the unary methods, again when the request is complete and the method is about to run), so a
+ * burst of large documents is not kept in memory until the clients give up. The rejection carries
+ * a retry pushback, the gRPC equivalent of a reply with {@code retry} set.
+ * <p>
+ * The queues only show the calls waiting for a signer thread: a prepared document then waits for
+ * Segpres on another executor, and a streamed file is received before it is queued. Each admitted
+ * call holds an in-flight permit until it completes or is cancelled, so the calls held anywhere in
+ * the server are bounded too.
+ * <p>
+ * The unattended signatures wait behind the attended ones, so they only count against an unattended
+ * request. Its priority is taken from the {@code fea-attended} header when the call is started, so
+ * it is rejected before its file is read, or else from its first message: a unary request is then
+ * rejected before the method runs, and the header of a streamed file before any chunk is spooled.
+ * @see <a href="https://github.com/grpc/proposal/blob/master/A6-client-retries.md#pushback">Pushback</a>
+ */
+class AdmissionInterceptor implements ServerInterceptor {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdmissionInterceptor.class);
+
+    /**
+     * The retry pushback trailer.
+     */
+    static final Metadata.Key<String> RETRY_PUSHBACK = Metadata.Key.of("grpc-retry-pushback-ms", Metadata.ASCII_STRING_MARSHALLER);
+
+    /**
+     * The header telling whether the signatures of the call are attended ({@code true} or
+     * {@code false}), read before the request.
+     */
+    static final Metadata.Key<String> ATTENDED = Metadata.Key.of("fea-attended", Metadata.ASCII_STRING_MARSHALLER);
+
+    /**
+     * The pushback of a rejected call (in milliseconds).
+     */
+    private static final long PUSHBACK = 1000;
+
+    /**
+     * The getter of the tasks waiting ahead of a new attended signature.
+     */
+    private final IntSupplier queuedAhead;
+    /**
+     * The getter of the tasks waiting.
+     */
+    private final IntSupplier queued;
+    /**
+     * The maximum tasks waiting for a thread.
+     */
+    private final int maxQueued;
+    /**
+     * The maximum wait for a thread (in nanoseconds, 0 if unlimited).
+     */
+    private final long maxQueueTime;
+    /**
+     * The maximum calls admitted and not finished.
+     */
+    private final int maxInFlight;
+    /**
+     * The in-flight permits, one by admitted call not finished yet.
+     */
+    private final Semaphore inFlight;
+
+    /**
+     * The rejected calls by reason.
+     */
+    private final Counter rejected;
+
+    /**
+     * Creates the interceptor, registering its metrics.
+     * @param queuedAhead The getter of the tasks waiting ahead of a new attended signature
+     * @param queued The getter of the tasks waiting
+     * @param maxQueued The maximum tasks waiting for a thread
+     * @param maxQueueTime The maximum wait for a thread (in milliseconds, 0 if unlimited)
+     * @param maxInFlight The maximum calls admitted and not finished
+     * @param metrics The metrics registry
+     */
+    AdmissionInterceptor(IntSupplier queuedAhead, IntSupplier queued, int maxQueued, long maxQueueTime, int maxInFlight, MetricsRegistry metrics) {
+        this.queuedAhead = queuedAhead;
+        this.queued = queued;
+        this.maxQueued = maxQueued;
+        this.maxQueueTime = TimeUnit.MILLISECONDS.toNanos(maxQueueTime);
+
+        this.maxInFlight = maxInFlight;
+
+        inFlight = new Semaphore(maxInFlight);
+
+        metrics.gauge("fea_admission_in_flight_calls", "The gRPC calls admitted and not finished.", () -> maxInFlight - inFlight.availablePermits());
+        rejected = metrics.counter("fea_admission_rejected_total", "The gRPC calls rejected while the signer executor is saturated.", "reason");
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+        int ahead = queuedAhead.getAsInt();
+        if (ahead > maxQueued) {
+            reject(call, "queue_full", String.format("Server saturated, %d tasks queued", ahead));
+
+            return new ServerCall.Listener<ReqT>() {};
+        }
+
+        String attended = headers.get(ATTENDED);
+        if ("false".equalsIgnoreCase(attended) && isFull(call)) {
+            return new ServerCall.Listener<ReqT>() {};
+        }
+
+        if (isExpired()) {
+            reject(call, "queue_timeout", "Server saturated, call queued for too long");
+
+            return new ServerCall.Listener<ReqT>() {};
+        }
+
+        if (!inFlight.tryAcquire()) {
+            reject(call, "in_flight", String.format("Server saturated, %d calls in flight", maxInFlight));
+
+            return new ServerCall.Listener<ReqT>() {};
+        }
+
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(call, headers);
+        } catch (RuntimeException e) {
+            inFlight.release();
+
+            throw e;
+        }
+
+        if (call.getMethodDescriptor().getType() != MethodType.UNARY) {
+            // the streaming methods already run, only the first message can still be dropped
+            return new AdmittedListener<ReqT>(listener) {
+
+                /**
+                 * Whether the first message was received.
+                 */
+                private boolean started;
+                /**
+                 * Whether the call was rejected, the next messages are dropped.
+                 */
+                private boolean dropped;
+
+                @Override
+                public void onMessage(ReqT message) {
+                    if (!started) {
+                        started = true;
+
+                        dropped = attended == null && !isAttended(message) && isFull(call);
+                    }
+
+                    if (!dropped) {
+                        super.onMessage(message);
+                    }
+                }
+
+                @Override
+                public void onHalfClose() {
+                    if (!dropped) {
+                        super.onHalfClose();
+                    }
+                }
+            };
+        }
+
+        return new AdmittedListener<ReqT>(listener) {
+
+            /**
+             * Whether the request is unattended.
+             */
+            private boolean unattended = "false".equalsIgnoreCase(attended);
+
+            @Override
+            public void onMessage(ReqT message) {
+                if (attended == null) {
+                    unattended = !isAttended(message);
+                }
+
+                super.onMessage(message);
+            }
+
+            @Override
+            public void onHalfClose() {
+                if (unattended && isFull(call)) {
+                    return;
+                }
+
+                if (isExpired()) {
+                    reject(call, "queue_timeout", "Server saturated, request queued for too long");
+
+                    return;
+                }
+
+                super.onHalfClose();
+            }
+        };
+    }
+
+    /**
+     * The listener of an admitted call, releasing its in-flight permit once the call is finished.
+     * @param <ReqT> The request type
+     */
+    private class AdmittedListener<ReqT> extends SimpleForwardingServerCallListener<ReqT> {
+
+        /**
+         * Whether the permit was released.
+         */
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        AdmittedListener(ServerCall.Listener<ReqT> delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void onComplete() {
+            try {
+                super.onComplete();
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public void onCancel() {
+            try {
+                super.onCancel();
+            } finally {
+                release();
+            }
+        }
+
+        /**
+         * Releases the in-flight permit, once.
+         */
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                inFlight.release();
+            }
+        }
+    }
+
+    /**
+     * Gets whether the request is attended.
+     * @param request The request
+     * @return Whether the request is attended (true if unknown, e.g. a Complete request)
+     */
+    static boolean isAttended(Object request) {
+        if (request instanceof SignRequest) {
+            return ((SignRequest) request).getAttended();
+        }
+
+        if (request instanceof SignBatchRequest) {
+            return ((SignBatchRequest) request).getAttended();
+        }
+
+        if (request instanceof SignHashRequest) {
+            return ((SignHashRequest) request).getAttended();
+        }
+
+        if (request instanceof SignStreamRequest && ((SignStreamRequest) request).hasHeader()) {
+            return ((SignStreamRequest) request).getHeader().getAttended();
+        }
+
+        return true;
+    }
+
+    /**
+     * Rejects an unattended call if too many tasks are waiting.
+     * @param call The call
+     * @return Whether the call was rejected
+     */
+    private boolean isFull(ServerCall<?, ?> call) {
+        int waiting = queued.getAsInt();
+        if (waiting <= maxQueued) {
+            return false;
+        }
+
+        reject(call, "queue_full", String.format("Server saturated, %d tasks queued", waiting));
+
+        return true;
+    }
+
+    /**
+     * Gets whether the task running on the current thread waited longer than the queue deadline.
+     * @return Whether the queue deadline expired
+     */
+    private boolean isExpired() {
+        return maxQueueTime > 0 && SignerExecutor.getWaited() > maxQueueTime;
+    }
+
+    /**
+     * Closes the call with {@code RESOURCE_EXHAUSTED} and a retry pushback.
+     * @param call The call
+     * @param reason The reason label
+     * @param message The status description
+     */
+    private void reject(ServerCall<?, ?> call, String reason, String message) {
+        LOGGER.warn("Rejecting {} call ({})", call.getMethodDescriptor().getBareMethodName(), message);
+
+        rejected.inc(reason);
+
+        Metadata trailers = new Metadata();
+        trailers.put(RETRY_PUSHBACK, Long.toString(PUSHBACK));
+
+        call.close(Status.RESOURCE_EXHAUSTED.withDescription(message), trailers);
+    }
+}
@@ -0,0 +1,199 @@
+package cl.uchile.fea.grpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.ByteString;
+
+import cl.uchile.fea.lib.proto.SignReply;
+import cl.uchile.fea.lib.proto.SignStreamReply;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+
+/**
+ * The chunked reply: the reply without the file, followed by the signed file in chunks.
+ * <p>
+ * A chunk is only sent while the call is ready, the rest waits for the next on ready event, so a
+ * slow client holds at most the transport buffer instead of the whole document.
+ */
+class ChunkedReply {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkedReply.class);
+
+    /**
+     * The chunk size.
+     */
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * The response observer.
+     */
+    private final ServerCallStreamObserver<SignStreamReply> observer;
+
+    /**
+     * The reply without the file (null until the reply is started).
+     */
+    private SignReply header;
+    /**
+     * The signed file (null if not signed).
+     */
+    private PreparedSignature prepared;
+    /**
+     * The signed file input stream.
+     */
+    private InputStream in;
+    /**
+     * Whether the header was sent.
+     */
+    private boolean started;
+    /**
+     * Whether the reply was completed or cancelled.
+     */
+    private boolean done;
+
+    /**
+     * Creates the chunked reply, registering the flow control handlers (only allowed before the
+     * service method returns).
+     * @param observer The response observer
+     */
+    ChunkedReply(ServerCallStreamObserver<SignStreamReply> observer) {
+        this.observer = observer;
+
+        observer.setOnReadyHandler(this::drain);
+        observer.setOnCancelHandler(this::cancel);
+    }
+
+    /**
+     * Starts the reply.
+     * @param builder The builder (its file is not sent)
+     * @param prepared The prepared signature (null on error), released when the reply ends and only
+     * sent if the reply succeeded
+     */
+    synchronized void start(SignReply.Builder builder, PreparedSignature prepared) {
+        if (done) {
+            if (prepared != null) {
+                prepared.release();
+            }
+
+            return;
+        }
+
+        this.prepared = prepared;
+
+        if (prepared != null && builder.getSuccess()) {
+            try {
+                in = prepared.openSigned();
+            } catch (IOException e) {
+                LOGGER.error("Unable to open signed file", e);
+
+                builder.setSuccess(false);
+                builder.setMessage(e.getMessage());
+            }
+        }
+
+        this.header = builder.clearFile().build();
+
+        drain();
+    }
+
+    /**
+     * Sends chunks while the call is ready.
+     */
+    private synchronized void drain() {
+        if (header == null || done) {
+            return;
+        }
+
+        try {
+            if (!started) {
+                observer.onNext(SignStreamReply.newBuilder().setHeader(header).build());
+
+                started = true;
+            }
+
+            boolean end = in == null;
+
+            byte[] buffer = new byte[CHUNK_SIZE];
+            while (!end && observer.isReady()) {
+                int n = read(buffer);
+                if (n > 0) {
+                    observer.onNext(SignStreamReply.newBuilder().setChunk(ByteString.copyFrom(buffer, 0, n)).build());
+                }
+
+                end = n < buffer.length;
+            }
+
+            if (end) {
+                release();
+
+                observer.onCompleted();
+            }
+        } catch (Exception e) {
+            LOGGER.error("Unable to send chunk", e);
+
+            release();
+
+            observer.onError(Status.INTERNAL.withDescription(e.getMessage()).asRuntimeException());
+        }
+    }
+
+    /**
+     * Releases the signed file when the client cancels the call.
+     */
+    private synchronized void cancel() {
+        if (!done) {
+            LOGGER.warn("Reply cancelled by the client");
+
+            release();
+        }
+    }
+
+    /**
+     * Reads a full chunk (a partial one only at the end of the file).
+     * @param buffer The buffer
+     * @return The number of bytes read
+     * @throws IOException on error
+     */
+    private int read(byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int n = in.read(buffer, total, buffer.length - total);
+            if (n < 0) {
+                break;
+            }
+
+            total += n;
+        }
+
+        return total;
+    }
+
+    /**
+     * Ends the reply, releasing the signed file.
+     */
+    private void release() {
+        done = true;
+
+        if (in != null) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                LOGGER.warn("Unable to close signed file", e);
+            }
+
+            in = null;
+        }
+
+        if (prepared != null) {
+            prepared.release();
+
+            prepared = null;
+        }
+    }
+}
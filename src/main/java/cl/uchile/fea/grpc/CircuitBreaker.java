@@ -0,0 +1,318 @@
+package cl.uchile.fea.grpc;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cl.uchile.fea.metrics.Counter;
+import cl.uchile.fea.metrics.MetricsRegistry;
+
+/**
+ * The Segpres circuit breaker.
+ * <p>
+ * While closed, the outcome of the last calls is kept in a rolling window and the breaker opens
+ * once the failure rate or the slow call rate of the window reaches its threshold. While open,
+ * the calls are rejected without reaching Segpres, so an outage does not hold the signer and
+ * Segpres threads for the whole timeout of every attempt. Once the open duration elapses the
+ * breaker is half-open and lets a few trial calls through: it closes again if they are healthy
+ * and opens again otherwise.
+ * <p>
+ * Each state is a generation: a call records its outcome with the generation it was acquired in,
+ * so a slow call acquired before a transition cannot count as a trial call, nor reopen the breaker
+ * that its trial calls just closed.
+ */
+public class CircuitBreaker {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    /**
+     * The message of the rejected calls.
+     */
+    static final String OPEN_MESSAGE = "Segpres is unavailable (circuit breaker open), please retry later";
+
+    /**
+     * The breaker states.
+     */
+    public enum State {
+        /**
+         * The calls are allowed and recorded.
+         */
+        CLOSED,
+        /**
+         * The calls are rejected.
+         */
+        OPEN,
+        /**
+         * A few trial calls are allowed.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * The exception of a call rejected by the breaker.
+     */
+    public static class OpenException extends Exception {
+
+        public OpenException() {
+            super(OPEN_MESSAGE);
+        }
+    }
+
+    /**
+     * The number of calls of the rolling window (0 if the breaker is disabled).
+     */
+    private final int windowSize;
+    /**
+     * The minimum number of calls recorded before the rates are evaluated.
+     */
+    private final int minimumCalls;
+    /**
+     * The failure rate opening the breaker (percentage).
+     */
+    private final int failureRate;
+    /**
+     * The slow call rate opening the breaker (percentage).
+     */
+    private final int slowRate;
+    /**
+     * The duration of a slow call (in nanoseconds).
+     */
+    private final long slowCall;
+    /**
+     * The duration of the open state (in nanoseconds).
+     */
+    private final long openDuration;
+    /**
+     * The number of trial calls of the half-open state.
+     */
+    private final int halfOpenCalls;
+
+    /**
+     * The failed calls of the rolling window.
+     */
+    private final boolean[] failed;
+    /**
+     * The slow calls of the rolling window.
+     */
+    private final boolean[] slow;
+    /**
+     * The next position of the rolling window.
+     */
+    private int position;
+    /**
+     * The calls recorded (in the rolling window, or the completed trial calls if half-open).
+     */
+    private int calls;
+    /**
+     * The failed calls recorded.
+     */
+    private int failures;
+    /**
+     * The slow calls recorded.
+     */
+    private int slowCalls;
+    /**
+     * The trial calls left to allow while half-open.
+     */
+    private int permits;
+    /**
+     * The time the breaker opened (in nanoseconds).
+     */
+    private long openedAt;
+    /**
+     * The generation, incremented on each transition.
+     */
+    private long generation;
+
+    /**
+     * The state.
+     */
+    private volatile State state = State.CLOSED;
+
+    /**
+     * The transitions by target state.
+     */
+    private final Counter transitions;
+    /**
+     * The rejected calls.
+     */
+    private final Counter rejected;
+
+    /**
+     * Creates a circuit breaker.
+     * @param windowSize The number of calls of the rolling window (0 to disable the breaker)
+     * @param minimumCalls The minimum number of calls recorded before the rates are evaluated
+     * @param failureRate The failure rate opening the breaker (percentage)
+     * @param slowRate The slow call rate opening the breaker (percentage)
+     * @param slowCall The duration of a slow call (in milliseconds)
+     * @param openDuration The duration of the open state (in milliseconds)
+     * @param halfOpenCalls The number of trial calls of the half-open state
+     * @param metrics The metrics registry
+     */
+    public CircuitBreaker(int windowSize, int minimumCalls, int failureRate, int slowRate, long slowCall, long openDuration, int halfOpenCalls, MetricsRegistry metrics) {
+        this.windowSize = windowSize;
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRate = failureRate;
+        this.slowRate = slowRate;
+        this.slowCall = TimeUnit.MILLISECONDS.toNanos(slowCall);
+        this.openDuration = TimeUnit.MILLISECONDS.toNanos(openDuration);
+        this.halfOpenCalls = halfOpenCalls;
+
+        failed = new boolean[windowSize];
+        slow = new boolean[windowSize];
+
+        metrics.gauge("fea_segpres_breaker_state", "The Segpres circuit breaker state (0 closed, 1 open, 2 half-open).", () -> state.ordinal());
+        transitions = metrics.counter("fea_segpres_breaker_transitions_total", "The Segpres circuit breaker transitions by target state.", "state");
+        rejected = metrics.counter("fea_segpres_breaker_rejected_total", "The Segpres calls rejected by the circuit breaker.");
+    }
+
+    /**
+     * Gets whether a call may be allowed, without taking a trial call, so a request is rejected
+     * before it is prepared.
+     * @return Whether the breaker is closed, half-open or open for longer than the open duration
+     */
+    public boolean isAvailable() {
+        if (windowSize == 0 || state != State.OPEN) {
+            return true;
+        }
+
+        synchronized (this) {
+            return state != State.OPEN || System.nanoTime() - openedAt >= openDuration;
+        }
+    }
+
+    /**
+     * Acquires a call, moving to half-open if the open duration elapsed.
+     * @return The generation of the call, to record its outcome with
+     * @throws OpenException if the call is rejected
+     */
+    public long acquire() throws OpenException {
+        if (windowSize == 0) {
+            return 0;
+        }
+
+        synchronized (this) {
+            if (state == State.OPEN && System.nanoTime() - openedAt >= openDuration) {
+                transition(State.HALF_OPEN);
+            }
+
+            if (state == State.CLOSED) {
+                return generation;
+            }
+
+            if (state == State.HALF_OPEN && permits > 0) {
+                permits--;
+
+                return generation;
+            }
+        }
+
+        rejected.inc();
+
+        throw new OpenException();
+    }
+
+    /**
+     * Records the outcome of an acquired call, ignored if the breaker moved to another state since.
+     * @param generation The generation of the call
+     * @param failure Whether the call failed (no response or a transient Segpres error)
+     * @param duration The duration of the call (in nanoseconds)
+     */
+    public void record(long generation, boolean failure, long duration) {
+        if (windowSize == 0) {
+            return;
+        }
+
+        boolean slowed = duration >= slowCall;
+
+        synchronized (this) {
+            if (generation != this.generation) {
+                return; // acquired before the last transition
+            }
+
+            switch (state) {
+            case CLOSED:
+                if (calls == windowSize) { // evict the oldest call
+                    failures -= failed[position] ? 1 : 0;
+                    slowCalls -= slow[position] ? 1 : 0;
+                } else {
+                    calls++;
+                }
+
+                failed[position] = failure;
+                slow[position] = slowed;
+                position = (position + 1) % windowSize;
+
+                failures += failure ? 1 : 0;
+                slowCalls += slowed ? 1 : 0;
+
+                if (calls >= minimumCalls && isUnhealthy()) {
+                    transition(State.OPEN);
+                }
+
+                break;
+            case HALF_OPEN:
+                calls++;
+                failures += failure ? 1 : 0;
+                slowCalls += slowed ? 1 : 0;
+
+                if (calls >= halfOpenCalls) {
+                    transition(isUnhealthy() ? State.OPEN : State.CLOSED);
+                }
+
+                break;
+            default:
+                break; // no call is acquired while open
+            }
+        }
+    }
+
+    /**
+     * Gets whether the failure rate or the slow call rate of the recorded calls reached its threshold.
+     * @return Whether the recorded calls are unhealthy
+     */
+    private boolean isUnhealthy() {
+        return failures * 100 >= failureRate * calls || slowCalls * 100 >= slowRate * calls;
+    }
+
+    /**
+     * Moves to a state, resetting the recorded calls (holding the lock).
+     * @param to The state
+     */
+    private void transition(State to) {
+        if (to == State.OPEN) {
+            LOGGER.warn("Opening Segpres circuit breaker for {} ms, {} of {} calls failed and {} were slow",
+                TimeUnit.NANOSECONDS.toMillis(openDuration), failures, calls, slowCalls);
+
+            openedAt = System.nanoTime();
+        } else if (to == State.HALF_OPEN) {
+            LOGGER.info("Half-opening Segpres circuit breaker, allowing {} trial calls", halfOpenCalls);
+
+            permits = halfOpenCalls;
+        } else {
+            LOGGER.info("Closing Segpres circuit breaker, {} of {} trial calls failed and {} were slow", failures, calls, slowCalls);
+        }
+
+        position = 0;
+        calls = 0;
+        failures = 0;
+        slowCalls = 0;
+
+        generation++;
+        state = to;
+
+        transitions.inc(to.name().toLowerCase());
+    }
+
+    /**
+     * Gets the state.
+     * @return The state
+     */
+    public State getState() {
+        return state;
+    }
+}
@@ -0,0 +1,82 @@
+package cl.uchile.fea.grpc;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import cl.uchile.fea.metrics.Counter;
+import cl.uchile.fea.metrics.Histogram;
+import cl.uchile.fea.metrics.MetricsRegistry;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+
+/**
+ * The server interceptor counting the calls in flight and timing them until they are completed or
+ * cancelled (the replies are sent from callbacks, after the service method returns).
+ */
+class MetricsInterceptor implements ServerInterceptor {
+
+    /**
+     * The calls in flight.
+     */
+    private final LongAdder inFlight = new LongAdder();
+    /**
+     * The calls by method.
+     */
+    private final Counter calls;
+    /**
+     * The call durations.
+     */
+    private final Histogram duration;
+
+    /**
+     * Creates the interceptor, registering its metrics.
+     * @param metrics The metrics registry
+     */
+    MetricsInterceptor(MetricsRegistry metrics) {
+        metrics.gauge("fea_grpc_in_flight", "The gRPC calls in progress.", inFlight::sum);
+
+        calls = metrics.counter("fea_grpc_calls_total", "The gRPC calls received.", "method");
+        duration = metrics.histogram("fea_grpc_duration_seconds", "The gRPC call durations, until completed or cancelled.", MetricsRegistry.LATENCY_BUCKETS);
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+        long start = System.nanoTime();
+
+        calls.inc(call.getMethodDescriptor().getBareMethodName());
+        inFlight.increment();
+
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(call, headers);
+        } catch (RuntimeException e) {
+            inFlight.decrement();
+
+            throw e;
+        }
+
+        return new SimpleForwardingServerCallListener<ReqT>(listener) {
+
+            @Override
+            public void onComplete() {
+                end();
+
+                super.onComplete();
+            }
+
+            @Override
+            public void onCancel() {
+                end();
+
+                super.onCancel();
+            }
+
+            private void end() {
+                inFlight.decrement();
+                duration.observeSince(start);
+            }
+        };
+    }
+}
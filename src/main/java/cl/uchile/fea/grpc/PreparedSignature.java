@@ -0,0 +1,149 @@
+package cl.uchile.fea.grpc;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.google.protobuf.ByteString;
+
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.pdf.PdfDictionary;
+import com.itextpdf.text.pdf.PdfName;
+import com.itextpdf.text.pdf.PdfSignatureAppearance;
+import com.itextpdf.text.pdf.PdfString;
+
+import cl.uchile.fea.Spool;
+
+/**
+ * The prepared signature: a stamped PDF waiting for the Segpres signature contents.
+ */
+class PreparedSignature {
+
+    /**
+     * The PDF signature appearance.
+     */
+    private final PdfSignatureAppearance appearance;
+    /**
+     * The output stream, kept in chunks so the signed file is never copied into a single array (null if spooled).
+     */
+    private final ByteString.Output out;
+    /**
+     * The spooled output file (null if the output is on the heap).
+     */
+    private final File signed;
+    /**
+     * The heap held by the source file (0 if spooled).
+     */
+    private final long input;
+    /**
+     * The SHA-256 range stream digest encoded in base64.
+     */
+    private final String hash;
+    /**
+     * The spool.
+     */
+    private final Spool spool;
+    /**
+     * The spooled source file (null if the source is on the heap).
+     */
+    private final File source;
+
+    PreparedSignature(PdfSignatureAppearance appearance, ByteString.Output out, File signed, long input, String hash, Spool spool, File source) {
+        this.appearance = appearance;
+        this.out = out;
+        this.signed = signed;
+        this.input = input;
+        this.hash = hash;
+        this.spool = spool;
+        this.source = source;
+    }
+
+    /**
+     * Gets the SHA-256 range stream digest encoded in base64.
+     * @return The hash
+     */
+    String getHash() {
+        return hash;
+    }
+
+    /**
+     * Closes the PDF signature appearance, injecting the signature contents, and deletes the spooled
+     * source file.
+     * @param dictionary The PDF dictionary with the signature contents (null to close with empty contents)
+     * @return Whether the file was signed (false if closed with empty contents)
+     * @throws IOException on error
+     * @throws DocumentException on error
+     */
+    boolean close(PdfDictionary dictionary) throws IOException, DocumentException {
+        try {
+            boolean signed = dictionary != null && dictionary.size() > 0;
+            if (!signed) {
+                dictionary = new PdfDictionary();
+                dictionary.put(PdfName.CONTENTS, new PdfString()); // empty
+            }
+
+            appearance.close(dictionary);
+
+            return signed;
+        } finally {
+            spool.delete(source); // the reader was closed by the appearance
+        }
+    }
+
+    /**
+     * Gets the heap held by the source file and the output.
+     * @return The memory (in bytes)
+     */
+    long getMemory() {
+        return input + (out != null ? out.size() : 0);
+    }
+
+    /**
+     * Gets the size of the signed file.
+     * @return The size (in bytes)
+     */
+    long getSize() {
+        return signed == null ? out.size() : signed.length();
+    }
+
+    /**
+     * Gets the signed file, sharing the output chunks instead of copying them (read into the heap if
+     * spooled).
+     * @return The signed file
+     * @throws IOException if the spooled file cannot be read
+     */
+    ByteString getSigned() throws IOException {
+        if (signed == null) {
+            return out.toByteString();
+        }
+
+        try (InputStream in = new FileInputStream(signed)) {
+            return ByteString.readFrom(in);
+        }
+    }
+
+    /**
+     * Opens the signed file for reading in chunks.
+     * @return The input stream
+     * @throws IOException if the spooled file cannot be opened
+     */
+    InputStream openSigned() throws IOException {
+        if (signed == null) {
+            return out.toByteString().newInput();
+        }
+
+        return new FileInputStream(signed);
+    }
+
+    /**
+     * Releases the signed file once it was sent, deleting the spooled output.
+     */
+    void release() {
+        if (signed == null) {
+            out.reset();
+        } else {
+            spool.delete(signed);
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package cl.uchile.fea.grpc;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import cl.uchile.fea.grpc.SignerExecutor.Priority;
+import cl.uchile.fea.grpc.SignerExecutor.Queued;
+
+/**
+ * The signer executor queue, serving the attended tasks first.
+ * <p>
+ * The tasks are kept in a lane by priority: the attended signatures, the gRPC callbacks (the
+ * priority is only known once the request is read) and the unattended signatures, each served in
+ * order. The unattended tasks never run on more than a limited number of threads, so the reserved
+ * threads are always free for the attended ones, and an unattended task waiting longer than the
+ * maximum wait is served first, so a stream of attended requests does not starve them.
+ */
+class PriorityTaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    /**
+     * The lock.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    /**
+     * The condition signalled when a task may be taken.
+     */
+    private final Condition available = lock.newCondition();
+
+    /**
+     * The lanes, by priority.
+     */
+    private final List<ArrayDeque<Queued>> lanes = new ArrayList<>();
+
+    /**
+     * The maximum unattended tasks running.
+     */
+    private final int maxUnattended;
+    /**
+     * The maximum wait of an unattended task before it is served first (in nanoseconds).
+     */
+    private final long maxWait;
+
+    /**
+     * The unattended tasks running.
+     */
+    private int unattended;
+
+    /**
+     * The unattended tasks served first after the maximum wait.
+     */
+    private final AtomicLong aged = new AtomicLong();
+
+    /**
+     * Creates the queue.
+     * @param maxUnattended The maximum unattended tasks running
+     * @param maxWait The maximum wait of an unattended task before it is served first (in milliseconds)
+     */
+    PriorityTaskQueue(int maxUnattended, long maxWait) {
+        this.maxUnattended = maxUnattended;
+        this.maxWait = TimeUnit.MILLISECONDS.toNanos(maxWait);
+
+        for (int i = 0; i < Priority.values().length; i++) {
+            lanes.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * Gets the next task to run (holding the lock).
+     * @return The task (null if no task may run)
+     */
+    private Queued next() {
+        ArrayDeque<Queued> low = lanes.get(Priority.UNATTENDED.ordinal());
+
+        Queued oldest = unattended < maxUnattended ? low.peek() : null;
+        if (oldest != null && System.nanoTime() - oldest.queued > maxWait) {
+            aged.incrementAndGet();
+
+            return start(low.poll());
+        }
+
+        for (ArrayDeque<Queued> lane : lanes) {
+            if (lane != low && !lane.isEmpty()) {
+                return lane.poll();
+            }
+        }
+
+        if (oldest != null) {
+            return start(low.poll());
+        }
+
+        return null;
+    }
+
+    /**
+     * Counts an unattended task as running (holding the lock).
+     * @param task The task
+     * @return The task
+     */
+    private Queued start(Queued task) {
+        task.running = true;
+        unattended++;
+
+        return task;
+    }
+
+    /**
+     * Releases the thread of a finished task, so a waiting unattended task may run.
+     * <p>
+     * Only the tasks taken from the queue were counted: the executor hands a task directly to a new
+     * thread when one replaces a dead worker.
+     * @param task The task
+     */
+    void done(Runnable task) {
+        if (!(task instanceof Queued) || ((Queued) task).priority != Priority.UNATTENDED) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            Queued queued = (Queued) task;
+            if (!queued.running) {
+                return;
+            }
+
+            queued.running = false;
+            unattended--;
+
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        Queued queued = task instanceof Queued ? (Queued) task : new Queued(task, Priority.DEFAULT);
+
+        lock.lock();
+        try {
+            lanes.get(queued.priority.ordinal()).add(queued);
+
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        return true;
+    }
+
+    @Override
+    public boolean offer(Runnable task, long timeout, TimeUnit unit) {
+        return offer(task);
+    }
+
+    @Override
+    public void put(Runnable task) {
+        offer(task);
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            Runnable task;
+            while ((task = next()) == null) {
+                available.await();
+            }
+
+            available.signal(); // another task may be ready too
+
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+
+        lock.lockInterruptibly();
+        try {
+            Runnable task;
+            while ((task = next()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+
+                nanos = available.awaitNanos(nanos);
+            }
+
+            available.signal();
+
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        lock.lock();
+        try {
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        lock.lock();
+        try {
+            for (ArrayDeque<Queued> lane : lanes) {
+                if (!lane.isEmpty()) {
+                    return lane.peek();
+                }
+            }
+
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object task) {
+        lock.lock();
+        try {
+            for (ArrayDeque<Queued> lane : lanes) {
+                if (lane.remove(task)) {
+                    return true;
+                }
+            }
+
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        lock.lock();
+        try {
+            int n = 0;
+            for (ArrayDeque<Queued> lane : lanes) {
+                while (n < maxElements && !lane.isEmpty()) {
+                    c.add(lane.poll());
+                    n++;
+                }
+            }
+
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public int size() {
+        lock.lock();
+        try {
+            int size = 0;
+            for (ArrayDeque<Queued> lane : lanes) {
+                size += lane.size();
+            }
+
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of tasks waiting in a lane.
+     * @param priority The priority of the lane
+     * @return The tasks
+     */
+    int size(Priority priority) {
+        lock.lock();
+        try {
+            return lanes.get(priority.ordinal()).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets a snapshot of the waiting tasks, by priority.
+     * @return The iterator
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        List<Runnable> tasks = new ArrayList<>();
+
+        lock.lock();
+        try {
+            for (ArrayDeque<Queued> lane : lanes) {
+                tasks.addAll(lane);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return tasks.iterator();
+    }
+
+    /**
+     * Gets the number of unattended tasks running.
+     * @return The tasks
+     */
+    int getUnattended() {
+        lock.lock();
+        try {
+            return unattended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of unattended tasks served first after the maximum wait.
+     * @return The tasks
+     */
+    long getAged() {
+        return aged.get();
+    }
+}
@@ -0,0 +1,267 @@
+package cl.uchile.fea.grpc;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import cl.uchile.fea.segpres.CustomHttpResponse;
+
+/**
+ * The request coalescer.
+ * <p>
+ * Holds the unattended hashes of the same signer for a short window (or until the batch is full) and
+ * sends them in a single Segpres request, completing every waiting call with the shared response.
+ */
+public class RequestCoalescer {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestCoalescer.class);
+
+    /**
+     * The window (in milliseconds).
+     */
+    private final int window;
+    /**
+     * The maximum batch size.
+     */
+    private final int maxSize;
+    /**
+     * The flush scheduler.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * The open batches by key.
+     */
+    private final Map<String, Batch> batches = new HashMap<>();
+
+    /**
+     * The number of batches sent.
+     */
+    private final AtomicLong sent = new AtomicLong();
+    /**
+     * The number of hashes sent.
+     */
+    private final AtomicLong hashes = new AtomicLong();
+    /**
+     * The largest batch sent.
+     */
+    private final AtomicLong largest = new AtomicLong();
+    /**
+     * The total time the hashes waited for their batch (in nanoseconds).
+     */
+    private final AtomicLong waited = new AtomicLong();
+
+    /**
+     * Creates a request coalescer.
+     * @param window The window (in milliseconds)
+     * @param maxSize The maximum batch size
+     */
+    public RequestCoalescer(int window, int maxSize) {
+        this.window = window;
+        this.maxSize = maxSize;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "request-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Submits a hash to the batch of the key.
+     * @param key The key (the signer)
+     * @param hash The hash encoded in base64
+     * @param sender The function sending the hashes of a batch to Segpres
+     * @return The future shared response and the position of the hash in the batch
+     */
+    CompletableFuture<Coalesced> submit(String key, String hash, Function<List<String>, CompletableFuture<CustomHttpResponse>> sender) {
+        Pending pending = new Pending(hash);
+
+        Batch full = null;
+        synchronized (batches) {
+            Batch batch = batches.get(key);
+            if (batch == null) {
+                batch = new Batch(sender);
+                batches.put(key, batch);
+
+                Batch scheduled = batch;
+                scheduler.schedule(() -> flush(key, scheduled), window, TimeUnit.MILLISECONDS);
+            }
+
+            batch.pending.add(pending);
+
+            if (batch.pending.size() >= maxSize) {
+                full = batch;
+            }
+        }
+
+        if (full != null) {
+            flush(key, full);
+        }
+
+        return pending.future;
+    }
+
+    /**
+     * Stops the flush scheduler.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Gets the number of batches sent.
+     * @return The batches
+     */
+    public long getBatches() {
+        return sent.get();
+    }
+
+    /**
+     * Gets the number of hashes sent (divided by the batches gives the mean batch size).
+     * @return The hashes
+     */
+    public long getHashes() {
+        return hashes.get();
+    }
+
+    /**
+     * Gets the largest batch sent.
+     * @return The largest batch size
+     */
+    public long getLargest() {
+        return largest.get();
+    }
+
+    /**
+     * Gets the total latency added by the window (in milliseconds).
+     * @return The waited time
+     */
+    public long getWaited() {
+        return TimeUnit.NANOSECONDS.toMillis(waited.get());
+    }
+
+    /**
+     * Sends the batch, unless it was already sent.
+     * @param key The key
+     * @param batch The batch
+     */
+    private void flush(String key, Batch batch) {
+        synchronized (batches) {
+            if (batches.get(key) != batch) {
+                return; // already sent (full before the window elapsed)
+            }
+
+            batches.remove(key);
+        }
+
+        List<String> list = new ArrayList<>();
+
+        long now = System.nanoTime();
+        for (Pending pending : batch.pending) {
+            list.add(pending.hash);
+
+            waited.addAndGet(now - pending.submittedAt);
+        }
+
+        sent.incrementAndGet();
+        hashes.addAndGet(list.size());
+        largest.accumulateAndGet(list.size(), Math::max);
+
+        LOGGER.debug("Sending {} coalesced hashes", list.size());
+
+        CompletableFuture<CustomHttpResponse> future;
+        try {
+            future = batch.sender.apply(list);
+        } catch (Exception e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+
+        future.whenComplete((response, t) -> {
+            for (int i = 0; i < batch.pending.size(); i++) {
+                Pending pending = batch.pending.get(i);
+                if (t != null) {
+                    pending.future.completeExceptionally(t);
+                } else {
+                    pending.future.complete(new Coalesced(response, i));
+                }
+            }
+        });
+    }
+
+    /**
+     * The shared response and the position of the hash in the batch.
+     */
+    static final class Coalesced {
+
+        /**
+         * The shared HTTP response.
+         */
+        final CustomHttpResponse response;
+        /**
+         * The position of the hash in the request.
+         */
+        final int position;
+
+        Coalesced(CustomHttpResponse response, int position) {
+            this.response = response;
+            this.position = position;
+        }
+    }
+
+    /**
+     * The hashes waiting to be sent together.
+     */
+    private static final class Batch {
+
+        /**
+         * The sender.
+         */
+        private final Function<List<String>, CompletableFuture<CustomHttpResponse>> sender;
+        /**
+         * The pending hashes.
+         */
+        private final List<Pending> pending = new ArrayList<>();
+
+        Batch(Function<List<String>, CompletableFuture<CustomHttpResponse>> sender) {
+            this.sender = sender;
+        }
+    }
+
+    /**
+     * The hash waiting for its batch.
+     */
+    private static final class Pending {
+
+        /**
+         * The hash encoded in base64.
+         */
+        private final String hash;
+        /**
+         * The time when the hash was submitted (in nanoseconds).
+         */
+        private final long submittedAt = System.nanoTime();
+        /**
+         * The future shared response.
+         */
+        private final CompletableFuture<Coalesced> future = new CompletableFuture<>();
+
+        Pending(String hash) {
+            this.hash = hash;
+        }
+    }
+}
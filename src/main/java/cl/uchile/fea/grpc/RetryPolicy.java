@@ -0,0 +1,329 @@
+package cl.uchile.fea.grpc;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.UnknownHostException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+
+import cl.uchile.fea.segpres.CustomHttpResponse;
+import cl.uchile.fea.segpres.models.ErrorResponse;
+
+/**
+ * The Segpres retry policy.
+ * <p>
+ * A failed attempt is retried after an exponential backoff with full jitter, scheduled on a timer
+ * so no thread sleeps while waiting. The retries share a budget (the gRPC retry throttling): every
+ * retryable failure takes a token, every healthy response gives back a fraction of one, and no
+ * retry is made while half of the tokens are spent, so a degraded Segpres is not hit with the
+ * retries of every request on top of the requests themselves.
+ */
+public class RetryPolicy {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(RetryPolicy.class);
+
+    /**
+     * The Segpres error of an invalid request (returned with 500, must not be retried).
+     */
+    static final String INVALID_FORMAT = "ERROR : Formato de contenido o layout incorrecto";
+
+    /**
+     * The scale of the tokens (thousandths of a token, so the ratio is kept in a long).
+     */
+    private static final long SCALE = 1000;
+
+    /**
+     * The maximum attempts (the first one included).
+     */
+    private final int maxAttempts;
+    /**
+     * The backoff of the first retry (in milliseconds).
+     */
+    private final long baseDelay;
+    /**
+     * The maximum backoff (in milliseconds).
+     */
+    private final long maxDelay;
+    /**
+     * The maximum tokens of the budget (scaled, 0 if the budget is disabled).
+     */
+    private final long maxTokens;
+    /**
+     * The fraction of a token given back by each healthy response (scaled).
+     */
+    private final long tokenRatio;
+    /**
+     * The retry scheduler.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * The tokens of the budget (scaled).
+     */
+    private final AtomicLong tokens;
+
+    /**
+     * The number of retries.
+     */
+    private final AtomicLong retries = new AtomicLong();
+    /**
+     * The number of retries denied by the budget.
+     */
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * Creates a retry policy.
+     * @param maxAttempts The maximum attempts (the first one included, 1 to disable the retries)
+     * @param baseDelay The backoff of the first retry (in milliseconds), doubled on each retry
+     * @param maxDelay The maximum backoff (in milliseconds)
+     * @param budget The maximum tokens of the retry budget (0 to disable the budget)
+     * @param ratio The percentage of a token given back by each healthy response
+     */
+    public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay, int budget, int ratio) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+
+        maxTokens = budget * SCALE;
+        tokenRatio = ratio * SCALE / 100;
+
+        tokens = new AtomicLong(maxTokens);
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "segpres-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Executes the request, retrying the retryable failures.
+     * @param request The blocking request
+     * @param executor The executor where each attempt runs
+     * @param attended Whether the signature is attended (its OTP may be consumed by a delivered attempt)
+     * @return The future HTTP response of the last attempt (completed exceptionally with the last
+     * error if no attempt got a response, or with {@link RejectedExecutionException} if the executor
+     * rejected an attempt)
+     */
+    public CompletableFuture<CustomHttpResponse> execute(Callable<CustomHttpResponse> request, Executor executor, boolean attended) {
+        CompletableFuture<CustomHttpResponse> result = new CompletableFuture<>();
+
+        attempt(request, executor, attended, 1, result);
+
+        return result;
+    }
+
+    /**
+     * Runs an attempt, scheduling the next one if it failed and can be retried.
+     * @param request The blocking request
+     * @param executor The executor where the attempt runs
+     * @param attended Whether the signature is attended
+     * @param attempt The attempt (starting at 1)
+     * @param result The future completed by the last attempt
+     */
+    private void attempt(Callable<CustomHttpResponse> request, Executor executor, boolean attended, int attempt, CompletableFuture<CustomHttpResponse> result) {
+        CompletableFuture<CustomHttpResponse> future;
+        try {
+            future = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return request.call();
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e); // too many requests waiting, not retried
+
+            return;
+        }
+
+        future.whenComplete((response, t) -> {
+            Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+
+            boolean retryable = cause != null ? isRetryable(cause, attended) : isRetryable(response, attended);
+            if (!retryable) {
+                if (cause == null) {
+                    deposit(); // Segpres answered, even if the request was invalid
+                }
+            } else {
+                boolean allowed = withdraw(); // even the last attempt takes a token
+
+                if (attempt < maxAttempts) {
+                    if (allowed) {
+                        long delay = getDelay(attempt);
+
+                        LOGGER.warn("Retrying Segpres request in {} ms, attempt {} of {} failed ({})", delay, attempt, maxAttempts,
+                            cause != null ? cause.getMessage() : response.getCode());
+
+                        retries.incrementAndGet();
+
+                        try {
+                            scheduler.schedule(() -> attempt(request, executor, attended, attempt + 1, result), delay, TimeUnit.MILLISECONDS);
+
+                            return;
+                        } catch (Exception e) {
+                            LOGGER.warn("Unable to schedule retry ({})", e.getMessage()); // shutting down
+                        }
+                    } else {
+                        LOGGER.warn("Not retrying Segpres request, retry budget exhausted");
+
+                        throttled.incrementAndGet();
+                    }
+                }
+            }
+
+            if (t != null) {
+                result.completeExceptionally(t);
+            } else {
+                result.complete(response);
+            }
+        });
+    }
+
+    /**
+     * Gets the backoff before the retry: a random delay up to the exponential backoff (full jitter),
+     * so the retries of the requests failed together do not hit Segpres together.
+     * @param attempt The failed attempt (starting at 1)
+     * @return The delay (in milliseconds)
+     */
+    private long getDelay(int attempt) {
+        long backoff = baseDelay;
+        for (int i = 1; i < attempt && backoff < maxDelay; i++) {
+            backoff *= 2;
+        }
+
+        backoff = Math.min(backoff, maxDelay);
+
+        return ThreadLocalRandom.current().nextLong(backoff + 1);
+    }
+
+    /**
+     * Takes a token for a retryable failure.
+     * @return Whether a retry is allowed (more than half of the tokens left)
+     */
+    private boolean withdraw() {
+        if (maxTokens == 0) {
+            return true; // no budget
+        }
+
+        return tokens.updateAndGet(n -> Math.max(0, n - SCALE)) > maxTokens / 2;
+    }
+
+    /**
+     * Gives back a fraction of a token for a healthy response.
+     */
+    private void deposit() {
+        if (maxTokens > 0 && tokens.get() < maxTokens) {
+            tokens.updateAndGet(n -> Math.min(maxTokens, n + tokenRatio));
+        }
+    }
+
+    /**
+     * Gets whether the request error can be retried: any I/O error of an unattended request, or only
+     * the errors raised before the request was delivered if attended (a delivered OTP may be consumed).
+     * @param t The error
+     * @param attended Whether the signature is attended
+     * @return Whether the error is retryable
+     */
+    static boolean isRetryable(Throwable t, boolean attended) {
+        if (!(t instanceof IOException)) {
+            return false; // e.g. an invalid URI
+        }
+
+        if (!attended) {
+            return true;
+        }
+
+        return t instanceof ConnectException ||
+            t instanceof ConnectTimeoutException ||
+            t instanceof ConnectionPoolTimeoutException ||
+            t instanceof UnknownHostException;
+    }
+
+    /**
+     * Gets whether the HTTP response can be retried: a 5xx that is not an invalid request, and only
+     * if unattended (the OTP of an attended request was delivered and may be consumed).
+     * @param response The HTTP response
+     * @param attended Whether the signature is attended
+     * @return Whether the response is retryable
+     */
+    static boolean isRetryable(CustomHttpResponse response, boolean attended) {
+        int code = response.getCode();
+        if (attended || code < HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+            return false;
+        }
+
+        String error = null;
+        try {
+            ErrorResponse errorResponse = new Gson().fromJson(response.getBody(), ErrorResponse.class);
+            if (errorResponse != null) {
+                error = errorResponse.getError();
+            }
+        } catch (Exception e) {
+            // not an error response, retryable
+        }
+
+        return isRetryable(code, error);
+    }
+
+    /**
+     * Gets whether the Segpres error is transient.
+     * @param code The status code
+     * @param error The error (null if unknown)
+     * @return Whether the error is transient (5xx except the invalid request)
+     */
+    static boolean isRetryable(int code, String error) {
+        // BUG: this should be a 4xx error code, but Sepgres returns 500 Internal Server Error
+        return code >= HttpStatus.SC_INTERNAL_SERVER_ERROR && !INVALID_FORMAT.equals(error);
+    }
+
+    /**
+     * Stops the retry scheduler.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Gets the number of retries.
+     * @return The retries
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Gets the number of retries denied by the budget.
+     * @return The throttled retries
+     */
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    /**
+     * Gets the tokens left in the budget.
+     * @return The tokens (0 if the budget is disabled)
+     */
+    public double getTokens() {
+        return (double) tokens.get() / SCALE;
+    }
+}
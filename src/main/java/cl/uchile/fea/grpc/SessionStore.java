@@ -0,0 +1,316 @@
+package cl.uchile.fea.grpc;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The session store.
+ * <p>
+ * Keeps the prepared signatures between the Prepare and Complete calls. The oldest sessions are
+ * evicted when the store exceeds its size or memory budget, and expired ones are swept in the
+ * background, closing their signatures so the spooled files are deleted.
+ */
+public class SessionStore {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionStore.class);
+
+    /**
+     * The time to live (in milliseconds).
+     */
+    private final long ttl;
+    /**
+     * The maximum number of sessions.
+     */
+    private final int maxSize;
+    /**
+     * The maximum heap held by the sessions (in bytes).
+     */
+    private final long maxMemory;
+    /**
+     * The expiration sweeper.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * The sessions by ID, in insertion order (the oldest first).
+     */
+    private final Map<String, Session> sessions = new LinkedHashMap<>();
+    /**
+     * The heap held by the sessions (in bytes).
+     */
+    private long memory;
+
+    /**
+     * The number of sessions evicted by the size or memory budget.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+    /**
+     * The number of sessions expired.
+     */
+    private final AtomicLong expirations = new AtomicLong();
+
+    /**
+     * Creates a session store.
+     * @param ttl The time to live (in milliseconds)
+     * @param maxSize The maximum number of sessions
+     * @param maxMemory The maximum heap held by the sessions (in bytes)
+     */
+    public SessionStore(long ttl, int maxSize, long maxMemory) {
+        this.ttl = ttl;
+        this.maxSize = maxSize;
+        this.maxMemory = maxMemory;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "session-store");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        long period = Math.max(1000, ttl / 10);
+        scheduler.scheduleWithFixedDelay(this::expire, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stores the prepared signature in a new session, evicting the oldest ones if the store is full.
+     * @param prepared The prepared signature
+     * @param rut The RUT
+     * @param attended Whether the signature is attended
+     * @param memory The heap held by the prepared signature (in bytes)
+     * @return The session
+     */
+    Session put(PreparedSignature prepared, String rut, boolean attended, long memory) {
+        Session session = new Session(UUID.randomUUID().toString(), prepared, rut, attended, memory, System.currentTimeMillis() + ttl);
+
+        List<Session> evicted = new ArrayList<>();
+        synchronized (sessions) {
+            sessions.put(session.id, session);
+            this.memory += memory;
+
+            Iterator<Session> iterator = sessions.values().iterator();
+            while ((sessions.size() > maxSize || this.memory > maxMemory) && iterator.hasNext()) {
+                Session oldest = iterator.next();
+                if (oldest == session) {
+                    break; // a single session over the budget is kept
+                }
+
+                iterator.remove();
+                this.memory -= oldest.memory;
+
+                evicted.add(oldest);
+            }
+        }
+
+        evictions.addAndGet(evicted.size());
+
+        for (Session oldest : evicted) {
+            LOGGER.warn("Evicting session of {} (store full)", oldest.rut);
+
+            discard(oldest);
+        }
+
+        return session;
+    }
+
+    /**
+     * Removes the session.
+     * @param id The session ID
+     * @return The session (null if unknown or expired)
+     */
+    Session remove(String id) {
+        Session session;
+        synchronized (sessions) {
+            session = sessions.remove(id);
+            if (session != null) {
+                memory -= session.memory;
+            }
+        }
+
+        if (session != null && session.isExpired(System.currentTimeMillis())) {
+            expirations.incrementAndGet();
+
+            discard(session);
+
+            return null;
+        }
+
+        return session;
+    }
+
+    /**
+     * Removes the session if it belongs to the signer, a session of another signer is kept for its
+     * owner.
+     * @param id The session ID
+     * @param rut The RUT of the caller
+     * @return The session (null if unknown or expired)
+     * @throws SignException if the session belongs to another signer
+     */
+    Session remove(String id, String rut) throws SignException {
+        Session session;
+        synchronized (sessions) {
+            session = sessions.get(id);
+        }
+
+        if (session != null && !session.rut.equals(rut)) {
+            throw new SignException("Got invalid retry token");
+        }
+
+        return remove(id); // only its owner may have removed it meanwhile
+    }
+
+    /**
+     * Stops the expiration sweeper and discards every session.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+
+        List<Session> discarded;
+        synchronized (sessions) {
+            discarded = new ArrayList<>(sessions.values());
+
+            sessions.clear();
+            memory = 0;
+        }
+
+        discarded.forEach(this::discard);
+    }
+
+    /**
+     * Gets the number of sessions.
+     * @return The size
+     */
+    public int getSize() {
+        synchronized (sessions) {
+            return sessions.size();
+        }
+    }
+
+    /**
+     * Gets the heap held by the sessions.
+     * @return The memory (in bytes)
+     */
+    public long getMemory() {
+        synchronized (sessions) {
+            return memory;
+        }
+    }
+
+    /**
+     * Gets the number of sessions evicted by the size or memory budget.
+     * @return The evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Gets the number of sessions expired.
+     * @return The expirations
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * Discards the expired sessions.
+     */
+    private void expire() {
+        long now = System.currentTimeMillis();
+
+        List<Session> expired = new ArrayList<>();
+        synchronized (sessions) {
+            Iterator<Session> iterator = sessions.values().iterator();
+            while (iterator.hasNext()) {
+                Session session = iterator.next();
+                if (!session.isExpired(now)) {
+                    break; // the next ones are younger
+                }
+
+                iterator.remove();
+                memory -= session.memory;
+
+                expired.add(session);
+            }
+        }
+
+        expirations.addAndGet(expired.size());
+
+        expired.forEach(this::discard);
+    }
+
+    /**
+     * Closes the prepared signature of the session with empty contents and releases it.
+     * @param session The session
+     */
+    void discard(Session session) {
+        try {
+            session.prepared.close(null);
+        } catch (Exception e) {
+            LOGGER.warn("Unable to close session signature ({})", e.getMessage());
+        } finally {
+            session.prepared.release();
+        }
+    }
+
+    /**
+     * The prepared signature waiting for the Complete call.
+     */
+    static final class Session {
+
+        /**
+         * The ID.
+         */
+        final String id;
+        /**
+         * The prepared signature.
+         */
+        final PreparedSignature prepared;
+        /**
+         * The RUT.
+         */
+        final String rut;
+        /**
+         * Whether the signature is attended.
+         */
+        final boolean attended;
+        /**
+         * The heap held by the session (in bytes).
+         */
+        final long memory;
+        /**
+         * The expiration (Unix time in milliseconds).
+         */
+        final long expiresAt;
+
+        Session(String id, PreparedSignature prepared, String rut, boolean attended, long memory, long expiresAt) {
+            this.id = id;
+            this.prepared = prepared;
+            this.rut = rut;
+            this.attended = attended;
+            this.memory = memory;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Gets whether the session expired.
+         * @param now The current time (Unix time in milliseconds)
+         * @return Whether the session expired
+         */
+        boolean isExpired(long now) {
+            return now > expiresAt;
+        }
+    }
+}
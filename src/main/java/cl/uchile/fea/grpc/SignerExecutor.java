@@ -0,0 +1,200 @@
+package cl.uchile.fea.grpc;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import cl.uchile.fea.metrics.Histogram;
+import cl.uchile.fea.metrics.MetricsRegistry;
+
+/**
+ * The signer executor, a fixed thread pool serving the attended signatures first and recording
+ * how long each task waited in its queue.
+ * <p>
+ * The queue is not bounded since the gRPC callbacks and the reply completions cannot be dropped,
+ * the calls are bounded instead by the admission interceptor, which reads the wait of the task
+ * running on the current thread.
+ */
+class SignerExecutor extends ThreadPoolExecutor {
+
+    /**
+     * The task priorities, in serving order.
+     */
+    enum Priority {
+        /**
+         * The attended signatures, whose OTP expires within seconds.
+         */
+        ATTENDED,
+        /**
+         * The gRPC callbacks, before the request is read.
+         */
+        DEFAULT,
+        /**
+         * The unattended signatures.
+         */
+        UNATTENDED
+    }
+
+    /**
+     * The queue wait of the task running on the current thread (in nanoseconds).
+     */
+    private static final ThreadLocal<Long> WAITED = ThreadLocal.withInitial(() -> 0L);
+
+    /**
+     * The queue.
+     */
+    private final PriorityTaskQueue queue;
+
+    /**
+     * The executor of the attended signatures.
+     */
+    private final Executor attended = command -> execute(new Queued(command, Priority.ATTENDED));
+    /**
+     * The executor of the unattended signatures.
+     */
+    private final Executor unattended = command -> execute(new Queued(command, Priority.UNATTENDED));
+
+    /**
+     * The queue waits.
+     */
+    private final Histogram queueDuration;
+    /**
+     * The queue waits of the attended signatures.
+     */
+    private final Histogram attendedDuration;
+    /**
+     * The queue waits of the unattended signatures.
+     */
+    private final Histogram unattendedDuration;
+
+    /**
+     * Creates the executor.
+     * @param nThreads The number of threads
+     * @param reserved The threads reserved to the attended signatures (at most {@code nThreads - 1})
+     * @param maxWait The maximum wait of an unattended task before it is served first (in milliseconds)
+     * @param metrics The metrics registry
+     */
+    SignerExecutor(int nThreads, int reserved, long maxWait, MetricsRegistry metrics) {
+        this(nThreads, new PriorityTaskQueue(nThreads - Math.min(reserved, nThreads - 1), maxWait), metrics);
+    }
+
+    /**
+     * Creates the executor.
+     * @param nThreads The number of threads
+     * @param queue The queue
+     * @param metrics The metrics registry
+     */
+    private SignerExecutor(int nThreads, PriorityTaskQueue queue, MetricsRegistry metrics) {
+        super(nThreads, nThreads, 0L, TimeUnit.MILLISECONDS, queue);
+
+        this.queue = queue;
+
+        metrics.gauge("fea_executor_active_threads", "The signer executor threads running a task.", this::getActiveCount);
+        metrics.gauge("fea_executor_queued_tasks", "The signer executor tasks waiting for a thread.", () -> queue.size());
+        metrics.gauge("fea_executor_attended_queued_tasks", "The attended signatures waiting for a thread.", () -> queue.size(Priority.ATTENDED));
+        metrics.gauge("fea_executor_unattended_queued_tasks", "The unattended signatures waiting for a thread.", () -> queue.size(Priority.UNATTENDED));
+        metrics.gauge("fea_executor_unattended_active_threads", "The signer executor threads running an unattended signature.", queue::getUnattended);
+        metrics.counter("fea_executor_unattended_aged_total", "The unattended signatures served first after the maximum wait.", queue::getAged);
+
+        queueDuration = metrics.histogram("fea_executor_queue_duration_seconds", "The signer executor task waits for a thread.", MetricsRegistry.LATENCY_BUCKETS);
+        attendedDuration = metrics.histogram("fea_executor_attended_queue_duration_seconds", "The attended signature waits for a thread.", MetricsRegistry.LATENCY_BUCKETS);
+        unattendedDuration = metrics.histogram("fea_executor_unattended_queue_duration_seconds", "The unattended signature waits for a thread.", MetricsRegistry.LATENCY_BUCKETS);
+
+        prestartAllCoreThreads(); // the tasks go through the queue, except when a dead worker is replaced
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(command instanceof Queued ? command : new Queued(command, Priority.DEFAULT));
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        long waited = 0;
+        if (r instanceof Queued) {
+            Queued queued = (Queued) r;
+
+            waited = System.nanoTime() - queued.queued;
+
+            if (queued.priority == Priority.ATTENDED) {
+                attendedDuration.observe(waited / 1e9);
+            } else if (queued.priority == Priority.UNATTENDED) {
+                unattendedDuration.observe(waited / 1e9);
+            }
+        }
+
+        WAITED.set(waited);
+        queueDuration.observe(waited / 1e9);
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        WAITED.set(0L);
+
+        queue.done(r);
+    }
+
+    /**
+     * Gets the executor of the signatures of a priority.
+     * @param attended Whether the signatures are attended
+     * @return The executor
+     */
+    Executor getExecutor(boolean attended) {
+        return attended ? this.attended : unattended;
+    }
+
+    /**
+     * Gets the number of tasks waiting ahead of a new attended signature.
+     * @return The attended tasks and the gRPC callbacks waiting
+     */
+    int getQueuedAhead() {
+        return queue.size(Priority.ATTENDED) + queue.size(Priority.DEFAULT);
+    }
+
+    /**
+     * Gets how long the task running on the current thread waited in the queue.
+     * @return The wait (in nanoseconds, 0 if not running on a signer executor)
+     */
+    static long getWaited() {
+        return WAITED.get();
+    }
+
+    /**
+     * A task stamped with its priority and submission time.
+     */
+    static class Queued implements Runnable {
+
+        /**
+         * The task.
+         */
+        private final Runnable command;
+        /**
+         * The priority.
+         */
+        final Priority priority;
+        /**
+         * The submission time (in nanoseconds).
+         */
+        final long queued = System.nanoTime();
+        /**
+         * Whether the task was taken from the queue as a running unattended task (guarded by the
+         * queue lock).
+         */
+        boolean running;
+
+        /**
+         * Stamps the task.
+         * @param command The task
+         * @param priority The priority
+         */
+        Queued(Runnable command, Priority priority) {
+            this.command = command;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            command.run();
+        }
+    }
+}
@@ -3,15 +3,18 @@ package cl.uchile.fea.grpc;
 import java.io.IOException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import cl.uchile.fea.metrics.MetricsRegistry;
 import io.grpc.Grpc;
 import io.grpc.InsecureServerCredentials;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
 
 /**
  * The signer server.
@@ -32,6 +35,10 @@ public class SignerServer {
      * The custom executor.
      */
     private final ExecutorService executor;
+    /**
+     * The signer service.
+     */
+    private final SignerService service;
     /**
      * The server.
      */
@@ -40,30 +47,98 @@ public class SignerServer {
     /**
      * Creates a server listening on {@code port}.
      * @param port The listening port
-     * @param nThreads The number of threads
+     * @param virtual Whether each call runs on a virtual thread instead of the fixed thread pool (Java 21 or later)
+     * @param nThreads The number of threads (ignored if virtual)
+     * @param reserved The threads reserved to the attended signatures (at most {@code nThreads - 1})
+     * @param maxWait The maximum wait of an unattended signature before it is served ahead of the attended ones (in milliseconds)
      * @param size The maximum inbound message size (in bytes)
+     * @param maxQueued The maximum tasks waiting for a thread before the calls are rejected
+     * @param maxQueueTime The maximum wait of a call for a thread (for a stamping permit if virtual) before it is rejected (in milliseconds, 0 if unlimited)
+     * @param maxInFlight The maximum calls admitted and not finished before the calls are rejected
+     * @param service The signer service
+     * @param metrics The metrics registry
      */
-    public SignerServer(int port, int nThreads, int size) {
-        this(Grpc.newServerBuilderForPort(port, InsecureServerCredentials.create()), port, nThreads, size);
+    public SignerServer(int port, boolean virtual, int nThreads, int reserved, long maxWait, int size, int maxQueued, long maxQueueTime, int maxInFlight, SignerService service, MetricsRegistry metrics) {
+        this(Grpc.newServerBuilderForPort(port, InsecureServerCredentials.create()), port, virtual, nThreads, reserved, maxWait, size, maxQueued, maxQueueTime, maxInFlight, service, metrics);
     }
 
     /**
      * Creates a server using the builder as base.
      * @param serverBuilder The server builder
      * @param port The listening port
-     * @param nThreads The number of threads
+     * @param virtual Whether each call runs on a virtual thread instead of the fixed thread pool (Java 21 or later)
+     * @param nThreads The number of threads (ignored if virtual)
+     * @param reserved The threads reserved to the attended signatures (at most {@code nThreads - 1})
+     * @param maxWait The maximum wait of an unattended signature before it is served ahead of the attended ones (in milliseconds)
      * @param size The maximum inbound message size (in bytes)
+     * @param maxQueued The maximum tasks waiting for a thread before the calls are rejected
+     * @param maxQueueTime The maximum wait of a call for a thread (for a stamping permit if virtual) before it is rejected (in milliseconds, 0 if unlimited)
+     * @param maxInFlight The maximum calls admitted and not finished before the calls are rejected
+     * @param service The signer service
+     * @param metrics The metrics registry
      */
-    public SignerServer(ServerBuilder<?> serverBuilder, int port, int nThreads, int size) {
+    public SignerServer(ServerBuilder<?> serverBuilder, int port, boolean virtual, int nThreads, int reserved, long maxWait, int size, int maxQueued, long maxQueueTime, int maxInFlight, SignerService service, MetricsRegistry metrics) {
         this.port = port;
+        this.service = service;
+
+        AdmissionInterceptor admission;
+        if (virtual) {
+            executor = newVirtualThreadExecutor();
+            service.setExecutors(executor, executor, maxQueueTime);
+
+            // no thread to wait for, the calls wait for a stamping permit instead (up to the queue deadline)
+            admission = new AdmissionInterceptor(service::getStampingQueued, service::getStampingQueued, maxQueued, 0, maxInFlight, metrics);
+        } else {
+            SignerExecutor pool = new SignerExecutor(nThreads, reserved, maxWait, metrics);
+
+            executor = pool;
+            service.setExecutors(pool.getExecutor(true), pool.getExecutor(false), maxQueueTime);
+
+            admission = new AdmissionInterceptor(pool::getQueuedAhead, () -> pool.getQueue().size(), maxQueued, maxQueueTime, maxInFlight, metrics);
+        }
 
-        executor = Executors.newFixedThreadPool(nThreads);
-        server = serverBuilder.addService(new SignerService())
+        // the last interceptor runs first, so the rejected calls are measured too
+        server = serverBuilder.addService(ServerInterceptors.intercept(service, admission, new MetricsInterceptor(metrics)))
             .maxInboundMessageSize(size)
             .executor(executor)
             .build();
     }
 
+    /**
+     * Gets whether the runtime supports virtual threads (Java 21 or later).
+     * @return Whether the virtual threads are supported
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates an executor starting a named virtual thread per task, through reflection since the
+     * service still builds for Java 8.
+     * @return The executor
+     * @throws UnsupportedOperationException if the runtime does not support virtual threads
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "signer-virtual-", 0L);
+
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21 or later", e);
+        }
+    }
+
     /**
      * Start serving requests.
      * @throws IOException if unable to bind
@@ -105,6 +180,10 @@ public class SignerServer {
         if (executor != null) {
             executor.shutdown();
         }
+
+        if (service != null) {
+            service.shutdown();
+        }
     }
 
     /**
@@ -1,31 +1,27 @@
 package cl.uchile.fea.grpc;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.charset.StandardCharsets;
-import java.security.InvalidKeyException;
-import java.security.KeyFactory;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.PrivateKey;
-import java.security.SignatureException;
-import java.security.cert.CertificateException;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.PKCS8EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
-
-import javax.crypto.Cipher;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 
 import org.apache.http.HttpStatus;
 import org.bouncycastle.operator.OperatorCreationException;
-import org.bouncycastle.util.io.pem.PemObject;
-import org.bouncycastle.util.io.pem.PemReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -38,12 +34,33 @@ import com.itextpdf.text.pdf.PdfSignatureAppearance;
 import com.itextpdf.text.pdf.PdfString;
 
 import cl.uchile.fea.HttpStatusCode;
+import cl.uchile.fea.Spool;
+import cl.uchile.fea.crypto.KeyMaterialService;
+import cl.uchile.fea.grpc.RequestCoalescer.Coalesced;
+import cl.uchile.fea.grpc.SessionStore.Session;
 import cl.uchile.fea.jwt.JwtUtil;
+import cl.uchile.fea.lib.proto.CompleteRequest;
+import cl.uchile.fea.lib.proto.HashSignature;
+import cl.uchile.fea.lib.proto.PrepareReply;
+import cl.uchile.fea.lib.proto.SignBatchReply;
+import cl.uchile.fea.lib.proto.SignBatchRequest;
+import cl.uchile.fea.lib.proto.SignDocument;
+import cl.uchile.fea.lib.proto.SignHashReply;
+import cl.uchile.fea.lib.proto.SignHashRequest;
 import cl.uchile.fea.lib.proto.SignReply;
 import cl.uchile.fea.lib.proto.SignRequest;
+import cl.uchile.fea.lib.proto.SignStreamReply;
+import cl.uchile.fea.lib.proto.SignStreamRequest;
 import cl.uchile.fea.lib.proto.SignerGrpc;
+import cl.uchile.fea.metrics.Counter;
+import cl.uchile.fea.metrics.Histogram;
+import cl.uchile.fea.metrics.MetricsRegistry;
+import cl.uchile.fea.segpres.AppearanceCache;
+import cl.uchile.fea.segpres.CertificateProvider;
 import cl.uchile.fea.segpres.CustomHttpResponse;
-import cl.uchile.fea.segpres.LayoutUtil;
+import cl.uchile.fea.segpres.Layout;
+import cl.uchile.fea.segpres.PdfReaderFactory;
+import cl.uchile.fea.segpres.SegpresClient;
 import cl.uchile.fea.segpres.SegpresService;
 import cl.uchile.fea.segpres.models.ErrorResponse;
 import cl.uchile.fea.segpres.models.HashRequest;
@@ -51,7 +68,10 @@ import cl.uchile.fea.segpres.models.HashResponse;
 import cl.uchile.fea.segpres.models.SignatureRequest;
 import cl.uchile.fea.segpres.models.SignatureResponse;
 import co.elastic.apm.api.ElasticApm;
+import co.elastic.apm.api.Scope;
 import co.elastic.apm.api.Transaction;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 
 /**
@@ -66,78 +86,421 @@ public class SignerService extends SignerGrpc.SignerImplBase {
     private static final Logger LOGGER = LoggerFactory.getLogger(SignerService.class);
 
     /**
-     * Reads the RSA private key in PKCS #8 standard.
-     * @param file The key file
-     * @return The private key
-     * @throws NoSuchAlgorithmException
-     * @throws IOException
-     * @throws InvalidKeySpecException
+     * The message of the signatures that waited too long for a thread.
      */
-    private PrivateKey getPrivateKey(File file) throws NoSuchAlgorithmException, IOException, InvalidKeySpecException {
-        KeyFactory factory = KeyFactory.getInstance("RSA");
+    static final String QUEUE_TIMEOUT_MESSAGE = "Server saturated, request queued for too long, please retry later";
 
-        try (FileReader keyReader = new FileReader(file); PemReader pemReader = new PemReader(keyReader)) {
-            PemObject pemObject = pemReader.readPemObject();
-            byte[] content = pemObject.getContent();
-            PKCS8EncodedKeySpec privKeySpec = new PKCS8EncodedKeySpec(content);
+    /**
+     * The exception of a signature that waited too long for a stamping permit.
+     */
+    static class QueueTimeoutException extends Exception {
 
-            return factory.generatePrivate(privKeySpec);
+        QueueTimeoutException() {
+            super(QUEUE_TIMEOUT_MESSAGE);
         }
     }
 
     /**
-     * Executes the HTTP request.
-     * @param builder The builder
+     * The placeholder certificate provider.
+     */
+    private final CertificateProvider certificateProvider;
+    /**
+     * The password decryption key material.
+     */
+    private final KeyMaterialService keyMaterialService;
+    /**
+     * The Segpres HTTP client.
+     */
+    private final SegpresClient client;
+    /**
+     * The request coalescer (null if disabled).
+     */
+    private final RequestCoalescer coalescer;
+    /**
+     * The spool.
+     */
+    private final Spool spool;
+    /**
+     * The maximum size of a streamed file (in bytes).
+     */
+    private final long maxUploadSize;
+    /**
+     * The PDF reader factory.
+     */
+    private final PdfReaderFactory readerFactory;
+    /**
+     * The visible signature appearance cache.
+     */
+    private final AppearanceCache appearanceCache;
+    /**
+     * The session store of the prepared signatures.
+     */
+    private final SessionStore sessions;
+    /**
+     * The session store of the prepared signatures kept for a retry (null if disabled).
+     */
+    private final SessionStore retries;
+    /**
+     * The Segpres retry policy.
+     */
+    private final RetryPolicy retryPolicy;
+    /**
+     * The Segpres circuit breaker.
+     */
+    private final CircuitBreaker circuitBreaker;
+    /**
+     * The permits of the concurrent stampings (null if unlimited).
+     */
+    private final Semaphore stamping;
+
+    /**
+     * The password decryption durations.
+     */
+    private final Histogram decryptDuration;
+    /**
+     * The stamping permit waits (null if unlimited).
+     */
+    private final Histogram stampWait;
+    /**
+     * The layout durations.
+     */
+    private final Histogram layoutDuration;
+    /**
+     * The stamping durations (the visible appearance included).
+     */
+    private final Histogram stampDuration;
+    /**
+     * The range stream hashing durations.
+     */
+    private final Histogram hashDuration;
+    /**
+     * The Segpres round trip durations (each attempt).
+     */
+    private final Histogram segpresDuration;
+    /**
+     * The signature close durations.
+     */
+    private final Histogram closeDuration;
+    /**
+     * The received file sizes.
+     */
+    private final Histogram inputSize;
+    /**
+     * The signed file sizes.
+     */
+    private final Histogram outputSize;
+    /**
+     * The Segpres responses by status code.
+     */
+    private final Counter responses;
+    /**
+     * The Segpres requests that got no response.
+     */
+    private final Counter failures;
+    /**
+     * The replies asking the client to retry.
+     */
+    private final Counter retryReplies;
+    /**
+     * The prepared signatures reused by a retry token.
+     */
+    private final Counter retryReuses;
+
+    /**
+     * The executor where the attended signatures are prepared and completed (the signer executor).
+     */
+    private Executor attendedExecutor = Runnable::run;
+    /**
+     * The executor where the unattended signatures are prepared and completed (the signer executor).
+     */
+    private Executor unattendedExecutor = Runnable::run;
+    /**
+     * The maximum wait of a signature for a thread or a stamping permit (in nanoseconds, 0 if
+     * unlimited).
+     */
+    private long maxQueueTime;
+
+    /**
+     * Creates the signer service.
+     * @param certificateProvider The placeholder certificate provider
+     * @param keyMaterialService The password decryption key material
+     * @param client The Segpres HTTP client
+     * @param coalescer The request coalescer for unattended requests (null to disable)
+     * @param spool The spool
+     * @param maxUploadSize The maximum size of a streamed file (in bytes)
+     * @param readerFactory The PDF reader factory
+     * @param appearanceCache The visible signature appearance cache
+     * @param sessions The session store of the prepared signatures
+     * @param retries The session store of the prepared signatures kept for a retry (null to disable)
+     * @param retryPolicy The Segpres retry policy
+     * @param circuitBreaker The Segpres circuit breaker
+     * @param stamping The permits of the concurrent stampings (null if unlimited, e.g. bounded by a fixed thread pool)
+     * @param metrics The metrics registry
+     */
+    public SignerService(CertificateProvider certificateProvider, KeyMaterialService keyMaterialService, SegpresClient client, RequestCoalescer coalescer, Spool spool, long maxUploadSize, PdfReaderFactory readerFactory, AppearanceCache appearanceCache, SessionStore sessions, SessionStore retries, RetryPolicy retryPolicy, CircuitBreaker circuitBreaker, Semaphore stamping, MetricsRegistry metrics) {
+        this.certificateProvider = certificateProvider;
+        this.keyMaterialService = keyMaterialService;
+        this.client = client;
+        this.coalescer = coalescer;
+        this.spool = spool;
+        this.maxUploadSize = maxUploadSize;
+        this.readerFactory = readerFactory;
+        this.appearanceCache = appearanceCache;
+        this.sessions = sessions;
+        this.retries = retries;
+        this.retryPolicy = retryPolicy;
+        this.circuitBreaker = circuitBreaker;
+        this.stamping = stamping;
+
+        if (stamping != null) {
+            metrics.gauge("fea_stamp_waiting", "The signatures waiting for a stamping permit.", this::getStampingQueued);
+            metrics.gauge("fea_stamp_available_permits", "The stamping permits available.", stamping::availablePermits);
+
+            stampWait = metrics.histogram("fea_stamp_wait_seconds", "The stamping permit waits.", MetricsRegistry.LATENCY_BUCKETS);
+        } else {
+            stampWait = null;
+        }
+
+        decryptDuration = metrics.histogram("fea_decrypt_duration_seconds", "The password decryption durations.", MetricsRegistry.LATENCY_BUCKETS);
+        layoutDuration = metrics.histogram("fea_layout_duration_seconds", "The signature layout durations.", MetricsRegistry.LATENCY_BUCKETS);
+        stampDuration = metrics.histogram("fea_stamp_duration_seconds", "The PDF stamping durations, visible appearance included.", MetricsRegistry.LATENCY_BUCKETS);
+        hashDuration = metrics.histogram("fea_hash_duration_seconds", "The range stream SHA-256 durations.", MetricsRegistry.LATENCY_BUCKETS);
+        segpresDuration = metrics.histogram("fea_segpres_duration_seconds", "The Segpres round trip durations, per attempt.", MetricsRegistry.LATENCY_BUCKETS);
+        closeDuration = metrics.histogram("fea_close_duration_seconds", "The signature contents injection and close durations.", MetricsRegistry.LATENCY_BUCKETS);
+
+        inputSize = metrics.histogram("fea_input_size_bytes", "The received file sizes.", MetricsRegistry.SIZE_BUCKETS);
+        outputSize = metrics.histogram("fea_output_size_bytes", "The signed file sizes.", MetricsRegistry.SIZE_BUCKETS);
+
+        responses = metrics.counter("fea_segpres_responses_total", "The Segpres responses by status code.", "code");
+        failures = metrics.counter("fea_segpres_failures_total", "The Segpres requests that got no response after every attempt.");
+        retryReplies = metrics.counter("fea_retry_replies_total", "The replies asking the client to retry.");
+        retryReuses = metrics.counter("fea_retry_reuses_total", "The prepared signatures reused by a retry token.");
+    }
+
+    /**
+     * Sets the executors where the signatures are prepared and completed, usually the priorities of
+     * the server executor.
+     * @param attendedExecutor The executor of the attended signatures
+     * @param unattendedExecutor The executor of the unattended signatures
+     * @param maxQueueTime The maximum wait of a signature for a thread or a stamping permit before
+     * the client is asked to retry (in milliseconds, 0 if unlimited)
+     */
+    public void setExecutors(Executor attendedExecutor, Executor unattendedExecutor, long maxQueueTime) {
+        this.attendedExecutor = attendedExecutor;
+        this.unattendedExecutor = unattendedExecutor;
+        this.maxQueueTime = TimeUnit.MILLISECONDS.toNanos(maxQueueTime);
+    }
+
+    /**
+     * Gets the number of signatures waiting for a stamping permit.
+     * @return The signatures (0 if the stampings are unlimited)
+     */
+    public int getStampingQueued() {
+        return stamping != null ? stamping.getQueueLength() : 0;
+    }
+
+    /**
+     * Gets the executor of the signatures of a priority.
+     * @param attended Whether the signature is attended
+     * @return The executor
+     */
+    private Executor getExecutor(boolean attended) {
+        return attended ? attendedExecutor : unattendedExecutor;
+    }
+
+    /**
+     * Shutdowns the shared resources.
+     */
+    public void shutdown() {
+        certificateProvider.shutdown();
+        keyMaterialService.shutdown();
+        client.close();
+
+        if (coalescer != null) {
+            coalescer.shutdown();
+        }
+
+        sessions.shutdown();
+
+        if (retries != null) {
+            retries.shutdown();
+        }
+
+        retryPolicy.shutdown();
+
+        spool.shutdown();
+    }
+
+    /**
+     * Executes the HTTP request on the Segpres executor, so the caller thread is not blocked, retrying
+     * the transient failures as the retry policy allows. Every attempt goes through the circuit
+     * breaker, so the retries stop as soon as it opens.
      * @param service The service
      * @param request The signature request
+     * @param attended Whether the signature is attended
+     * @return The future HTTP response (completed exceptionally with the last error if no attempt got a response)
+     */
+    private CompletableFuture<CustomHttpResponse> executeAsync(SegpresService service, SignatureRequest request, boolean attended) {
+        Transaction transaction = ElasticApm.currentTransaction();
+
+        return retryPolicy.execute(() -> {
+            long generation = circuitBreaker.acquire();
+
+            try (Scope scope = transaction.activate()) {
+                long start = System.nanoTime();
+                boolean failure = true;
+                try {
+                    CustomHttpResponse response = service.execute(request);
+
+                    failure = RetryPolicy.isRetryable(response, false);
+
+                    return response;
+                } finally {
+                    segpresDuration.observeSince(start);
+
+                    circuitBreaker.record(generation, failure, System.nanoTime() - start);
+                }
+            }
+        }, client.getExecutor(), attended);
+    }
+
+    /**
+     * Handles the HTTP response or the error of the HTTP request.
+     * <p>
+     * Only an I/O error means Segpres gave no response and the client may retry, any other error
+     * (e.g. a JWT or an invalid URI error) fails the same way on every attempt.
+     * @param builder The builder
+     * @param response The HTTP response
+     * @param t The error (null if the request was sent)
+     * @return The hash responses (null on error)
+     * @throws SignException
+     */
+    List<HashResponse> handle(SignReply.Builder builder, CustomHttpResponse response, Throwable t) throws SignException {
+        if (t != null) {
+            while (t instanceof CompletionException && t.getCause() != null) {
+                t = t.getCause();
+            }
+
+            if (t instanceof CircuitBreaker.OpenException) {
+                return reject(builder, CircuitBreaker.OPEN_MESSAGE);
+            }
+
+            if (t instanceof RejectedExecutionException) {
+                return reject(builder, SegpresClient.REJECTED_MESSAGE);
+            }
+
+            builder.setMessage(t.getMessage() != null ? t.getMessage() : t.toString());
+
+            if (!(t instanceof IOException)) {
+                LOGGER.error("Unable to send request", t);
+
+                return null;
+            }
+
+            return handle(builder, null);
+        }
+
+        return handle(builder, response);
+    }
+
+    /**
+     * Rejects the request while the circuit breaker is open, too many Segpres requests are waiting
+     * or the request waited too long for a thread or a stamping permit, asking the client to retry.
+     * @param builder The builder
+     * @param message The message
+     * @return The hash responses (always null)
+     */
+    private List<HashResponse> reject(SignReply.Builder builder, String message) {
+        builder.setMessage(message);
+        builder.setRetry(true);
+
+        retryReplies.inc();
+
+        return null;
+    }
+
+    /**
+     * Finds the hash response of the document.
+     * @param hashes The hash responses
+     * @param hash The document hash encoded in base64
+     * @param position The position of the document hash in the request
+     * @return The hash response
+     * @throws SignException if there is no hash response for the document
+     */
+    static HashResponse find(List<HashResponse> hashes, String hash, int position) throws SignException {
+        // Segpres returns the original hash, the position is only used if it returns none
+        boolean original = false;
+        for (HashResponse response : hashes) {
+            String hashOriginal = response.getHashOriginal();
+            if (hash.equals(hashOriginal)) {
+                return response;
+            }
+
+            original |= hashOriginal != null && !hashOriginal.isEmpty();
+        }
+
+        // a reordered, partial or foreign reply would sign the document with another digest
+        if (!original && position < hashes.size()) {
+            return hashes.get(position);
+        }
+
+        throw new SignException("Got no hash for the document");
+    }
+
+    /**
+     * Gets the PDF dictionary with the signature contents.
+     * @param builder The builder
+     * @param hash The hash response
      * @return The PDF dictionary
-     * @throws InterruptedException
      * @throws SignException
      */
-    private PdfDictionary execute(SignReply.Builder builder, SegpresService service, SignatureRequest request) throws InterruptedException, SignException {
+    private PdfDictionary getDictionary(SignReply.Builder builder, HashResponse hash) throws SignException {
         PdfDictionary dictionary = new PdfDictionary();
 
-        CustomHttpResponse response = null;
-        for (int i = 0; i < 3; i++) { // TODO: the maximum attempts should be an environment variable?
-            try {
-                response = service.execute(request);
+        String content = hash.getContent();
+        if (content != null && !content.isEmpty()) {
+            //LOGGER.trace("Content: {}", content);
 
-                break;
-            } catch (Exception e) {
-                builder.setMessage(e.getMessage());
-            }
+            byte[] decoded = Base64.getDecoder().decode(content);
+            byte[] padded = new byte[SegpresService.CONTENTS];
+            System.arraycopy(decoded, 0, padded, 0, decoded.length);
+
+            dictionary.put(PdfName.CONTENTS, new PdfString(padded).setHexWriting(true));
 
-            Thread.sleep(1000);
+            builder.setSuccess(true);
+            builder.setMessage("We are ready!");
+
+            LOGGER.debug(builder.getMessage());
+        } else {
+            throw new SignException("Got null or empty content");
         }
 
+        return dictionary;
+    }
+
+    /**
+     * Handles the HTTP response.
+     * @param builder The builder
+     * @param response The HTTP response (null if the request could not be sent)
+     * @return The hash responses (null on error)
+     * @throws SignException
+     */
+    private List<HashResponse> handle(SignReply.Builder builder, CustomHttpResponse response) throws SignException {
+        List<HashResponse> hashes = null;
+
         if (response != null) {
             Gson gson = new Gson();
 
             int code = response.getCode();
             String body = response.getBody();
-            if (code == HttpStatus.SC_OK) {
-                SignatureResponse signatureResponse = gson.fromJson(body, SignatureResponse.class); // should not fail
 
-                List<HashResponse> hashes = signatureResponse.getHashes();
-                if (hashes != null && !hashes.isEmpty()) {
-                    String content = hashes.get(0).getContent();
-                    if (content != null && !content.isEmpty()) {
-                        //LOGGER.trace("Content: {}", content);
+            responses.inc(Integer.toString(code));
 
-                        byte[] decoded = Base64.getDecoder().decode(content);
-                        byte[] padded = new byte[SegpresService.CONTENTS];
-                        System.arraycopy(decoded, 0, padded, 0, decoded.length);
-
-                        dictionary.put(PdfName.CONTENTS, new PdfString(padded).setHexWriting(true));
-
-                        builder.setSuccess(true);
-                        builder.setMessage("We are ready!");
+            if (code == HttpStatus.SC_OK) {
+                SignatureResponse signatureResponse = gson.fromJson(body, SignatureResponse.class); // should not fail
 
-                        LOGGER.debug(builder.getMessage());
-                    } else {
-                        throw new SignException("Got null or empty content");
-                    }
-                } else {
+                hashes = signatureResponse.getHashes();
+                if (hashes == null || hashes.isEmpty()) {
                     throw new SignException("Got null or empty hashes");
                 }
             } else {
@@ -167,8 +530,7 @@ public class SignerService extends SignerGrpc.SignerImplBase {
 
                     break;
                 default:
-                    // BUG: this should be a 4xx error code, but Sepgres returns 500 Internal Server Error
-                    if (code >= HttpStatus.SC_INTERNAL_SERVER_ERROR && !"ERROR : Formato de contenido o layout incorrecto".equals(error)) {
+                    if (RetryPolicy.isRetryable(code, error)) {
                         builder.setRetry(true);
                     }
 
@@ -178,102 +540,686 @@ public class SignerService extends SignerGrpc.SignerImplBase {
         } else {
             LOGGER.error("Unable to send request ({})", builder.getMessage());
 
+            failures.inc();
+
             builder.setRetry(true);
         }
 
-        return dictionary;
+        if (builder.getRetry()) {
+            retryReplies.inc();
+        }
+
+        return hashes;
     }
 
     /**
-     * Generates the PDF signature appearance and executes the HTTP request.
+     * Decrypts the password.
+     * @param encryptedPassword The encrypted password
+     * @return The password (null if not provided)
+     * @throws GeneralSecurityException if the password cannot be decrypted
+     */
+    private String decrypt(String encryptedPassword) throws GeneralSecurityException {
+        String password = null;
+        if (encryptedPassword != null && !encryptedPassword.isEmpty()) {
+            long start = System.nanoTime();
+
+            password = keyMaterialService.decrypt(encryptedPassword);
+
+            decryptDuration.observeSince(start);
+
+            //LOGGER.debug("Password: {}", password);
+        }
+
+        return password;
+    }
+
+    /**
+     * Sends the reply.
      * @param builder The builder
+     * @param responseObserver The response observer
+     */
+    private void reply(SignReply.Builder builder, StreamObserver<SignReply> responseObserver) {
+        // BEWARE: uncomment this only for debugging
+        // if (LOGGER.isTraceEnabled()) {
+        //     LOGGER.trace("Sign Reply: {}", builder.toString());
+        // }
+
+        responseObserver.onNext(builder.build());
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Gets the layout.
+     * @param signature The signature data (null or empty for an invisible signature)
+     * @param llx The lower left X coordinate
+     * @param lly The lower left Y coordinate
+     * @param urx The upper right X coordinate
+     * @param ury The upper right Y coordinate
+     * @param page The page
+     * @return The layout
+     */
+    private Layout getLayout(ByteString signature, int llx, int lly, int urx, int ury, int page) {
+        long start = System.nanoTime();
+        try {
+            if (signature == null || signature.isEmpty()) {
+                return Layout.invisible();
+            }
+
+            return Layout.visible(llx, lly, urx, ury, page, signature.toByteArray());
+        } finally {
+            layoutDuration.observeSince(start);
+        }
+    }
+
+    /**
+     * Creates the Segpres service for the signer.
      * @param rut The RUT
      * @param password The password
-     * @param file The file
-     * @param layout The XML layout
      * @param attended Whether the signature is attended
-     * @throws IOException on error
-     * @throws com.itextpdf.text.DocumentException on error
-     * @throws org.dom4j.DocumentException if an error occurs during parsing
-     * @throws NoSuchAlgorithmException on unsupported signature algorithms
-     * @throws NoSuchProviderException if there's no default provider
-     * @throws OperatorCreationException
-     * @throws CertificateException on encoding errors
-     * @throws InvalidKeyException on incorrect key
-     * @throws SignatureException on signature errors
-     * @throws InterruptedException
-     * @throws SignException
+     * @return The service
      */
-    private void generateAndExecute(SignReply.Builder builder, String rut, String password, ByteString file, String layout, boolean attended) throws
-        IOException,
-        com.itextpdf.text.DocumentException, org.dom4j.DocumentException,
-        NoSuchAlgorithmException, NoSuchProviderException,
-        OperatorCreationException,
-        CertificateException, InvalidKeyException, SignatureException,
-        InterruptedException,
-        SignException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    private SegpresService getService(String rut, String password, boolean attended) {
+        SegpresService service = new SegpresService(certificateProvider, client, appearanceCache);
 
-        PdfDictionary dictionary = null;
-        PdfSignatureAppearance appearance = null;
-        try {
-            PdfReader reader = new PdfReader(file.toByteArray());
+        service.setReason(""); // reason?
+        service.setLocation(""); // location?
 
-            SegpresService service = new SegpresService();
+        service.setUsername(rut);
+        service.setPassword(password);
 
-            service.setReason(""); // reason?
-            service.setLocation(""); // location?
+        service.setAttended(attended);
 
-            service.setUsername(rut);
-            service.setPassword(password);
+        return service;
+    }
 
-            service.setAttended(attended);
+    /**
+     * Creates the signature request.
+     * @param rut The RUT
+     * @param attended Whether the signature is attended
+     * @param contents The hashes encoded in base64
+     * @return The signature request
+     * @throws GeneralSecurityException on token errors
+     */
+    private SignatureRequest getRequest(String rut, boolean attended, List<String> contents) throws GeneralSecurityException {
+        List<HashRequest> hashes = new ArrayList<>();
+        for (String content : contents) {
+            HashRequest hash = new HashRequest();
+            hash.setContent(content);
 
-            appearance = service.generate(reader, baos, layout);
+            hashes.add(hash);
+        }
 
-            InputStream rs = appearance.getRangeStream();
+        SignatureRequest request = new SignatureRequest();
+        request.setApiTokenKey(System.getenv("SEGPRES_API_TOKEN_KEY"));
+        request.setToken(JwtUtil.generate(rut, attended));
+        request.setHashes(hashes);
 
-            byte[] input = new byte[8192];
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
+        return request;
+    }
 
-            int n;
-            while ((n = rs.read(input)) > 0) {
-                md.update(input, 0, n);
-            }
+    /**
+     * Generates the PDF signature appearance and computes the range stream digest, holding a
+     * stamping permit if the concurrent stampings are limited. The permit is awaited up to the
+     * queue deadline, the virtual threads having no queue of their own.
+     * @param service The service
+     * @param file The file (ignored if spooled)
+     * @param source The spooled file (null if the file is on the heap), deleted when the signature is closed or on error
+     * @param layout The layout
+     * @return The prepared signature
+     * @throws IOException on error
+     * @throws com.itextpdf.text.DocumentException on error
+     * @throws GeneralSecurityException on digest or placeholder certificate errors
+     * @throws OperatorCreationException
+     * @throws QueueTimeoutException if no stamping permit was available before the queue deadline
+     */
+    private PreparedSignature prepare(SegpresService service, ByteString file, File source, Layout layout) throws
+        IOException,
+        com.itextpdf.text.DocumentException,
+        GeneralSecurityException,
+        OperatorCreationException,
+        QueueTimeoutException {
+        if (stamping == null) {
+            return stamp(service, file, source, layout);
+        }
 
-            HashRequest hash = new HashRequest();
-            hash.setContent(Base64.getEncoder().encodeToString(md.digest()));
+        long start = System.nanoTime();
 
-            List<HashRequest> hashes = new ArrayList<>();
-            hashes.add(hash);
+        if (maxQueueTime <= 0) {
+            stamping.acquireUninterruptibly();
+        } else if (!tryAcquireStamping()) {
+            stampWait.observeSince(start);
 
-            SignatureRequest request = new SignatureRequest();
-            request.setApiTokenKey(System.getenv("SEGPRES_API_TOKEN_KEY"));
-            request.setToken(JwtUtil.generate(rut, attended));
-            request.setHashes(hashes);
+            LOGGER.warn("Rejecting signature waiting for a stamping permit for {} ms", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
 
-            dictionary = execute(builder, service, request);
-        } finally {
-            if (appearance != null) {
-                if (dictionary == null) {
-                    dictionary = new PdfDictionary();
-                }
+            throw new QueueTimeoutException();
+        }
 
-                if (!builder.getSuccess() || dictionary.size() == 0) {
-                    dictionary.put(PdfName.CONTENTS, new PdfString()); // empty
-                }
+        try {
+            stampWait.observeSince(start);
 
-                appearance.close(dictionary);
+            return stamp(service, file, source, layout);
+        } finally {
+            stamping.release();
+        }
+    }
 
-                if (builder.getSuccess()) {
-                    builder.setFile(ByteString.copyFrom(baos.toByteArray()));
-                }
-            }
+    /**
+     * Waits for a stamping permit up to the queue deadline.
+     * @return Whether the permit was acquired
+     * @throws QueueTimeoutException if the thread was interrupted while waiting
+     */
+    private boolean tryAcquireStamping() throws QueueTimeoutException {
+        try {
+            return stamping.tryAcquire(maxQueueTime, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
 
-            baos.close();
+            throw new QueueTimeoutException();
         }
     }
 
+    /**
+     * Generates the PDF signature appearance and computes the range stream digest.
+     * @param service The service
+     * @param file The file (ignored if spooled)
+     * @param source The spooled file (null if the file is on the heap), deleted when the signature is closed or on error
+     * @param layout The layout
+     * @return The prepared signature
+     * @throws IOException on error
+     * @throws com.itextpdf.text.DocumentException on error
+     * @throws GeneralSecurityException on digest or placeholder certificate errors
+     * @throws OperatorCreationException
+     */
+    private PreparedSignature stamp(SegpresService service, ByteString file, File source, Layout layout) throws
+        IOException,
+        com.itextpdf.text.DocumentException,
+        GeneralSecurityException,
+        OperatorCreationException {
+        ByteString.Output out = null;
+        File signed = null;
+
+        // the reader keeps the request file until the signature is closed
+        long held = source == null ? file.size() : 0;
+
+        inputSize.observe(source == null ? file.size() : source.length());
+
+        PdfReader reader = null;
+        PdfSignatureAppearance appearance = null;
+        try {
+            if (source == null) {
+                reader = readerFactory.open(file); // read in place, not copied
+            } else {
+                reader = readerFactory.open(source); // mapped, not copied to the heap
+            }
+
+            // large documents are stamped to a spool file, the range stream is then read from it
+            if (spool.exceeds(source == null ? file.size() : source.length())) {
+                signed = spool.createFile("signed");
+            } else {
+                out = ByteString.newOutput();
+            }
+
+            long start = System.nanoTime();
+
+            appearance = service.generate(reader, out, signed, layout);
+
+            stampDuration.observeSince(start);
+
+            start = System.nanoTime();
+
+            // read through the iText source of the output (a RandomAccessFile if spooled), not mapped
+            InputStream rs = appearance.getRangeStream();
+
+            byte[] input = new byte[8192];
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+
+            int n;
+            while ((n = rs.read(input)) > 0) {
+                md.update(input, 0, n);
+            }
+
+            String hash = Base64.getEncoder().encodeToString(md.digest());
+
+            hashDuration.observeSince(start);
+
+            return new PreparedSignature(appearance, out, signed, held, hash, spool, source);
+        } catch (Exception e) {
+            if (appearance != null) {
+                PreparedSignature prepared = new PreparedSignature(appearance, out, signed, held, null, spool, source);
+                try {
+                    prepared.close(null);
+                } finally {
+                    prepared.release();
+                }
+            } else {
+                if (reader != null) {
+                    reader.close();
+                }
+
+                spool.delete(source);
+                spool.delete(signed);
+            }
+
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the prepared signature, reporting the errors on the builder.
+     * @param builder The builder
+     * @param prepared The prepared signature
+     * @param dictionary The PDF dictionary (null on error)
+     */
+    private void close(SignReply.Builder builder, PreparedSignature prepared, PdfDictionary dictionary) {
+        long start = System.nanoTime();
+        try {
+            boolean signed = prepared.close(builder.getSuccess() ? dictionary : null);
+
+            closeDuration.observeSince(start);
+
+            if (signed) {
+                outputSize.observe(prepared.getSize());
+            }
+        } catch (Exception e) {
+            LOGGER.error("Unable to close signature appearance", e);
+
+            builder.setSuccess(false);
+            builder.setMessage(e.getMessage());
+        }
+    }
+
+    /**
+     * Sets the signed file on the builder (if signed) and releases the prepared signature.
+     * @param builder The builder
+     * @param prepared The closed prepared signature (null if kept for a retry)
+     */
+    private void attach(SignReply.Builder builder, PreparedSignature prepared) {
+        if (prepared == null) {
+            return;
+        }
+
+        try {
+            if (builder.getSuccess()) {
+                builder.setFile(prepared.getSigned());
+            }
+        } catch (IOException e) {
+            LOGGER.error("Unable to read signed file", e);
+
+            builder.setSuccess(false);
+            builder.setMessage(e.getMessage());
+        } finally {
+            prepared.release();
+        }
+    }
+
+    /**
+     * Generates the PDF signature appearance and executes the HTTP request.
+     * <p>
+     * The PDF is stamped on the caller thread.
+     * @param builder The builder
+     * @param rut The RUT
+     * @param password The password
+     * @param file The file (ignored if spooled)
+     * @param source The spooled file (null if the file is on the heap)
+     * @param layout The layout
+     * @param attended Whether the signature is attended
+     * @param completion The completion replying the closed prepared signature
+     * @throws IOException on error
+     * @throws com.itextpdf.text.DocumentException on error
+     * @throws GeneralSecurityException on digest or placeholder certificate errors
+     * @throws OperatorCreationException
+     * @throws QueueTimeoutException if no stamping permit was available before the queue deadline
+     */
+    private void generateAndExecute(SignReply.Builder builder, String rut, String password, ByteString file, File source, Layout layout, boolean attended, BiConsumer<SignReply.Builder, PreparedSignature> completion) throws
+        IOException,
+        com.itextpdf.text.DocumentException,
+        GeneralSecurityException,
+        OperatorCreationException,
+        QueueTimeoutException {
+        SegpresService service = getService(rut, password, attended);
+
+        PreparedSignature prepared = prepare(service, file, source, layout);
+
+        execute(builder, service, rut, attended, prepared, completion);
+    }
+
+    /**
+     * Executes the HTTP request of the prepared signature.
+     * <p>
+     * The HTTP request waits on the Segpres executor and the appearance is closed and completed on
+     * the signer executor once the response arrives.
+     * @param builder The builder
+     * @param service The service
+     * @param rut The RUT
+     * @param attended Whether the signature is attended
+     * @param prepared The prepared signature (closed and released on error)
+     * @param completion The completion replying the closed prepared signature (null if kept for a retry)
+     * @throws IOException on error
+     * @throws com.itextpdf.text.DocumentException on error
+     * @throws GeneralSecurityException on JWT errors
+     */
+    private void execute(SignReply.Builder builder, SegpresService service, String rut, boolean attended, PreparedSignature prepared, BiConsumer<SignReply.Builder, PreparedSignature> completion) throws
+        IOException,
+        com.itextpdf.text.DocumentException,
+        GeneralSecurityException {
+        CompletableFuture<Coalesced> future;
+        if (coalescer != null && !attended) {
+            future = coalescer.submit(rut, prepared.getHash(), contents -> {
+                try {
+                    return executeAsync(service, getRequest(rut, false, contents), false);
+                } catch (GeneralSecurityException e) {
+                    throw new CompletionException(e);
+                }
+            });
+        } else {
+            SignatureRequest request;
+            try {
+                request = getRequest(rut, attended, Collections.singletonList(prepared.getHash()));
+            } catch (Exception e) {
+                prepared.close(null);
+                prepared.release();
+
+                throw e;
+            }
+
+            future = executeAsync(service, request, attended).thenApply(response -> new Coalesced(response, 0));
+        }
+
+        future.whenCompleteAsync((coalesced, t) -> {
+            PdfDictionary dictionary = null;
+            try {
+                List<HashResponse> hashes = handle(builder, coalesced != null ? coalesced.response : null, t);
+                if (hashes != null) {
+                    dictionary = getDictionary(builder, find(hashes, prepared.getHash(), coalesced.position));
+                }
+            } catch (Exception e) {
+                LOGGER.error("Unable to sign", e);
+
+                builder.setMessage(e.getMessage());
+            }
+
+            // keep the prepared signature for a retry instead of stamping the file again
+            if (dictionary == null && builder.getRetry() && retries != null) {
+                Session session = retries.put(prepared, rut, attended, prepared.getMemory());
+
+                builder.setRetryToken(session.id);
+
+                completion.accept(builder, null);
+
+                return;
+            }
+
+            close(builder, prepared, dictionary);
+
+            completion.accept(builder, prepared);
+        }, getExecutor(attended));
+    }
+
+    /**
+     * Completes the batch once the HTTP response arrives, mapping each hash response back to its
+     * document and closing the documents in parallel on the signer executor.
+     * @param status The batch status builder
+     * @param builders The document builders
+     * @param prepared The prepared signatures (null for the documents that failed)
+     * @param response The HTTP response
+     * @param t The error (null if the request was sent)
+     * @param attended Whether the signature is attended
+     * @return The future completed when every document is closed
+     */
+    private CompletableFuture<Void> completeBatch(SignReply.Builder status, List<SignReply.Builder> builders, List<PreparedSignature> prepared, CustomHttpResponse response, Throwable t, boolean attended) {
+        List<HashResponse> hashes = null;
+        try {
+            hashes = handle(status, response, t);
+        } catch (Exception e) {
+            LOGGER.error("Unable to sign batch", e);
+
+            status.setMessage(e.getMessage());
+        }
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+
+        int position = 0;
+        for (int i = 0; i < prepared.size(); i++) {
+            PreparedSignature signature = prepared.get(i);
+            if (signature == null) {
+                continue;
+            }
+
+            SignReply.Builder builder = builders.get(i);
+
+            PdfDictionary dictionary = null;
+            if (hashes != null) {
+                try {
+                    dictionary = getDictionary(builder, find(hashes, signature.getHash(), position));
+                } catch (Exception e) {
+                    LOGGER.warn("Unable to sign document {} of batch ({})", i, e.getMessage());
+
+                    builder.setMessage(e.getMessage());
+                }
+            } else {
+                builder.setMessage(status.getMessage());
+                builder.setInvalidPassword(status.getInvalidPassword());
+                builder.setRetry(status.getRetry());
+            }
+
+            position++;
+
+            PdfDictionary contents = dictionary;
+            futures.add(CompletableFuture.runAsync(() -> {
+                close(builder, signature, contents);
+
+                attach(builder, signature);
+            }, getExecutor(attended)));
+        }
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Sends the batch reply.
+     * @param status The batch status builder
+     * @param builders The document builders
+     * @param responseObserver The response observer
+     */
+    private void replyBatch(SignReply.Builder status, List<SignReply.Builder> builders, StreamObserver<SignBatchReply> responseObserver) {
+        SignBatchReply.Builder builder = SignBatchReply.newBuilder();
+
+        int signed = 0;
+        for (SignReply.Builder reply : builders) {
+            if (reply.getSuccess()) {
+                signed++;
+            }
+
+            builder.addReplies(reply);
+        }
+
+        builder.setSuccess(!builders.isEmpty() && signed == builders.size());
+        builder.setInvalidPassword(status.getInvalidPassword());
+        builder.setRetry(status.getRetry());
+
+        if (status.getMessage().isEmpty()) {
+            builder.setMessage(String.format("Signed %d of %d documents", signed, builders.size()));
+        } else {
+            builder.setMessage(status.getMessage());
+        }
+
+        responseObserver.onNext(builder.build());
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Sends the sign hash reply.
+     * @param status The status builder
+     * @param requested The requested hashes
+     * @param sent The sent hashes encoded in base64
+     * @param hashes The hash responses (null on error)
+     * @param responseObserver The response observer
+     */
+    private void replyHash(SignReply.Builder status, List<ByteString> requested, List<String> sent, List<HashResponse> hashes, StreamObserver<SignHashReply> responseObserver) {
+        SignHashReply.Builder builder = SignHashReply.newBuilder();
+
+        int signed = 0;
+        if (hashes != null) {
+            for (int i = 0; i < sent.size(); i++) {
+                HashSignature.Builder signature = HashSignature.newBuilder();
+
+                signature.setHash(requested.get(i));
+
+                try {
+                    String content = find(hashes, sent.get(i), i).getContent();
+                    if (content == null || content.isEmpty()) {
+                        throw new SignException("Got null or empty content");
+                    }
+
+                    signature.setContent(ByteString.copyFrom(Base64.getDecoder().decode(content)));
+
+                    signed++;
+                } catch (Exception e) {
+                    LOGGER.warn("Unable to sign hash {} ({})", i, e.getMessage());
+
+                    signature.setMessage(e.getMessage());
+                }
+
+                builder.addSignatures(signature);
+            }
+        }
+
+        builder.setSuccess(!sent.isEmpty() && signed == sent.size());
+        builder.setInvalidPassword(status.getInvalidPassword());
+        builder.setRetry(status.getRetry());
+
+        if (status.getMessage().isEmpty()) {
+            builder.setMessage(String.format("Signed %d of %d hashes", signed, sent.size()));
+        } else {
+            builder.setMessage(status.getMessage());
+        }
+
+        responseObserver.onNext(builder.build());
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Signs the file of the request.
+     * @param builder The builder
+     * @param request The sign request
+     * @param source The spooled file (null to sign the request file)
+     * @param completion The completion replying the closed prepared signature
+     * @throws SignException on invalid requests
+     * @throws GeneralSecurityException on password, digest or placeholder certificate errors
+     * @throws IOException on error
+     * @throws com.itextpdf.text.DocumentException on error
+     * @throws OperatorCreationException
+     * @throws QueueTimeoutException if no stamping permit was available before the queue deadline
+     */
+    private void sign(SignReply.Builder builder, SignRequest request, File source, BiConsumer<SignReply.Builder, PreparedSignature> completion) throws
+        SignException,
+        GeneralSecurityException,
+        IOException,
+        com.itextpdf.text.DocumentException,
+        OperatorCreationException,
+        QueueTimeoutException {
+        String rut = request.getRut();
+        if (rut == null || rut.isEmpty()) {
+            throw new SignException("Got null or empty RUT");
+        }
+
+        Transaction transaction = ElasticApm.currentTransaction();
+        transaction.setUser(rut, null, null);
+
+        // reject before decrypting and stamping, the retry token (if any) is kept for the retry
+        if (!circuitBreaker.isAvailable()) {
+            reject(builder, CircuitBreaker.OPEN_MESSAGE);
+
+            spool.delete(source);
+
+            completion.accept(builder, null);
+
+            return;
+        }
+
+        String password = decrypt(request.getPassword());
+
+        String token = request.getRetryToken();
+        if (token != null && !token.isEmpty()) {
+            Session session = retries != null ? retries.remove(token, rut) : null;
+            if (session != null) {
+                LOGGER.debug("Retrying prepared signature");
+
+                retryReuses.inc();
+
+                spool.delete(source); // not needed, the prepared signature is reused
+
+                execute(builder, getService(rut, password, session.attended), rut, session.attended, session.prepared, completion);
+
+                return;
+            }
+
+            LOGGER.debug("Got unknown or expired retry token, preparing again");
+        }
+
+        ByteString file = request.getFile();
+        if (source == null ? file == null || file.isEmpty() : source.length() == 0) {
+            throw new SignException("Got null or empty file");
+        }
+
+        Layout layout = getLayout(
+            request.getSignature(),
+            request.getLlx(),
+            request.getLly(),
+            request.getUrx(),
+            request.getUry(),
+            request.getPage()
+        );
+
+        generateAndExecute(builder, rut, password, file, source, layout, request.getAttended(), completion);
+    }
+
+    /**
+     * Signs the file of the request on the signer executor of its priority, so the attended
+     * signatures are stamped ahead of the unattended ones. A signature that waited for a thread or
+     * a stamping permit longer than the queue deadline is not stamped, the client is asked to retry
+     * instead (the admission interceptor only checks the wait of the gRPC callbacks).
+     * @param builder The builder
+     * @param request The sign request
+     * @param source The spooled file (null to sign the request file)
+     * @param completion The completion replying the closed prepared signature (without it on error)
+     */
+    private void schedule(SignReply.Builder builder, SignRequest request, File source, BiConsumer<SignReply.Builder, PreparedSignature> completion) {
+        Transaction transaction = ElasticApm.currentTransaction();
+
+        getExecutor(request.getAttended()).execute(() -> {
+            if (maxQueueTime > 0 && SignerExecutor.getWaited() > maxQueueTime) {
+                LOGGER.warn("Rejecting signature queued for {} ms", TimeUnit.NANOSECONDS.toMillis(SignerExecutor.getWaited()));
+
+                reject(builder, QUEUE_TIMEOUT_MESSAGE);
+
+                spool.delete(source);
+
+                completion.accept(builder, null);
+
+                return;
+            }
+
+            try (Scope scope = transaction.activate()) {
+                sign(builder, request, source, completion);
+            } catch (QueueTimeoutException e) {
+                reject(builder, e.getMessage());
+
+                spool.delete(source);
+
+                completion.accept(builder, null);
+            } catch (Exception e) {
+                LOGGER.error("Unable to sign", e);
+
+                builder.setMessage(e.getMessage());
+
+                spool.delete(source);
+
+                completion.accept(builder, null);
+            }
+        });
+    }
+
     /**
      * Sends a file to sign.
      * @param request The sign request
@@ -292,68 +1238,490 @@ public class SignerService extends SignerGrpc.SignerImplBase {
         builder.setInvalidPassword(false);
         builder.setRetry(false);
 
+        schedule(builder, request, null, (b, prepared) -> {
+            attach(b, prepared);
+
+            reply(b, responseObserver);
+        });
+    }
+
+    /**
+     * Sends many files of the same signer to sign in a single Segpres request.
+     * <p>
+     * The documents are prepared in parallel on the signer executor, with the priority of the
+     * request, and their digests are sent in a
+     * single ticket. A document that cannot be prepared fails alone.
+     * @param request The sign batch request
+     * @param responseObserver The response observer
+     */
+    @Override
+    public void sendBatch(SignBatchRequest request, StreamObserver<SignBatchReply> responseObserver) {
+        SignReply.Builder status = SignReply.newBuilder();
+
+        status.setSuccess(false);
+        status.setInvalidPassword(false);
+        status.setRetry(false);
+
+        List<SignReply.Builder> builders = new ArrayList<>();
         try {
             String rut = request.getRut();
             if (rut == null || rut.isEmpty()) {
                 throw new SignException("Got null or empty RUT");
             }
 
+            if (request.getDocumentsCount() == 0) {
+                throw new SignException("Got null or empty documents");
+            }
+
             Transaction transaction = ElasticApm.currentTransaction();
             transaction.setUser(rut, null, null);
 
-            String password = null;
-            String encryptedPassword = request.getPassword();
-            if (encryptedPassword != null && !encryptedPassword.isEmpty()) {
-                File file = new File("secret/private.pem");
+            String password = decrypt(request.getPassword());
+
+            boolean attended = request.getAttended();
+
+            SegpresService service = getService(rut, password, attended);
+
+            List<CompletableFuture<PreparedSignature>> futures = new ArrayList<>();
+            for (SignDocument document : request.getDocumentsList()) {
+                SignReply.Builder builder = SignReply.newBuilder();
+
+                builder.setSuccess(false);
+                builder.setInvalidPassword(false);
+                builder.setRetry(false);
+
+                builders.add(builder);
+
+                futures.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        ByteString file = document.getFile();
+                        if (file == null || file.isEmpty()) {
+                            throw new SignException("Got null or empty file");
+                        }
+
+                        Layout layout = getLayout(
+                            document.getSignature(),
+                            document.getLlx(),
+                            document.getLly(),
+                            document.getUrx(),
+                            document.getUry(),
+                            document.getPage()
+                        );
+
+                        return prepare(service, file, null, layout);
+                    } catch (QueueTimeoutException e) {
+                        reject(builder, e.getMessage());
+
+                        return null;
+                    } catch (Exception e) {
+                        LOGGER.error("Unable to prepare document {}", document.getName(), e);
+
+                        builder.setMessage(e.getMessage());
+
+                        return null;
+                    }
+                }, getExecutor(attended)));
+            }
+
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenComposeAsync(v -> {
+                List<PreparedSignature> prepared = new ArrayList<>();
+                List<String> sent = new ArrayList<>();
+                for (CompletableFuture<PreparedSignature> future : futures) {
+                    PreparedSignature signature = future.join();
+
+                    prepared.add(signature);
+                    if (signature != null) {
+                        sent.add(signature.getHash());
+                    }
+                }
+
+                if (sent.isEmpty()) {
+                    status.setMessage("Unable to prepare any document");
+
+                    return CompletableFuture.completedFuture(null);
+                }
+
+                SignatureRequest signatureRequest;
+                try {
+                    signatureRequest = getRequest(rut, attended, sent);
+                } catch (Exception e) {
+                    LOGGER.error("Unable to sign batch", e);
+
+                    status.setMessage(e.getMessage());
+
+                    return completeBatch(status, builders, prepared, null, e, attended);
+                }
+
+                return executeAsync(service, signatureRequest, attended)
+                    .handleAsync((response, t) -> completeBatch(status, builders, prepared, response, t, attended), getExecutor(attended))
+                    .thenCompose(future -> future);
+            }, getExecutor(attended)).whenComplete((v, t) -> {
+                if (t != null) {
+                    LOGGER.error("Unable to sign batch", t);
+
+                    status.setMessage(t.getMessage());
+                }
+
+                replyBatch(status, builders, responseObserver);
+            });
+        } catch (Exception e) {
+            LOGGER.error("Unable to sign batch", e);
+
+            status.setMessage(e.getMessage());
+
+            replyBatch(status, builders, responseObserver);
+        }
+    }
+
+    /**
+     * Sends a file to sign in chunks.
+     * <p>
+     * The first message carries the request without the file, the next ones the file chunks, which
+     * are spooled to disk as they arrive, so the file is never held on the heap nor limited by the
+     * maximum inbound message size. The call fails with {@code RESOURCE_EXHAUSTED} as soon as the
+     * file exceeds the maximum upload size, so a client cannot fill the spool directory.
+     * @param responseObserver The response observer
+     * @return The request observer
+     */
+    @Override
+    public StreamObserver<SignStreamRequest> sendStream(StreamObserver<SignReply> responseObserver) {
+        return new StreamObserver<SignStreamRequest>() {
+
+            /**
+             * The request without the file.
+             */
+            private SignRequest header;
+            /**
+             * The spooled file.
+             */
+            private File file;
+            /**
+             * The spooled file output stream.
+             */
+            private OutputStream out;
+            /**
+             * The bytes spooled.
+             */
+            private long size;
+            /**
+             * The first error, the next chunks are discarded.
+             */
+            private Exception error;
+            /**
+             * Whether the call failed, the next messages are ignored.
+             */
+            private boolean failed;
+
+            @Override
+            public void onNext(SignStreamRequest value) {
+                if (error != null || failed) {
+                    return;
+                }
+
+                try {
+                    if (header == null) {
+                        if (!value.hasHeader()) {
+                            throw new SignException("Got no header");
+                        }
 
-                PrivateKey key = getPrivateKey(file);
+                        header = value.getHeader();
+
+                        file = spool.createFile("upload");
+                        out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+                    } else {
+                        if (value.hasHeader()) {
+                            throw new SignException("Got more than one header");
+                        }
+
+                        ByteString chunk = value.getChunk();
+                        if (size + chunk.size() > maxUploadSize) {
+                            fail(Status.RESOURCE_EXHAUSTED.withDescription(String.format("File exceeds the maximum size of %d bytes", maxUploadSize)));
+
+                            return;
+                        }
+
+                        chunk.writeTo(out);
+
+                        size += chunk.size();
+                    }
+                } catch (Exception e) {
+                    error = e;
+
+                    cleanup();
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                if (failed) {
+                    return;
+                }
+
+                LOGGER.warn("Stream cancelled ({})", t.getMessage());
+
+                cleanup();
+            }
+
+            @Override
+            public void onCompleted() {
+                if (failed) {
+                    return;
+                }
+
+                SignReply.Builder builder = SignReply.newBuilder();
+
+                builder.setSuccess(false);
+                builder.setInvalidPassword(false);
+                builder.setRetry(false);
+
+                try {
+                    if (error != null) {
+                        throw error;
+                    }
+
+                    if (header == null) {
+                        throw new SignException("Got no header");
+                    }
+
+                    out.close();
+                    out = null;
+
+                    // the file is deleted by the prepared signature
+                    schedule(builder, header, file, (b, prepared) -> {
+                        attach(b, prepared);
+
+                        reply(b, responseObserver);
+                    });
+                } catch (Exception e) {
+                    LOGGER.error("Unable to sign", e);
+
+                    builder.setMessage(e.getMessage());
+
+                    cleanup();
+
+                    reply(builder, responseObserver);
+                }
+            }
 
-                Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
-                cipher.init(Cipher.DECRYPT_MODE, key);
+            /**
+             * Fails the call without waiting for the next chunks, deleting the spooled file.
+             * @param status The status
+             */
+            private void fail(Status status) {
+                LOGGER.warn("Failing stream ({})", status.getDescription());
 
-                byte[] decryptedPassword = cipher.doFinal(Base64.getDecoder().decode(encryptedPassword));
+                failed = true;
 
-                password = new String(decryptedPassword, StandardCharsets.UTF_8);
+                cleanup();
 
-                //LOGGER.debug("Password: {}", password);
+                responseObserver.onError(status.asRuntimeException());
             }
 
+            /**
+             * Closes and deletes the spooled file.
+             */
+            private void cleanup() {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        LOGGER.warn("Unable to close spool file", e);
+                    }
+
+                    out = null;
+                }
+
+                spool.delete(file);
+            }
+        };
+    }
+
+    /**
+     * Sends a file to sign, receiving the signed file in chunks.
+     * <p>
+     * The first message carries the reply without the file, the next ones the signed file chunks,
+     * sent only while the client is ready to receive them.
+     * @param request The sign request
+     * @param responseObserver The response observer
+     */
+    @Override
+    public void sendChunked(SignRequest request, StreamObserver<SignStreamReply> responseObserver) {
+        ChunkedReply reply = new ChunkedReply((ServerCallStreamObserver<SignStreamReply>) responseObserver);
+
+        SignReply.Builder builder = SignReply.newBuilder();
+
+        builder.setSuccess(false);
+        builder.setInvalidPassword(false);
+        builder.setRetry(false);
+
+        schedule(builder, request, null, reply::start);
+    }
+
+    /**
+     * Prepares a file to sign, without the password.
+     * <p>
+     * The PDF is stamped and kept in a session while the user types the OTP, the Complete call then
+     * only waits for Segpres.
+     * @param request The sign request (the password is ignored)
+     * @param responseObserver The response observer
+     */
+    @Override
+    public void prepare(SignRequest request, StreamObserver<PrepareReply> responseObserver) {
+        PrepareReply.Builder builder = PrepareReply.newBuilder();
+
+        builder.setSuccess(false);
+
+        try {
+            String rut = request.getRut();
+            if (rut == null || rut.isEmpty()) {
+                throw new SignException("Got null or empty RUT");
+            }
+
+            Transaction transaction = ElasticApm.currentTransaction();
+            transaction.setUser(rut, null, null);
+
             ByteString file = request.getFile();
             if (file == null || file.isEmpty()) {
                 throw new SignException("Got null or empty file");
             }
 
-            String layout;
-            ByteString signature = request.getSignature();
-            if (signature == null || signature.isEmpty()) {
-                layout = LayoutUtil.getInvisibleLayout();
-            } else {
-                layout = LayoutUtil.getVisibleLayout(
-                    request.getLlx(),
-                    request.getLly(),
-                    request.getUrx(),
-                    request.getUry(),
-                    request.getPage(),
-                    Base64.getEncoder().encodeToString(signature.toByteArray())
-                );
+            Layout layout = getLayout(
+                request.getSignature(),
+                request.getLlx(),
+                request.getLly(),
+                request.getUrx(),
+                request.getUry(),
+                request.getPage()
+            );
+
+            boolean attended = request.getAttended();
+
+            PreparedSignature prepared = prepare(getService(rut, null, attended), file, null, layout);
+
+            Session session = sessions.put(prepared, rut, attended, prepared.getMemory());
+
+            builder.setSuccess(true);
+            builder.setMessage("We are prepared!");
+            builder.setSession(session.id);
+            builder.setExpires(session.expiresAt);
+        } catch (Exception e) {
+            LOGGER.error("Unable to prepare", e);
+
+            builder.setMessage(e.getMessage());
+        }
+
+        responseObserver.onNext(builder.build());
+        responseObserver.onCompleted();
+    }
+
+    /**
+     * Completes a prepared file with the password.
+     * <p>
+     * The session is consumed, a failed signature must be prepared again.
+     * @param request The complete request
+     * @param responseObserver The response observer
+     */
+    @Override
+    public void complete(CompleteRequest request, StreamObserver<SignReply> responseObserver) {
+        SignReply.Builder builder = SignReply.newBuilder();
+
+        builder.setSuccess(false);
+        builder.setInvalidPassword(false);
+        builder.setRetry(false);
+
+        try {
+            String password = decrypt(request.getPassword());
+
+            Session session = sessions.remove(request.getSession());
+            if (session == null && retries != null) {
+                session = retries.remove(request.getSession()); // a retry token of a failed Complete
+            }
+
+            if (session == null) {
+                throw new SignException("Got unknown or expired session");
             }
 
-            generateAndExecute(builder, rut, password, file, layout, request.getAttended());
+            Transaction transaction = ElasticApm.currentTransaction();
+            transaction.setUser(session.rut, null, null);
+
+            SegpresService service = getService(session.rut, password, session.attended);
+
+            execute(builder, service, session.rut, session.attended, session.prepared, (b, prepared) -> {
+                attach(b, prepared);
+
+                reply(b, responseObserver);
+            });
         } catch (Exception e) {
             LOGGER.error("Unable to sign", e);
 
             builder.setMessage(e.getMessage());
 
-            //responseObserver.onError(e);
-            //return;
+            reply(builder, responseObserver);
         }
+    }
 
-        // BEWARE: uncomment this only for debugging
-        // if (LOGGER.isTraceEnabled()) {
-        //     LOGGER.trace("Sign Reply: {}", builder.toString());
-        // }
+    /**
+     * Signs SHA-256 digests of documents prepared by the client, in a single Segpres request.
+     * <p>
+     * No PDF is received nor stamped, each reply carries the raw CMS of its digest to be embedded
+     * by the client in its own reserved signature dictionary.
+     * @param request The sign hash request
+     * @param responseObserver The response observer
+     */
+    @Override
+    public void signHash(SignHashRequest request, StreamObserver<SignHashReply> responseObserver) {
+        SignReply.Builder status = SignReply.newBuilder();
 
-        responseObserver.onNext(builder.build());
-        responseObserver.onCompleted();
+        status.setSuccess(false);
+        status.setInvalidPassword(false);
+        status.setRetry(false);
+
+        List<String> sent = new ArrayList<>();
+        try {
+            String rut = request.getRut();
+            if (rut == null || rut.isEmpty()) {
+                throw new SignException("Got null or empty RUT");
+            }
+
+            if (request.getHashesCount() == 0) {
+                throw new SignException("Got null or empty hashes");
+            }
+
+            for (ByteString hash : request.getHashesList()) {
+                if (hash.size() != 32) {
+                    throw new SignException(String.format("Got invalid SHA-256 hash of %d bytes", hash.size()));
+                }
+
+                sent.add(Base64.getEncoder().encodeToString(hash.toByteArray()));
+            }
+
+            Transaction transaction = ElasticApm.currentTransaction();
+            transaction.setUser(rut, null, null);
+
+            String password = decrypt(request.getPassword());
+
+            boolean attended = request.getAttended();
+
+            SegpresService service = getService(rut, password, attended);
+
+            executeAsync(service, getRequest(rut, attended, sent), attended).whenCompleteAsync((response, t) -> {
+                List<HashResponse> hashes = null;
+                try {
+                    hashes = handle(status, response, t);
+                } catch (Exception e) {
+                    LOGGER.error("Unable to sign hashes", e);
+
+                    status.setMessage(e.getMessage());
+                }
+
+                replyHash(status, request.getHashesList(), sent, hashes, responseObserver);
+            }, getExecutor(attended));
+        } catch (Exception e) {
+            LOGGER.error("Unable to sign hashes", e);
+
+            status.setMessage(e.getMessage());
+
+            replyHash(status, request.getHashesList(), sent, null, responseObserver);
+        }
     }
 }
@@ -2,12 +2,17 @@ package cl.uchile.fea.jwt;
 
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 import java.util.Base64;
-import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Queue;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
@@ -16,6 +21,9 @@ import com.google.gson.Gson;
 
 /**
  * The JSON Web Token utility.
+ * <p>
+ * The tokens are cached by RUN and purpose and reused until shortly before their expiration, so
+ * the batches of the same signer do not mint a token per document.
  */
 public final class JwtUtil {
 
@@ -24,25 +32,107 @@ public final class JwtUtil {
      */
     private static final String PATTERN = "yyyy-MM-dd'T'HH:mm:ss"; // YYYY-MM-DDTHH:MM:SS
 
+    /**
+     * The time to live of a token (in milliseconds).
+     */
+    private static final long TTL = TimeUnit.MINUTES.toMillis(5); // should not be more than 30 minutes from the current time (CLT)
+    /**
+     * The safety margin before the expiration, after which a new token is minted (in milliseconds).
+     */
+    private static final long MARGIN = TimeUnit.MINUTES.toMillis(1);
+
+    /**
+     * The JSON serializer (thread safe).
+     */
+    private static final Gson GSON = new Gson();
+
+    /**
+     * The expiration formatter, in the APP_TIMEZONE time zone (the system one if not set).
+     */
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern(PATTERN).withZone(getZone());
+
+    /**
+     * The header encoded in base64 (always the same).
+     */
+    private static final String HEADER = getHeader();
+
+    /**
+     * The HMAC-SHA256 instances initialized with the secret, not in use (one per concurrent mint at
+     * most, instead of one per thread that ever minted a token, virtual threads included).
+     */
+    private static final Queue<Mac> MACS = new ConcurrentLinkedQueue<>();
+
+    /**
+     * The tokens by RUN and purpose.
+     */
+    private static final Map<String, Token> TOKENS = new ConcurrentHashMap<>();
+
+    private JwtUtil() {
+    }
+
+    /**
+     * Gets the expiration time zone.
+     * @return The APP_TIMEZONE time zone (the system one if not set)
+     */
+    private static ZoneId getZone() {
+        String timezone = System.getenv("APP_TIMEZONE");
+        if (timezone != null && !timezone.isEmpty()) {
+            return TimeZone.getTimeZone(timezone).toZoneId(); // GMT if unknown, as before
+        }
+
+        return ZoneId.systemDefault();
+    }
+
+    /**
+     * Gets the header.
+     * @return The header encoded in base64
+     */
+    private static String getHeader() {
+        Map<String, Object> header = new HashMap<>();
+        header.put("typ", "JWT");
+        header.put("alg", "HS256");
+
+        return Base64.getEncoder().encodeToString(GSON.toJson(header).getBytes());
+    }
+
+    /**
+     * Takes an HMAC-SHA256 instance from the pool, initializing a new one with the SEGPRES_SECRET
+     * key if none is free.
+     * @return The MAC
+     * @throws NoSuchAlgorithmException if no Provider supports a MacSpi implementation for the specified algorithm
+     * @throws InvalidKeyException if the given key is inappropriate for initializing this MAC
+     */
+    private static Mac getMac() throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac mac = MACS.poll();
+        if (mac == null) {
+            mac = Mac.getInstance("HmacSHA256");
+
+            SecretKeySpec key = new SecretKeySpec(System.getenv("SEGPRES_SECRET").getBytes(), "HmacSHA256");
+            mac.init(key);
+        }
+
+        return mac;
+    }
+
     /**
      * Generates the signature using the HMAC-SHA256 algorithm.
      * @param data The data (header and payload) encode in base64
-     * @param secret The secret key
      * @return The HS256 signature
      * @throws NoSuchAlgorithmException if no Provider supports a MacSpi implementation for the specified algorithm
      * @throws InvalidKeyException if the given key is inappropriate for initializing this MAC
      */
-    private static byte[] getSignature(String data, String secret) throws NoSuchAlgorithmException, InvalidKeyException {
-        Mac mac = Mac.getInstance("HmacSHA256");
-        
-        SecretKeySpec key = new SecretKeySpec(secret.getBytes(), "HmacSHA256");
-        mac.init(key);
+    private static byte[] getSignature(String data) throws NoSuchAlgorithmException, InvalidKeyException {
+        Mac mac = getMac();
+
+        byte[] signature = mac.doFinal(data.getBytes()); // resets the MAC for the next call
 
-        return mac.doFinal(data.getBytes());
+        MACS.offer(mac);
+
+        return signature;
     }
 
     /**
-     * Generates the JSON Web Token.
+     * Gets the JSON Web Token, reusing the cached one until shortly before its expiration.
      * @param rut The RUT (Rol Único Tributario) in {@code 0XXXXXXXXX} format (e.g. 0123456785)
      * @param attended Whether the signature is attended
      * @return The token
@@ -50,49 +140,89 @@ public final class JwtUtil {
      * @throws InvalidKeyException if the given key is inappropriate for initializing this MAC
      */
     public static String generate(String rut, boolean attended) throws NoSuchAlgorithmException, InvalidKeyException {
-        Map<String, Object> header = new HashMap<>();
-        header.put("typ", "JWT");
-        header.put("alg", "HS256");
-
         String run = rut.replaceFirst("^0*", ""); // remove the leading zeros
         run = run.substring(0, run.length() - 1); // remove the last character (verification digit)
 
-        Map<String, Object> payload = new HashMap<>();
-        payload.put("run", run);
-        payload.put("entity", "Universidad de Chile");
-
         String purpose;
         if (attended) {
             purpose = "Propósito General";
         } else {
             purpose = "Desatendido";
         }
-        payload.put("purpose", purpose);
 
-        Calendar cal = Calendar.getInstance();
-        cal.add(Calendar.MINUTE, 5); // should not be more than 30 minutes from the current time (CLT)
+        String key = run + ":" + purpose;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(PATTERN);
+        long now = System.currentTimeMillis();
 
-        String timezone = System.getenv("APP_TIMEZONE");
-        if (timezone != null && !timezone.isEmpty()) {
-            sdf.setTimeZone(TimeZone.getTimeZone(timezone));
+        Token token = TOKENS.get(key);
+        if (token != null && !token.isStale(now)) {
+            return token.value;
         }
 
-        String expiration = sdf.format(cal.getTime());
+        TOKENS.values().removeIf(t -> t.isStale(now)); // forget the signers gone
 
-        payload.put("expiration", expiration);
+        token = mint(run, purpose, now + TTL);
 
-        Gson gson = new Gson();
+        TOKENS.put(key, token); // a concurrent mint for the same key is harmless
+
+        return token.value;
+    }
+
+    /**
+     * Mints a new JSON Web Token.
+     * @param run The RUN (without verification digit)
+     * @param purpose The purpose
+     * @param expiresAt The expiration (Unix time in milliseconds)
+     * @return The token
+     * @throws NoSuchAlgorithmException if no Provider supports a MacSpi implementation for the specified algorithm
+     * @throws InvalidKeyException if the given key is inappropriate for initializing this MAC
+     */
+    private static Token mint(String run, String purpose, long expiresAt) throws NoSuchAlgorithmException, InvalidKeyException {
+        Map<String, Object> payload = new HashMap<>();
+        payload.put("run", run);
+        payload.put("entity", "Universidad de Chile");
+        payload.put("purpose", purpose);
+        payload.put("expiration", FORMATTER.format(Instant.ofEpochMilli(expiresAt)));
 
         String data = String.format("%s.%s",
-            Base64.getEncoder().encodeToString(gson.toJson(header).getBytes()),
-            Base64.getEncoder().encodeToString(gson.toJson(payload).getBytes())
+            HEADER,
+            Base64.getEncoder().encodeToString(GSON.toJson(payload).getBytes())
         );
 
-        return String.format("%s.%s",
+        String value = String.format("%s.%s",
             data,
-            Base64.getEncoder().encodeToString(getSignature(data, System.getenv("SEGPRES_SECRET")))
+            Base64.getEncoder().encodeToString(getSignature(data))
         );
+
+        return new Token(value, expiresAt);
+    }
+
+    /**
+     * The minted token.
+     */
+    private static final class Token {
+
+        /**
+         * The token.
+         */
+        private final String value;
+        /**
+         * The expiration (Unix time in milliseconds).
+         */
+        private final long expiresAt;
+
+        Token(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * Gets whether the token is within the safety margin of its expiration.
+         * @param now The current time (Unix time in milliseconds)
+         * @return Whether a new token must be minted
+         */
+        boolean isStale(long now) {
+            return now >= expiresAt - MARGIN;
+        }
     }
 }
@@ -0,0 +1,80 @@
+package cl.uchile.fea.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A counter, optionally split by the values of a single label.
+ * <p>
+ * Backed by striped adders, so the increments do not contend.
+ */
+public class Counter implements Metric {
+
+    /**
+     * The name (ending in _total).
+     */
+    private final String name;
+    /**
+     * The help.
+     */
+    private final String help;
+    /**
+     * The label name (null if not labeled).
+     */
+    private final String label;
+    /**
+     * The counts by label value (the empty value if not labeled).
+     */
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a counter.
+     * @param name The name (ending in _total)
+     * @param help The help
+     * @param label The label name (null if not labeled)
+     */
+    Counter(String name, String help, String label) {
+        this.name = name;
+        this.help = help;
+        this.label = label;
+
+        if (label == null) {
+            counts.put("", new LongAdder());
+        }
+    }
+
+    /**
+     * Increments the counter.
+     */
+    public void inc() {
+        inc("");
+    }
+
+    /**
+     * Increments the counter of the label value.
+     * @param value The label value (a few distinct values, e.g. a status code)
+     */
+    public void inc(String value) {
+        LongAdder count = counts.get(value); // computeIfAbsent locks the bin even if present (Java 8)
+        if (count == null) {
+            count = counts.computeIfAbsent(value, v -> new LongAdder());
+        }
+
+        count.increment();
+    }
+
+    @Override
+    public void write(StringBuilder out) {
+        MetricsRegistry.header(out, name, help, "counter");
+
+        for (Map.Entry<String, LongAdder> entry : counts.entrySet()) {
+            out.append(name);
+            if (label != null) {
+                out.append('{').append(label).append("=\"").append(MetricsRegistry.escape(entry.getKey())).append("\"}");
+            }
+
+            out.append(' ').append(entry.getValue().sum()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package cl.uchile.fea.metrics;
+
+import java.util.function.DoubleSupplier;
+
+/**
+ * A metric sampled when scraped, from a getter of the instrumented component.
+ * <p>
+ * Also used for the counters the components already keep (typed counter), so they are exported
+ * without being counted twice.
+ */
+class Gauge implements Metric {
+
+    /**
+     * The name.
+     */
+    private final String name;
+    /**
+     * The help.
+     */
+    private final String help;
+    /**
+     * The type (gauge or counter).
+     */
+    private final String type;
+    /**
+     * The value supplier.
+     */
+    private final DoubleSupplier supplier;
+
+    /**
+     * Creates a sampled metric.
+     * @param name The name
+     * @param help The help
+     * @param type The type (gauge or counter)
+     * @param supplier The value supplier
+     */
+    Gauge(String name, String help, String type, DoubleSupplier supplier) {
+        this.name = name;
+        this.help = help;
+        this.type = type;
+        this.supplier = supplier;
+    }
+
+    @Override
+    public void write(StringBuilder out) {
+        MetricsRegistry.header(out, name, help, type);
+
+        out.append(name).append(' ').append(MetricsRegistry.format(supplier.getAsDouble())).append('\n');
+    }
+}
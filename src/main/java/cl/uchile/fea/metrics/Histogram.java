@@ -0,0 +1,90 @@
+package cl.uchile.fea.metrics;
+
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram with fixed buckets.
+ * <p>
+ * Each observation only increments a striped adder, so concurrent threads do not contend on a
+ * lock nor on a single atomic; the buckets are summed when scraped.
+ */
+public class Histogram implements Metric {
+
+    /**
+     * The name.
+     */
+    private final String name;
+    /**
+     * The help.
+     */
+    private final String help;
+    /**
+     * The bucket upper bounds (inclusive, ascending, +Inf implied).
+     */
+    private final double[] bounds;
+    /**
+     * The counts by bucket (not cumulative, the last one is +Inf).
+     */
+    private final LongAdder[] counts;
+    /**
+     * The sum of the observations.
+     */
+    private final DoubleAdder sum = new DoubleAdder();
+
+    /**
+     * Creates a histogram.
+     * @param name The name
+     * @param help The help
+     * @param bounds The bucket upper bounds (ascending)
+     */
+    Histogram(String name, String help, double[] bounds) {
+        this.name = name;
+        this.help = help;
+        this.bounds = bounds.clone();
+
+        counts = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Observes a value.
+     * @param value The value
+     */
+    public void observe(double value) {
+        int i = 0;
+        while (i < bounds.length && value > bounds[i]) {
+            i++;
+        }
+
+        counts[i].increment();
+        sum.add(value);
+    }
+
+    /**
+     * Observes the time elapsed since the start, in seconds.
+     * @param start The start (from {@link System#nanoTime()})
+     */
+    public void observeSince(long start) {
+        observe((System.nanoTime() - start) / 1e9);
+    }
+
+    @Override
+    public void write(StringBuilder out) {
+        MetricsRegistry.header(out, name, help, "histogram");
+
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            count += counts[i].sum();
+
+            out.append(name).append("_bucket{le=\"")
+                .append(i < bounds.length ? MetricsRegistry.format(bounds[i]) : "+Inf")
+                .append("\"} ").append(count).append('\n');
+        }
+
+        out.append(name).append("_sum ").append(MetricsRegistry.format(sum.sum())).append('\n');
+        out.append(name).append("_count ").append(count).append('\n');
+    }
+}
@@ -0,0 +1,13 @@
+package cl.uchile.fea.metrics;
+
+/**
+ * A metric written in the Prometheus text format.
+ */
+interface Metric {
+
+    /**
+     * Writes the samples of the metric, with its HELP and TYPE lines.
+     * @param out The output
+     */
+    void write(StringBuilder out);
+}
@@ -0,0 +1,134 @@
+package cl.uchile.fea.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.DoubleSupplier;
+
+/**
+ * The metrics registry, written in the Prometheus text format (version 0.0.4).
+ * <p>
+ * The metrics are registered on startup and only read when scraped, so recording never goes
+ * through the registry.
+ */
+public class MetricsRegistry {
+
+    /**
+     * The latency buckets (in seconds), from 1 millisecond to 1 minute.
+     */
+    public static final double[] LATENCY_BUCKETS = { 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+
+    /**
+     * The size buckets (in bytes), from 1 KB to 256 MB.
+     */
+    public static final double[] SIZE_BUCKETS = { 1024, 4096, 16384, 65536, 262144, 1048576, 4194304, 16777216, 67108864, 268435456 };
+
+    /**
+     * The metrics, in registration order.
+     */
+    private final List<Metric> metrics = new CopyOnWriteArrayList<>();
+
+    /**
+     * Registers a histogram.
+     * @param name The name
+     * @param help The help
+     * @param bounds The bucket upper bounds (ascending)
+     * @return The histogram
+     */
+    public Histogram histogram(String name, String help, double[] bounds) {
+        Histogram histogram = new Histogram(name, help, bounds);
+        metrics.add(histogram);
+
+        return histogram;
+    }
+
+    /**
+     * Registers a counter.
+     * @param name The name (ending in _total)
+     * @param help The help
+     * @return The counter
+     */
+    public Counter counter(String name, String help) {
+        return counter(name, help, (String) null);
+    }
+
+    /**
+     * Registers a counter split by the values of a label.
+     * @param name The name (ending in _total)
+     * @param help The help
+     * @param label The label name
+     * @return The counter
+     */
+    public Counter counter(String name, String help, String label) {
+        Counter counter = new Counter(name, help, label);
+        metrics.add(counter);
+
+        return counter;
+    }
+
+    /**
+     * Registers a counter kept by the instrumented component.
+     * @param name The name (ending in _total)
+     * @param help The help
+     * @param supplier The getter of the counter
+     */
+    public void counter(String name, String help, DoubleSupplier supplier) {
+        metrics.add(new Gauge(name, help, "counter", supplier));
+    }
+
+    /**
+     * Registers a gauge.
+     * @param name The name
+     * @param help The help
+     * @param supplier The getter of the value
+     */
+    public void gauge(String name, String help, DoubleSupplier supplier) {
+        metrics.add(new Gauge(name, help, "gauge", supplier));
+    }
+
+    /**
+     * Writes every metric.
+     * @return The metrics in the Prometheus text format
+     */
+    public String scrape() {
+        StringBuilder out = new StringBuilder(8192);
+        for (Metric metric : metrics) {
+            metric.write(out);
+        }
+
+        return out.toString();
+    }
+
+    /**
+     * Writes the HELP and TYPE lines.
+     * @param out The output
+     * @param name The name
+     * @param help The help
+     * @param type The type
+     */
+    static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    /**
+     * Formats a sample value.
+     * @param value The value
+     * @return The value (integers without decimals)
+     */
+    static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+
+        return Double.toString(value);
+    }
+
+    /**
+     * Escapes a label value.
+     * @param value The value
+     * @return The escaped value
+     */
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
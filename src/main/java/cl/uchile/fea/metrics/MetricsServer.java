@@ -0,0 +1,112 @@
+package cl.uchile.fea.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The metrics HTTP server, serving {@code GET /metrics} on its own port, apart from the gRPC one.
+ * <p>
+ * Scrapes are answered by a single daemon thread, so they never compete with the signer threads.
+ */
+public class MetricsServer {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricsServer.class);
+
+    /**
+     * The listening port.
+     */
+    private final int port;
+    /**
+     * The metrics registry.
+     */
+    private final MetricsRegistry registry;
+
+    /**
+     * The HTTP server (null if not started).
+     */
+    private HttpServer server;
+    /**
+     * The executor of the HTTP server.
+     */
+    private ExecutorService executor;
+
+    /**
+     * Creates a metrics server listening on {@code port}.
+     * @param port The listening port
+     * @param registry The metrics registry
+     */
+    public MetricsServer(int port, MetricsRegistry registry) {
+        this.port = port;
+        this.registry = registry;
+    }
+
+    /**
+     * Start serving the metrics.
+     * @throws IOException if unable to bind
+     */
+    public void start() throws IOException {
+        executor = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", this::handle);
+        server.setExecutor(executor);
+        server.start();
+
+        LOGGER.info("Metrics server started, listening on port {}", port);
+    }
+
+    /**
+     * Stop serving the metrics.
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdown();
+
+            server = null;
+        }
+    }
+
+    /**
+     * Handles the exchange.
+     * @param exchange The HTTP exchange
+     * @throws IOException on error
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+
+                return;
+            }
+
+            byte[] body = registry.scrape().getBytes(StandardCharsets.UTF_8);
+
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package cl.uchile.fea.segpres;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import com.itextpdf.text.BadElementException;
+import com.itextpdf.text.DocumentException;
+import com.itextpdf.text.Image;
+import com.itextpdf.text.pdf.PdfSignatureAppearance;
+import com.itextpdf.text.pdf.PdfTemplate;
+
+/**
+ * The visible signature appearance cache.
+ * <p>
+ * iText renders the graphic layer (n2) of every visible signature through a column layout and
+ * deflates the image pixels again for each document, which makes a visible signature several times
+ * slower than an invisible one. The appearances are kept by image hash and rectangle size with the
+ * image already placed and its pixels already deflated, so each document only draws the image and
+ * copies the compressed stream. The least recently used appearances are evicted over the memory budget.
+ */
+public class AppearanceCache {
+
+    /**
+     * The margin around the image (the same as iText).
+     */
+    private static final float MARGIN = 2;
+
+    /**
+     * The signature image cache (used on misses).
+     */
+    private final ImageCache imageCache;
+    /**
+     * The maximum memory held by the appearances (in bytes).
+     */
+    private final long maxMemory;
+
+    /**
+     * The appearances by key, in access order (the least recently used first).
+     */
+    private final Map<String, Appearance> appearances = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * The memory held by the appearances (in bytes).
+     */
+    private long memory;
+
+    /**
+     * The number of hits.
+     */
+    private final AtomicLong hits = new AtomicLong();
+    /**
+     * The number of misses.
+     */
+    private final AtomicLong misses = new AtomicLong();
+    /**
+     * The number of evictions.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a visible signature appearance cache.
+     * @param imageCache The signature image cache (used on misses)
+     * @param maxMemory The maximum memory held by the appearances (in bytes, 0 to disable)
+     */
+    public AppearanceCache(ImageCache imageCache, long maxMemory) {
+        this.imageCache = imageCache;
+        this.maxMemory = maxMemory;
+    }
+
+    /**
+     * Gets the graphic appearance of the image for the rectangle.
+     * @param bytes The image bytes
+     * @param width The rectangle width (in points)
+     * @param height The rectangle height (in points)
+     * @return The appearance
+     * @throws BadElementException if the image is invalid
+     * @throws IOException if the image cannot be read
+     */
+    public Appearance get(byte[] bytes, float width, float height) throws BadElementException, IOException {
+        String key = ImageCache.getKey(bytes) + ":" + width + "x" + height;
+
+        Appearance appearance;
+        synchronized (appearances) {
+            appearance = appearances.get(key);
+        }
+
+        if (appearance != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+
+            appearance = render(imageCache.get(bytes, width, height), width, height);
+
+            put(key, appearance);
+        }
+
+        return appearance;
+    }
+
+    /**
+     * Gets the number of hits.
+     * @return The hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of misses.
+     * @return The misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of evictions.
+     * @return The evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Gets the memory held by the appearances.
+     * @return The memory (in bytes)
+     */
+    public long getMemory() {
+        synchronized (appearances) {
+            return memory;
+        }
+    }
+
+    /**
+     * Stores the appearance, evicting the least recently used ones over the memory budget.
+     * @param key The key
+     * @param appearance The appearance
+     */
+    private void put(String key, Appearance appearance) {
+        if (appearance.memory > maxMemory) {
+            return; // larger than the whole cache
+        }
+
+        synchronized (appearances) {
+            Appearance previous = appearances.put(key, appearance);
+            if (previous != null) {
+                memory -= previous.memory; // rendered concurrently
+            }
+
+            memory += appearance.memory;
+
+            Iterator<Appearance> iterator = appearances.values().iterator();
+            while (memory > maxMemory && iterator.hasNext()) {
+                Appearance eldest = iterator.next();
+
+                iterator.remove();
+                memory -= eldest.memory;
+
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Renders the graphic appearance: the image scaled to fit the rectangle minus the margin and
+     * centered, as iText does in the GRAPHIC rendering mode.
+     * @param image The image
+     * @param width The rectangle width (in points)
+     * @param height The rectangle height (in points)
+     * @return The appearance
+     * @throws IOException if the image cannot be deflated
+     */
+    private static Appearance render(Image image, float width, float height) throws IOException {
+        float availableWidth = width - 2 * MARGIN;
+        float availableHeight = height - 2 * MARGIN;
+
+        Image scaled = Image.getInstance(image);
+        scaled.scaleToFit(availableWidth, availableHeight);
+
+        float scaledWidth = scaled.getScaledWidth();
+        float scaledHeight = scaled.getScaledHeight();
+
+        Image deflated = deflate(image);
+
+        long memory = getMemory(deflated);
+        if (deflated.getImageMask() != null) {
+            memory += getMemory(deflated.getImageMask());
+        }
+
+        return new Appearance(
+            deflated,
+            scaledWidth,
+            scaledHeight,
+            MARGIN + (availableWidth - scaledWidth) / 2,
+            MARGIN + (availableHeight - scaledHeight) / 2,
+            memory
+        );
+    }
+
+    /**
+     * Deflates the raw pixels of the image and its mask, which iText would otherwise deflate when
+     * writing each document.
+     * @param image The image
+     * @return The image with deflated pixels (the same image if not raw or already deflated)
+     * @throws IOException if the pixels cannot be deflated
+     */
+    private static Image deflate(Image image) throws IOException {
+        Image mask = image.getImageMask() != null ? deflate(image.getImageMask()) : null;
+
+        if (!image.isImgRaw() || image.isDeflated() || image.getBpc() > 8) {
+            return image; // already encoded (JPEG, PNG without alpha, CCITT...)
+        }
+
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            Deflater deflater = new Deflater(image.getCompressionLevel());
+            try (DeflaterOutputStream dos = new DeflaterOutputStream(baos, deflater)) {
+                dos.write(image.getRawData());
+            } finally {
+                deflater.end();
+            }
+
+            return new DeflatedImage(image, baos.toByteArray(), mask);
+        }
+    }
+
+    /**
+     * Gets the memory held by the image.
+     * @param image The image
+     * @return The memory (in bytes, its encoded size)
+     */
+    private static long getMemory(Image image) {
+        return image.getRawData() != null ? image.getRawData().length : 0;
+    }
+
+    /**
+     * The rendered graphic appearance, shared by every document (iText only reads the image).
+     */
+    public static final class Appearance {
+
+        /**
+         * The image.
+         */
+        private final Image image;
+        /**
+         * The scaled width (in points).
+         */
+        private final float width;
+        /**
+         * The scaled height (in points).
+         */
+        private final float height;
+        /**
+         * The X coordinate (in points, relative to the rectangle).
+         */
+        private final float x;
+        /**
+         * The Y coordinate (in points, relative to the rectangle).
+         */
+        private final float y;
+        /**
+         * The memory held by the appearance (in bytes).
+         */
+        private final long memory;
+
+        Appearance(Image image, float width, float height, float x, float y, long memory) {
+            this.image = image;
+            this.width = width;
+            this.height = height;
+            this.x = x;
+            this.y = y;
+            this.memory = memory;
+        }
+
+        /**
+         * Draws the appearance in the graphic layer, so iText skips rendering it. The visible
+         * signature rectangle must be set before.
+         * @param appearance The PDF signature appearance
+         * @throws DocumentException if the image cannot be added
+         */
+        public void apply(PdfSignatureAppearance appearance) throws DocumentException {
+            PdfTemplate layer = appearance.getLayer(2);
+            layer.addImage(image, width, 0, 0, height, x, y);
+        }
+    }
+
+    /**
+     * The copy of a raw image with deflated pixels.
+     */
+    private static final class DeflatedImage extends Image {
+
+        DeflatedImage(Image image, byte[] data, Image mask) {
+            super(image);
+
+            this.rawData = data;
+            this.deflated = true;
+            this.imageMask = mask;
+            this.mySerialId = getSerialId();
+        }
+    }
+}
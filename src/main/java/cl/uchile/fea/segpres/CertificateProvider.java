@@ -0,0 +1,213 @@
+package cl.uchile.fea.segpres;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The placeholder certificate provider.
+ * <p>
+ * The self signed certificate only fills the signature slot until Segpres returns the real CMS,
+ * so a single certificate is shared by every request and rotated in the background.
+ */
+public class CertificateProvider {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(CertificateProvider.class);
+
+    /**
+     * The rotation interval (in milliseconds).
+     */
+    private final long rotation;
+    /**
+     * The rotation scheduler.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * The current certificate.
+     */
+    private volatile X509Certificate certificate;
+    /**
+     * The time when the current certificate was generated (in milliseconds).
+     */
+    private volatile long generatedAt;
+
+    /**
+     * The number of requests served with the cached certificate.
+     */
+    private final AtomicLong hits = new AtomicLong();
+    /**
+     * The number of requests that had to generate a certificate.
+     */
+    private final AtomicLong misses = new AtomicLong();
+    /**
+     * The number of background rotations.
+     */
+    private final AtomicLong rotations = new AtomicLong();
+
+    /**
+     * Creates a certificate provider.
+     * @param rotation The rotation interval (in milliseconds)
+     */
+    public CertificateProvider(long rotation) {
+        this.rotation = rotation;
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "certificate-provider");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Generates the first certificate and schedules the rotation.
+     * @throws GeneralSecurityException on key or certificate errors
+     * @throws OperatorCreationException if the content signer cannot be created
+     */
+    public void start() throws GeneralSecurityException, OperatorCreationException {
+        update(generate());
+
+        scheduler.scheduleWithFixedDelay(this::rotate, rotation, rotation, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the rotation.
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Gets the placeholder certificate.
+     * <p>
+     * A certificate is generated on the caller thread only if none is available or the background
+     * rotation fell behind (twice the rotation interval).
+     * @return The certificate
+     * @throws GeneralSecurityException on key or certificate errors
+     * @throws OperatorCreationException if the content signer cannot be created
+     */
+    public X509Certificate getCertificate() throws GeneralSecurityException, OperatorCreationException {
+        X509Certificate current = certificate;
+        if (current != null && System.currentTimeMillis() - generatedAt < 2 * rotation) {
+            hits.incrementAndGet();
+
+            return current;
+        }
+
+        misses.incrementAndGet();
+
+        synchronized (this) {
+            if (certificate == current) {
+                LOGGER.warn("Placeholder certificate unavailable or stale, generating on request");
+
+                update(generate());
+            }
+
+            return certificate;
+        }
+    }
+
+    /**
+     * Gets the number of requests served with the cached certificate.
+     * @return The hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of requests that had to generate a certificate.
+     * @return The misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of background rotations.
+     * @return The rotations
+     */
+    public long getRotations() {
+        return rotations.get();
+    }
+
+    /**
+     * Replaces the current certificate.
+     * @param certificate The certificate
+     */
+    private synchronized void update(X509Certificate certificate) {
+        this.certificate = certificate;
+        this.generatedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Rotates the certificate, keeping the current one on failure.
+     */
+    private void rotate() {
+        try {
+            update(generate());
+
+            rotations.incrementAndGet();
+
+            LOGGER.debug("Placeholder certificate rotated (hits: {}, misses: {})", hits.get(), misses.get());
+        } catch (Exception e) {
+            LOGGER.error("Unable to rotate placeholder certificate", e);
+        }
+    }
+
+    /**
+     * Generates a self signed certificate.
+     * @return The certificate
+     * @throws GeneralSecurityException on key or certificate errors
+     * @throws OperatorCreationException if the content signer cannot be created
+     */
+    private static X509Certificate generate() throws GeneralSecurityException, OperatorCreationException {
+        X500Name owner = new X500Name("CN=Temp"); // issuer and subject
+        Date notBefore = new Date(System.currentTimeMillis() - 24L * 60 * 60 * 1000); // from yesterday
+        Date notAfter = new Date(System.currentTimeMillis() + 2L * 365 * 24 * 60 * 60 * 1000); // in 2 years
+
+        KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA", "BC");
+        keyPairGenerator.initialize(1024, new SecureRandom());
+
+        KeyPair keyPair = keyPairGenerator.generateKeyPair();
+
+        X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
+            owner,
+            BigInteger.valueOf(System.currentTimeMillis()),
+            notBefore,
+            notAfter,
+            owner,
+            keyPair.getPublic()
+        );
+
+        ContentSigner signer = new JcaContentSignerBuilder("SHA256WithRSAEncryption").build(keyPair.getPrivate());
+        X509CertificateHolder certHolder = builder.build(signer);
+        X509Certificate signCertificate = new JcaX509CertificateConverter().setProvider("BC").getCertificate(certHolder);
+
+        signCertificate.verify(keyPair.getPublic());
+
+        return signCertificate;
+    }
+}
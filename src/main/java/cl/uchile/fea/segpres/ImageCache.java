@@ -0,0 +1,281 @@
+package cl.uchile.fea.segpres;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.itextpdf.text.BadElementException;
+import com.itextpdf.text.Image;
+
+/**
+ * The signature image cache.
+ * <p>
+ * Keeps the parsed images by the SHA-256 of their bytes, since most signers reuse the same few
+ * signature images. Optionally downscales the images larger than the signature rectangle, which
+ * also shrinks the signed output. The least recently used images are evicted over the memory budget.
+ */
+public class ImageCache {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageCache.class);
+
+    /**
+     * The maximum memory held by the images (in bytes).
+     */
+    private final long maxMemory;
+    /**
+     * The maximum pixels per point of the rectangle (0 to keep the images as received).
+     */
+    private final int maxScale;
+
+    /**
+     * The images by key, in access order (the least recently used first).
+     */
+    private final Map<String, Entry> images = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * The memory held by the images (in bytes).
+     */
+    private long memory;
+
+    /**
+     * The number of hits.
+     */
+    private final AtomicLong hits = new AtomicLong();
+    /**
+     * The number of misses.
+     */
+    private final AtomicLong misses = new AtomicLong();
+    /**
+     * The number of evictions.
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a signature image cache.
+     * @param maxMemory The maximum memory held by the images (in bytes, 0 to disable)
+     * @param maxScale The maximum pixels per point of the rectangle (0 to keep the images as received)
+     */
+    public ImageCache(long maxMemory, int maxScale) {
+        this.maxMemory = maxMemory;
+        this.maxScale = maxScale;
+    }
+
+    /**
+     * Gets the image for the rectangle.
+     * @param bytes The image bytes
+     * @param width The rectangle width (in points)
+     * @param height The rectangle height (in points)
+     * @return The image (a copy sharing the parsed data, free to be scaled)
+     * @throws BadElementException if the image is invalid
+     * @throws IOException if the image cannot be read
+     */
+    public Image get(byte[] bytes, float width, float height) throws BadElementException, IOException {
+        int maxWidth = Math.round(width * maxScale);
+        int maxHeight = Math.round(height * maxScale);
+
+        String key = getKey(bytes);
+        if (maxScale > 0) {
+            key += ":" + maxWidth + "x" + maxHeight;
+        }
+
+        Entry entry;
+        synchronized (images) {
+            entry = images.get(key);
+        }
+
+        if (entry != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+
+            byte[] data = bytes;
+            if (maxScale > 0 && maxWidth > 0 && maxHeight > 0) {
+                data = downscale(bytes, maxWidth, maxHeight);
+            }
+
+            Image image = Image.getInstance(data);
+
+            entry = new Entry(image, getWeight(image));
+
+            put(key, entry);
+        }
+
+        return Image.getInstance(entry.image);
+    }
+
+    /**
+     * Gets the number of hits.
+     * @return The hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of misses.
+     * @return The misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of evictions.
+     * @return The evictions
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Gets the memory held by the images.
+     * @return The memory (in bytes)
+     */
+    public long getMemory() {
+        synchronized (images) {
+            return memory;
+        }
+    }
+
+    /**
+     * Stores the image, evicting the least recently used ones over the memory budget.
+     * @param key The key
+     * @param entry The entry
+     */
+    private void put(String key, Entry entry) {
+        if (entry.memory > maxMemory) {
+            return; // larger than the whole cache
+        }
+
+        synchronized (images) {
+            Entry previous = images.put(key, entry);
+            if (previous != null) {
+                memory -= previous.memory; // parsed concurrently
+            }
+
+            memory += entry.memory;
+
+            Iterator<Entry> iterator = images.values().iterator();
+            while (memory > maxMemory && iterator.hasNext()) {
+                Entry eldest = iterator.next();
+
+                iterator.remove();
+                memory -= eldest.memory;
+
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Downscales the image to fit the maximum size, keeping its aspect ratio.
+     * @param bytes The image bytes
+     * @param maxWidth The maximum width (in pixels)
+     * @param maxHeight The maximum height (in pixels)
+     * @return The downscaled image in PNG format (the same bytes if it already fits or cannot be decoded)
+     * @throws IOException if the image cannot be written
+     */
+    private static byte[] downscale(byte[] bytes, int maxWidth, int maxHeight) throws IOException {
+        BufferedImage source = ImageIO.read(new ByteArrayInputStream(bytes));
+        if (source == null || (source.getWidth() <= maxWidth && source.getHeight() <= maxHeight)) {
+            return bytes;
+        }
+
+        double ratio = Math.min((double) maxWidth / source.getWidth(), (double) maxHeight / source.getHeight());
+
+        int width = Math.max(1, (int) Math.round(source.getWidth() * ratio));
+        int height = Math.max(1, (int) Math.round(source.getHeight() * ratio));
+
+        BufferedImage target = new BufferedImage(width, height, source.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+
+        Graphics2D graphics = target.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(source, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+            ImageIO.write(target, "png", baos);
+
+            LOGGER.debug("Downscaled signature image from {}x{} to {}x{}", source.getWidth(), source.getHeight(), width, height);
+
+            return baos.toByteArray();
+        }
+    }
+
+    /**
+     * Gets the memory held by the parsed image: its raw data (decoded for some formats, e.g. a PNG
+     * with transparency), the original bytes kept beside it, and its image mask.
+     * @param image The image
+     * @return The memory (in bytes)
+     */
+    static long getWeight(Image image) {
+        byte[] raw = image.getRawData();
+        byte[] original = image.getOriginalData();
+
+        long memory = raw != null ? raw.length : 0;
+        if (original != null && original != raw) {
+            memory += original.length;
+        }
+
+        Image mask = image.getImageMask();
+        if (mask != null) {
+            memory += getWeight(mask);
+        }
+
+        return memory;
+    }
+
+    /**
+     * Gets the key of the image bytes.
+     * @param bytes The image bytes
+     * @return The SHA-256 of the bytes encoded in base64
+     */
+    static String getKey(byte[] bytes) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(bytes));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e); // SHA-256 is required in every JRE
+        }
+    }
+
+    /**
+     * The parsed image.
+     */
+    private static final class Entry {
+
+        /**
+         * The image.
+         */
+        private final Image image;
+        /**
+         * The memory held by the image (in bytes).
+         */
+        private final long memory;
+
+        Entry(Image image, long memory) {
+            this.image = image;
+            this.memory = memory;
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package cl.uchile.fea.segpres;
+
+import java.io.StringReader;
+import java.util.Base64;
+
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.Node;
+import org.dom4j.XPath;
+import org.dom4j.io.SAXReader;
+
+/**
+ * The signature layout.
+ * <p>
+ * Built directly from the request fields, the XML layout (see {@link LayoutUtil}) is only parsed
+ * when a caller supplies one.
+ */
+public final class Layout {
+
+    /**
+     * The invisible layout.
+     */
+    private static final Layout INVISIBLE = new Layout(false, 0, 0, 0, 0, 0, false, null);
+
+    /**
+     * The page XPath (compiled once, jaxen XPaths are thread safe for evaluation).
+     */
+    private static final XPath PAGE = DocumentHelper.createXPath(String.format("/AgileSignerConfig/Application[@id='%s']/Signature/Visible/page", LayoutUtil.APPLICATION_ID));
+    /**
+     * The active Visible element XPath.
+     */
+    private static final XPath VISIBLE = DocumentHelper.createXPath(String.format("/AgileSignerConfig/Application[@id='%s']/Signature/Visible[@active='true']", LayoutUtil.APPLICATION_ID));
+    /**
+     * The lower left X coordinate XPath (relative to the Visible element).
+     */
+    private static final XPath LLX = DocumentHelper.createXPath("llx");
+    /**
+     * The lower left Y coordinate XPath (relative to the Visible element).
+     */
+    private static final XPath LLY = DocumentHelper.createXPath("lly");
+    /**
+     * The upper right X coordinate XPath (relative to the Visible element).
+     */
+    private static final XPath URX = DocumentHelper.createXPath("urx");
+    /**
+     * The upper right Y coordinate XPath (relative to the Visible element).
+     */
+    private static final XPath URY = DocumentHelper.createXPath("ury");
+    /**
+     * The image XPath (relative to the Visible element).
+     */
+    private static final XPath BASE64VALUE = DocumentHelper.createXPath("BASE64VALUE");
+    /**
+     * The layer 2 XPath (relative to the Visible element).
+     */
+    private static final XPath LAYER2 = DocumentHelper.createXPath(".[@layer2='true']");
+
+    /**
+     * Whether the signature is visible.
+     */
+    private final boolean visible;
+    /**
+     * The lower left X coordinate.
+     */
+    private final float llx;
+    /**
+     * The lower left Y coordinate.
+     */
+    private final float lly;
+    /**
+     * The upper right X coordinate.
+     */
+    private final float urx;
+    /**
+     * The upper right Y coordinate.
+     */
+    private final float ury;
+    /**
+     * The page (0 for the LAST page).
+     */
+    private final int page;
+    /**
+     * Whether the layer 2 text is rendered.
+     */
+    private final boolean layer2;
+    /**
+     * The signature image (null if invisible).
+     */
+    private final byte[] image;
+
+    private Layout(boolean visible, float llx, float lly, float urx, float ury, int page, boolean layer2, byte[] image) {
+        this.visible = visible;
+        this.llx = llx;
+        this.lly = lly;
+        this.urx = urx;
+        this.ury = ury;
+        this.page = page;
+        this.layer2 = layer2;
+        this.image = image;
+    }
+
+    /**
+     * Gets the invisible layout.
+     * @return The layout
+     */
+    public static Layout invisible() {
+        return INVISIBLE;
+    }
+
+    /**
+     * Gets a visible layout.
+     * @param llx The lower left X coordinate
+     * @param lly The lower left Y coordinate
+     * @param urx The upper right X coordinate
+     * @param ury The upper right Y coordinate
+     * @param page The page (0 or less to set the LAST page)
+     * @param image The signature image
+     * @return The layout
+     */
+    public static Layout visible(int llx, int lly, int urx, int ury, int page, byte[] image) {
+        return new Layout(true, Math.max(llx, 0), Math.max(lly, 0), Math.max(urx, 0), Math.max(ury, 0), Math.max(page, 0), false, image);
+    }
+
+    /**
+     * Parses the XML layout.
+     * @param xml The XML layout
+     * @return The layout
+     * @throws DocumentException if an error occurs during parsing
+     */
+    public static Layout parse(String xml) throws DocumentException {
+        Document document = new SAXReader().read(new StringReader(xml));
+
+        int page = 0;
+
+        Node pageNode = PAGE.selectSingleNode(document);
+        if (pageNode != null) {
+            String text = pageNode.getText();
+            if (!"LAST".equalsIgnoreCase(text)) {
+                page = Math.max(Integer.parseInt(text.trim()), 1);
+            }
+        }
+
+        Element visibleElement = (Element) VISIBLE.selectSingleNode(document);
+        if (visibleElement == null) {
+            return INVISIBLE;
+        }
+
+        return new Layout(
+            true,
+            Float.parseFloat(LLX.selectSingleNode(visibleElement).getText()),
+            Float.parseFloat(LLY.selectSingleNode(visibleElement).getText()),
+            Float.parseFloat(URX.selectSingleNode(visibleElement).getText()),
+            Float.parseFloat(URY.selectSingleNode(visibleElement).getText()),
+            page,
+            LAYER2.selectSingleNode(visibleElement) != null,
+            Base64.getMimeDecoder().decode(BASE64VALUE.selectSingleNode(visibleElement).getText())
+        );
+    }
+
+    /**
+     * Gets whether the signature is visible.
+     * @return Whether the signature is visible
+     */
+    public boolean isVisible() {
+        return visible;
+    }
+
+    /**
+     * Gets the lower left X coordinate.
+     * @return The coordinate
+     */
+    public float getLlx() {
+        return llx;
+    }
+
+    /**
+     * Gets the lower left Y coordinate.
+     * @return The coordinate
+     */
+    public float getLly() {
+        return lly;
+    }
+
+    /**
+     * Gets the upper right X coordinate.
+     * @return The coordinate
+     */
+    public float getUrx() {
+        return urx;
+    }
+
+    /**
+     * Gets the upper right Y coordinate.
+     * @return The coordinate
+     */
+    public float getUry() {
+        return ury;
+    }
+
+    /**
+     * Gets the page, the LAST page if not set or after the last one.
+     * @param numberOfPages The number of pages of the document
+     * @return The page
+     */
+    public int getPage(int numberOfPages) {
+        if (page < 1 || page > numberOfPages) {
+            return numberOfPages;
+        }
+
+        return page;
+    }
+
+    /**
+     * Gets whether the layer 2 text is rendered.
+     * @return Whether the layer 2 text is rendered
+     */
+    public boolean isLayer2() {
+        return layer2;
+    }
+
+    /**
+     * Gets the signature image.
+     * @return The image (null if invisible)
+     */
+    public byte[] getImage() {
+        return image;
+    }
+}
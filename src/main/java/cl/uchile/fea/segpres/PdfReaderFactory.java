@@ -0,0 +1,115 @@
+package cl.uchile.fea.segpres;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.google.protobuf.ByteString;
+import com.itextpdf.text.io.RandomAccessSource;
+import com.itextpdf.text.io.RandomAccessSourceFactory;
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.RandomAccessFileOrArray;
+
+/**
+ * The PDF reader factory.
+ * <p>
+ * Opens the documents over a random access source wrapping the received bytes or the spooled file,
+ * without copying them. In partial mode only the cross-reference table is parsed up front and the
+ * objects are read when the stamper touches them (the catalog, the target page and the AcroForm).
+ */
+public class PdfReaderFactory {
+
+    /**
+     * Whether the documents are read in partial mode.
+     */
+    private final boolean partial;
+
+    /**
+     * Creates a PDF reader factory.
+     * @param partial Whether the documents are read in partial mode
+     */
+    public PdfReaderFactory(boolean partial) {
+        this.partial = partial;
+    }
+
+    /**
+     * Opens the document received in memory.
+     * @param file The file
+     * @return The PDF reader
+     * @throws IOException if the document cannot be read
+     */
+    public PdfReader open(ByteString file) throws IOException {
+        return open(new ByteStringRandomAccessSource(file));
+    }
+
+    /**
+     * Opens the document spooled to disk (memory mapped).
+     * @param file The file
+     * @return The PDF reader
+     * @throws IOException if the document cannot be read
+     */
+    public PdfReader open(File file) throws IOException {
+        return open(new RandomAccessSourceFactory().setForceRead(false).createBestSource(file.getPath()));
+    }
+
+    /**
+     * Opens the document over the source, closing the source on error.
+     * @param source The source
+     * @return The PDF reader
+     * @throws IOException if the document cannot be read
+     */
+    private PdfReader open(RandomAccessSource source) throws IOException {
+        try {
+            return new PdfReader(new RandomAccessFileOrArray(source), null, partial);
+        } catch (IOException | RuntimeException e) {
+            source.close();
+
+            throw e;
+        }
+    }
+
+    /**
+     * The random access source reading a byte string in place.
+     */
+    private static final class ByteStringRandomAccessSource implements RandomAccessSource {
+
+        /**
+         * The bytes.
+         */
+        private final ByteString bytes;
+
+        ByteStringRandomAccessSource(ByteString bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int get(long position) {
+            if (position >= bytes.size()) {
+                return -1;
+            }
+
+            return bytes.byteAt((int) position) & 0xff;
+        }
+
+        @Override
+        public int get(long position, byte[] buffer, int offset, int length) {
+            if (position >= bytes.size()) {
+                return -1;
+            }
+
+            int n = (int) Math.min(length, bytes.size() - position);
+            bytes.copyTo(buffer, (int) position, offset, n);
+
+            return n;
+        }
+
+        @Override
+        public long length() {
+            return bytes.size();
+        }
+
+        @Override
+        public void close() {
+            // nothing to release, the bytes belong to the request
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package cl.uchile.fea.segpres;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.ssl.SSLContexts;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Segpres HTTP client.
+ * <p>
+ * A single keep-alive client shared by every request, so the TCP and TLS handshakes to Segpres are
+ * paid once per pooled connection instead of once per signature.
+ * <p>
+ * The requests wait for Segpres on their own executor, whose queue is bounded: each queued request
+ * holds its prepared signature, so a slow Segpres must not let them pile up on the heap.
+ */
+public class SegpresClient {
+
+    /**
+     * The logger.
+     */
+    private static final Logger LOGGER = LoggerFactory.getLogger(SegpresClient.class);
+
+    /**
+     * The message of the requests rejected while the executor queue is full.
+     */
+    public static final String REJECTED_MESSAGE = "Too many Segpres requests waiting, please retry later";
+
+    /**
+     * The connection manager.
+     */
+    private final PoolingHttpClientConnectionManager connectionManager;
+    /**
+     * The HTTP client.
+     */
+    private final CloseableHttpClient httpClient;
+    /**
+     * The request configuration.
+     */
+    private final RequestConfig requestConfig;
+    /**
+     * The executor where the blocking requests wait for Segpres.
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * The requests rejected while the executor queue is full.
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Creates the Segpres HTTP client.
+     * @param timeout The connection, socket and pool lease timeout (in milliseconds)
+     * @param maxTotal The maximum total connections
+     * @param maxPerRoute The maximum connections per route
+     * @param idleTimeout The time after which idle connections are evicted (in milliseconds)
+     * @param maxQueued The maximum requests waiting for an executor thread
+     */
+    public SegpresClient(int timeout, int maxTotal, int maxPerRoute, int idleTimeout, int maxQueued) {
+        // a single SSL context shares its session cache between connections (TLS session resumption)
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+            .register("https", new SSLConnectionSocketFactory(SSLContexts.createSystemDefault()))
+            .build();
+
+        connectionManager = new PoolingHttpClientConnectionManager(registry);
+        connectionManager.setMaxTotal(maxTotal);
+        connectionManager.setDefaultMaxPerRoute(maxPerRoute);
+        connectionManager.setValidateAfterInactivity(2000);
+
+        requestConfig = RequestConfig.custom()
+            .setConnectionRequestTimeout(timeout)
+            .setConnectTimeout(timeout)
+            .setSocketTimeout(timeout)
+            .build();
+
+        httpClient = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .disableConnectionState() // connections are not bound to a user, always reusable
+            .evictExpiredConnections()
+            .evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS)
+            .build();
+
+        // one thread per connection, more would only wait for a lease
+        AtomicInteger counter = new AtomicInteger();
+        executor = new ThreadPoolExecutor(maxTotal, maxTotal, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(maxQueued), r -> {
+            Thread thread = new Thread(r, "segpres-io-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, (r, e) -> {
+            rejected.incrementAndGet();
+
+            throw new RejectedExecutionException(REJECTED_MESSAGE);
+        });
+    }
+
+    /**
+     * Gets the HTTP client.
+     * @return The client
+     */
+    public CloseableHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    /**
+     * Gets the executor where the blocking requests wait for Segpres, kept apart from the signer
+     * executor so network waits do not hold the threads stamping PDFs.
+     * @return The executor (throwing {@link RejectedExecutionException} while its queue is full)
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Gets the request configuration.
+     * @return The configuration
+     */
+    public RequestConfig getRequestConfig() {
+        return requestConfig;
+    }
+
+    /**
+     * Gets the number of connections leased to requests.
+     * @return The leased connections
+     */
+    public int getLeased() {
+        return connectionManager.getTotalStats().getLeased();
+    }
+
+    /**
+     * Gets the number of idle connections ready to be reused.
+     * @return The available connections
+     */
+    public int getAvailable() {
+        return connectionManager.getTotalStats().getAvailable();
+    }
+
+    /**
+     * Gets the number of requests waiting for a connection.
+     * @return The pending requests
+     */
+    public int getPending() {
+        return connectionManager.getTotalStats().getPending();
+    }
+
+    /**
+     * Gets the number of requests waiting for an executor thread.
+     * @return The queued requests
+     */
+    public int getQueued() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Gets the number of requests rejected while the executor queue was full.
+     * @return The rejected requests
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Closes the client and its pooled connections.
+     */
+    public void close() {
+        PoolStats stats = connectionManager.getTotalStats();
+
+        LOGGER.debug("Closing HTTP client (leased: {}, available: {}, pending: {})", stats.getLeased(), stats.getAvailable(), stats.getPending());
+
+        executor.shutdown();
+
+        try {
+            httpClient.close();
+        } catch (IOException e) {
+            LOGGER.warn("Unable to close HTTP client", e);
+        }
+    }
+}
@@ -1,52 +1,28 @@
 package cl.uchile.fea.segpres;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.math.BigInteger;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
-import java.security.InvalidKeyException;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.SecureRandom;
-import java.security.SignatureException;
-import java.security.cert.CertificateException;
+import java.security.GeneralSecurityException;
 import java.security.cert.X509Certificate;
-import java.util.Base64;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHeaders;
 import org.apache.http.client.ClientProtocolException;
-import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.bouncycastle.asn1.x500.X500Name;
-import org.bouncycastle.cert.X509CertificateHolder;
-import org.bouncycastle.cert.X509v3CertificateBuilder;
-import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
-import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
-import org.bouncycastle.operator.ContentSigner;
 import org.bouncycastle.operator.OperatorCreationException;
-import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
-import org.dom4j.Document;
-import org.dom4j.Element;
-import org.dom4j.io.SAXReader;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.gson.Gson;
-import com.itextpdf.text.Image;
 import com.itextpdf.text.Rectangle;
 import com.itextpdf.text.pdf.PdfDate;
 import com.itextpdf.text.pdf.PdfName;
@@ -56,7 +32,6 @@ import com.itextpdf.text.pdf.PdfSignatureAppearance;
 import com.itextpdf.text.pdf.PdfSignatureAppearance.RenderingMode;
 import com.itextpdf.text.pdf.PdfStamper;
 
-import cl.uchile.fea.Utils;
 import cl.uchile.fea.segpres.models.SignatureRequest;
 import co.elastic.apm.api.CaptureSpan;
 import co.elastic.apm.api.ElasticApm;
@@ -77,6 +52,19 @@ public class SegpresService {
      */
     public static final int CONTENTS = 15000;
 
+    /**
+     * The placeholder certificate provider.
+     */
+    private final CertificateProvider certificateProvider;
+    /**
+     * The Segpres HTTP client.
+     */
+    private final SegpresClient client;
+    /**
+     * The visible signature appearance cache.
+     */
+    private final AppearanceCache appearanceCache;
+
     /**
      * The location.
      */
@@ -100,6 +88,18 @@ public class SegpresService {
      */
     private boolean attended;
 
+    /**
+     * Creates a Segpres service.
+     * @param certificateProvider The placeholder certificate provider
+     * @param client The Segpres HTTP client
+     * @param appearanceCache The visible signature appearance cache
+     */
+    public SegpresService(CertificateProvider certificateProvider, SegpresClient client, AppearanceCache appearanceCache) {
+        this.certificateProvider = certificateProvider;
+        this.client = client;
+        this.appearanceCache = appearanceCache;
+    }
+
     /**
      * Sets the location.
      * @param location The location
@@ -143,147 +143,86 @@ public class SegpresService {
     /**
      * Generates the Segpres PDF signature appearance.
      * @param reader The PDF reader
-     * @param baos The output stream
-     * @param layout The XML layout
+     * @param os The output stream (null if written to the temporary file)
+     * @param tempFile The temporary file kept with the output after closing (null to write to the output stream)
+     * @param layout The layout
      * @return The PDF signature appearance
      * @throws IOException on error
      * @throws com.itextpdf.text.DocumentException on error
-     * @throws org.dom4j.DocumentException if an error occurs during parsing
-     * @throws NoSuchAlgorithmException on unsupported signature algorithms
-     * @throws NoSuchProviderException if there's no default provider
+     * @throws GeneralSecurityException on placeholder certificate errors
      * @throws OperatorCreationException
-     * @throws CertificateException on encoding errors
-     * @throws InvalidKeyException on incorrect key
-     * @throws SignatureException on signature errors
      */
     @CaptureSpan
-    public PdfSignatureAppearance generate(PdfReader reader, ByteArrayOutputStream baos, String layout) throws
+    public PdfSignatureAppearance generate(PdfReader reader, OutputStream os, File tempFile, Layout layout) throws
         IOException,
-        com.itextpdf.text.DocumentException, org.dom4j.DocumentException,
-        NoSuchAlgorithmException, NoSuchProviderException,
-        OperatorCreationException,
-        CertificateException, InvalidKeyException, SignatureException {
+        com.itextpdf.text.DocumentException,
+        GeneralSecurityException,
+        OperatorCreationException {
         Span span = ElasticApm.currentSpan();
         span.setName(String.format("Generate: User %s", username));
 
-        PdfStamper stamper = PdfStamper.createSignature(reader, baos, '\0', null, true);
-
-        // Layout parsing
+        PdfStamper stamper = PdfStamper.createSignature(reader, os, '\0', tempFile, true);
 
-        SAXReader saxReader = new SAXReader();
+        int page = layout.getPage(reader.getNumberOfPages());
 
-        try (InputStream in = new ByteArrayInputStream(layout.getBytes())) {
-            Document document = saxReader.read(in);
+        PdfSignatureAppearance appearance = stamper.getSignatureAppearance();
 
-            Element root = document.getRootElement();
+        if (layout.isVisible()) {
+            Rectangle rectangle = new Rectangle(layout.getLlx(), layout.getLly(), layout.getUrx(), layout.getUry());
 
-            if (LOGGER.isTraceEnabled()) {
-                LOGGER.trace("Layout XML: {}", document.asXML());
-            }
-
-            int page = reader.getNumberOfPages();
-
-            Element pageElement = (Element)root.selectSingleNode(String.format("/AgileSignerConfig/Application[@id='%s']/Signature/Visible/page", LayoutUtil.APPLICATION_ID));
-            if (pageElement != null) {
-                String text = pageElement.getText();
-                if (!"LAST".equalsIgnoreCase(text)) {
-                    page = Integer.valueOf(text);
-                }
-
-                if (page < 1) {
-                    page = 1;
-                } else if (page > reader.getNumberOfPages()) {
-                    page = reader.getNumberOfPages();
-                }
-            }
-
-            PdfSignatureAppearance appearance = stamper.getSignatureAppearance();
-
-            Element visibleElement = (Element)root.selectSingleNode(String.format("/AgileSignerConfig/Application[@id='%s']/Signature/Visible[@active='true']", LayoutUtil.APPLICATION_ID));
-            if (visibleElement != null) {
-                float llx = Float.valueOf(visibleElement.selectSingleNode("llx").getText());
-                float lly = Float.valueOf(visibleElement.selectSingleNode("lly").getText());
-                float urx = Float.valueOf(visibleElement.selectSingleNode("urx").getText());
-                float ury = Float.valueOf(visibleElement.selectSingleNode("ury").getText());
-
-                String base64Value = visibleElement.selectSingleNode("BASE64VALUE").getText();
-
-                Image signatureGraphic = Image.getInstance(Base64.getDecoder().decode(base64Value.getBytes()));
-
-                appearance.setSignatureGraphic(signatureGraphic);
-                appearance.setVisibleSignature(new Rectangle(llx, lly, urx, ury), page, null);
-            }
+            appearance.setVisibleSignature(rectangle, page, null);
 
-            appearance.setLocation(location);
-            appearance.setReason(reason);
-
-            if (visibleElement != null && visibleElement.selectSingleNode(".[@layer2='true']") == null) {
-                appearance.setRenderingMode(RenderingMode.GRAPHIC);
-
-                StringBuffer buf = new StringBuffer();
-                buf.append(" ");
-
-                appearance.setLayer2Text(buf.toString());
-            } else {
-                appearance.setRenderingMode(RenderingMode.GRAPHIC);
-
-                StringBuffer buf = new StringBuffer();
-                buf.append(" ");
+            // the graphic layer is drawn from the cache, iText only renders the missing layers
+            appearanceCache.get(layout.getImage(), rectangle.getWidth(), rectangle.getHeight()).apply(appearance);
+        }
 
-                //buf.append("Signed by ").append(username).append('\n');
-                //SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss z");
-                //buf.append("Date: ").append(sdf.format(new GregorianCalendar().getTime()));
+        appearance.setLocation(location);
+        appearance.setReason(reason);
 
-                appearance.setLayer2Text(buf.toString());
-            }
+        if (layout.isVisible() && !layout.isLayer2()) {
+            appearance.setRenderingMode(RenderingMode.GRAPHIC);
 
-            //LOGGER.trace("Layer 2 Text: {}", appearance.getLayer2Text());
+            StringBuffer buf = new StringBuffer();
+            buf.append(" ");
 
-            //appearance.setAcro6Layers(true); // deprecated
+            appearance.setLayer2Text(buf.toString());
+        } else {
+            appearance.setRenderingMode(RenderingMode.GRAPHIC);
 
-            PdfSignature dictionary = new PdfSignature(PdfName.ADOBE_PPKLITE, new PdfName("adbe.pkcs7.detached"));
+            StringBuffer buf = new StringBuffer();
+            buf.append(" ");
 
-            dictionary.setLocation(appearance.getLocation());
-            dictionary.setReason(appearance.getReason());
-            dictionary.setContact(appearance.getContact());
-            dictionary.setDate(new PdfDate(appearance.getSignDate()));
+            //buf.append("Signed by ").append(username).append('\n');
+            //SimpleDateFormat sdf = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss z");
+            //buf.append("Date: ").append(sdf.format(new GregorianCalendar().getTime()));
 
-            appearance.setCryptoDictionary(dictionary);
+            appearance.setLayer2Text(buf.toString());
+        }
 
-            // Generate self signed certificate
+        //LOGGER.trace("Layer 2 Text: {}", appearance.getLayer2Text());
 
-            X500Name owner = new X500Name("CN=Temp"); // issuer and subject
-            Date notBefore = new Date(System.currentTimeMillis() - 24 * 60 * 60 * 1000); // from yesterday
-            Date notAfter = new Date(System.currentTimeMillis() + 2 * 365 * 24 * 60 * 60 * 1000); // in 2 years
+        //appearance.setAcro6Layers(true); // deprecated
 
-            KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("RSA", "BC");
-            keyPairGenerator.initialize(1024, new SecureRandom());
+        PdfSignature dictionary = new PdfSignature(PdfName.ADOBE_PPKLITE, new PdfName("adbe.pkcs7.detached"));
 
-            KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        dictionary.setLocation(appearance.getLocation());
+        dictionary.setReason(appearance.getReason());
+        dictionary.setContact(appearance.getContact());
+        dictionary.setDate(new PdfDate(appearance.getSignDate()));
 
-            X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(
-                owner,
-                BigInteger.valueOf(System.currentTimeMillis()),
-                notBefore,
-                notAfter,
-                owner,
-                keyPair.getPublic()
-            );
+        appearance.setCryptoDictionary(dictionary);
 
-            ContentSigner signer = new JcaContentSignerBuilder("SHA256WithRSAEncryption").build(keyPair.getPrivate());
-            X509CertificateHolder certHolder = builder.build(signer);
-            X509Certificate signCertificate = new JcaX509CertificateConverter().setProvider("BC").getCertificate(certHolder);
+        // Self signed certificate (placeholder until Segpres returns the CMS)
 
-            signCertificate.verify(keyPair.getPublic());
+        X509Certificate signCertificate = certificateProvider.getCertificate();
 
-            appearance.setCertificate(signCertificate);
+        appearance.setCertificate(signCertificate);
 
-            HashMap<PdfName, Integer> exclusionSizes = new HashMap<>();
-            exclusionSizes.put(PdfName.CONTENTS, (CONTENTS * 2 + 2)); // in hexadecimal
-            appearance.preClose(exclusionSizes);
+        HashMap<PdfName, Integer> exclusionSizes = new HashMap<>();
+        exclusionSizes.put(PdfName.CONTENTS, (CONTENTS * 2 + 2)); // in hexadecimal
+        appearance.preClose(exclusionSizes);
 
-            return appearance;
-        }
+        return appearance;
     }
 
     /**
@@ -299,89 +238,44 @@ public class SegpresService {
         //builder.appendPath("firma/v2/files/tickets");
         builder.setPath("firma/v2/files/tickets");
 
-        int timeout = 60*1000; // 60 seconds (1 minute)
-        try {
-            timeout = Utils.getEnv("APP_TIMEOUT", 10*1000, 300*1000, timeout); // between 10 and 300 seconds (5 minutes)
-        } catch (NumberFormatException e) {
-            LOGGER.warn("Unable to get timeout ({}), using {} ms", e.getMessage(), timeout);
-        }
-
-        // ConnectionConfig connConfig = ConnectionConfig.custom()
-        //     .setConnectTimeout(timeout, TimeUnit.MILLISECONDS)
-        //     .setSocketTimeout(timeout, TimeUnit.MILLISECONDS)
-        //     .build();
-        RequestConfig requestConfig = RequestConfig.custom()
-            .setConnectionRequestTimeout(timeout)
-            .setConnectTimeout(timeout)
-            .setSocketTimeout(timeout)
-            .build();
-
-        // BasicHttpClientConnectionManager connManager = new BasicHttpClientConnectionManager();
-        // connManager.setConnectionConfig(connConfig);
+        HttpPost httpPost = new HttpPost(builder.build());
 
-        //try (CloseableHttpClient httpClient = HttpClients.createMinimal(connManager)) {
-        try (CloseableHttpClient httpClient = HttpClients.createMinimal()) {
-            HttpPost httpPost = new HttpPost(builder.build());
+        httpPost.setConfig(client.getRequestConfig());
 
-            httpPost.setConfig(requestConfig);
-
-            if (attended && password != null) {
-                httpPost.addHeader("OTP", password.trim());
-            }
-
-            httpPost.addHeader(HttpHeaders.CONTENT_TYPE, ContentType.APPLICATION_JSON.getMimeType());
-
-            Gson gson = new Gson();
-
-            Map<String, Object> data = new HashMap<>();
-            data.put("api_token_key", request.getApiTokenKey());
-            data.put("token", request.getToken());
-            data.put("hashes", request.getHashes());
-
-            String body = gson.toJson(data);
-
-            LOGGER.trace("Signature Request: {}", body);
-
-            httpPost.setEntity(new StringEntity(body));
-
-            // HttpClientResponseHandler<CustomHttpResponse> responseHandler = new HttpClientResponseHandler<CustomHttpResponse>() {
+        if (attended && password != null) {
+            httpPost.addHeader("OTP", password.trim());
+        }
 
-            //     @Override
-            //     public CustomHttpResponse handleResponse(ClassicHttpResponse response) throws HttpException, IOException {
-            //         HttpEntity entity = response.getEntity();
-            //         if (entity == null) {
-            //             throw new ClientProtocolException("Got null entity");
-            //         }
+        httpPost.addHeader(HttpHeaders.CONTENT_TYPE, ContentType.APPLICATION_JSON.getMimeType());
 
-            //         try (ByteArrayOutputStream baos = new ByteArrayOutputStream());
-            //             entity.writeTo(baos);
+        Gson gson = new Gson();
 
-            //             String body = baos.toString();
+        Map<String, Object> data = new HashMap<>();
+        data.put("api_token_key", request.getApiTokenKey());
+        data.put("token", request.getToken());
+        data.put("hashes", request.getHashes());
 
-            //             LOGGER.trace("Signature Response: {}", body);
+        String body = gson.toJson(data);
 
-            //             return new CustomHttpResponse(response.getCode(), body);
-            //         }
-            //     }
-            // };
+        LOGGER.trace("Signature Request: {}", body);
 
-            // return httpClient.execute(httpPost, responseHandler);
+        httpPost.setEntity(new StringEntity(body));
 
-            try (CloseableHttpResponse response = httpClient.execute(httpPost)) {
-                HttpEntity entity = response.getEntity();
-                if (entity == null) {
-                    throw new ClientProtocolException("Got null entity");
-                }
+        // the shared client is not closed, the connection is released to the pool once the entity is consumed
+        try (CloseableHttpResponse response = client.getHttpClient().execute(httpPost)) {
+            HttpEntity entity = response.getEntity();
+            if (entity == null) {
+                throw new ClientProtocolException("Got null entity");
+            }
 
-                try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
-                    entity.writeTo(baos);
+            try (ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+                entity.writeTo(baos);
 
-                    body = baos.toString();
+                body = baos.toString();
 
-                    LOGGER.trace("Signature Response: {}", body);
+                LOGGER.trace("Signature Response: {}", body);
 
-                    return new CustomHttpResponse(response.getStatusLine().getStatusCode(), body);
-                }
+                return new CustomHttpResponse(response.getStatusLine().getStatusCode(), body);
             }
         }
     }
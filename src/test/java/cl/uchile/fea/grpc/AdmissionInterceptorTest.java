@@ -0,0 +1,303 @@
+package cl.uchile.fea.grpc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import cl.uchile.fea.lib.proto.SignRequest;
+import cl.uchile.fea.lib.proto.SignStreamRequest;
+import cl.uchile.fea.metrics.MetricsRegistry;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.MethodDescriptor.MethodType;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.Status;
+
+/**
+ * The admission interceptor.
+ */
+class AdmissionInterceptorTest {
+
+    @Test
+    void rejectsCallsOverTheMaximumInFlight() {
+        AdmissionInterceptor interceptor = interceptor(0, 2);
+        Handler handler = new Handler();
+
+        ServerCall.Listener<Object> first = interceptor.interceptCall(new FakeCall(MethodType.UNARY), new Metadata(), handler);
+        interceptor.interceptCall(new FakeCall(MethodType.SERVER_STREAMING), new Metadata(), handler);
+
+        FakeCall rejected = new FakeCall(MethodType.UNARY);
+        interceptor.interceptCall(rejected, new Metadata(), handler);
+
+        assertEquals(2, handler.started.get());
+        assertEquals(Status.Code.RESOURCE_EXHAUSTED, rejected.status.getCode());
+        assertEquals("1000", rejected.trailers.get(AdmissionInterceptor.RETRY_PUSHBACK));
+
+        first.onComplete();
+
+        FakeCall admitted = new FakeCall(MethodType.UNARY);
+        interceptor.interceptCall(admitted, new Metadata(), handler);
+
+        assertEquals(3, handler.started.get());
+        assertNull(admitted.status);
+    }
+
+    @Test
+    void releasesThePermitOnce() {
+        AdmissionInterceptor interceptor = interceptor(0, 2);
+        Handler handler = new Handler();
+
+        ServerCall.Listener<Object> cancelled = interceptor.interceptCall(new FakeCall(MethodType.CLIENT_STREAMING), new Metadata(), handler);
+
+        cancelled.onCancel();
+        cancelled.onComplete(); // not both in practice, released once anyway
+
+        interceptor.interceptCall(new FakeCall(MethodType.UNARY), new Metadata(), handler);
+        interceptor.interceptCall(new FakeCall(MethodType.UNARY), new Metadata(), handler);
+
+        FakeCall rejected = new FakeCall(MethodType.UNARY);
+        interceptor.interceptCall(rejected, new Metadata(), handler);
+
+        assertEquals(3, handler.started.get());
+        assertEquals(Status.Code.RESOURCE_EXHAUSTED, rejected.status.getCode());
+    }
+
+    @Test
+    void releasesThePermitOfUnattendedCallsRejectedWhenComplete() {
+        AtomicInteger waiting = new AtomicInteger();
+        AdmissionInterceptor interceptor = new AdmissionInterceptor(() -> 0, waiting::get, 0, 0, 1, new MetricsRegistry());
+        Handler handler = new Handler();
+
+        FakeCall call = new FakeCall(MethodType.UNARY);
+        ServerCall.Listener<Object> listener = interceptor.interceptCall(call, new Metadata(), handler);
+
+        waiting.set(1);
+
+        listener.onMessage(SignRequest.newBuilder().setAttended(false).build());
+        listener.onHalfClose();
+
+        assertEquals(0, handler.halfClosed.get());
+        assertEquals(Status.Code.RESOURCE_EXHAUSTED, call.status.getCode());
+
+        listener.onComplete(); // once the rejection is sent
+
+        FakeCall attended = new FakeCall(MethodType.UNARY);
+        listener = interceptor.interceptCall(attended, new Metadata(), handler);
+
+        listener.onMessage(SignRequest.newBuilder().setAttended(true).build());
+        listener.onHalfClose();
+
+        assertNull(attended.status);
+        assertEquals(1, handler.halfClosed.get());
+    }
+
+    @Test
+    void rejectsUnattendedCallsBeforeReadingTheRequest() {
+        AdmissionInterceptor interceptor = new AdmissionInterceptor(() -> 0, () -> 3, 2, 0, 10, new MetricsRegistry());
+        Handler handler = new Handler();
+
+        FakeCall unattended = new FakeCall(MethodType.CLIENT_STREAMING);
+        interceptor.interceptCall(unattended, attended(false), handler);
+
+        assertEquals(0, handler.started.get());
+        assertEquals(Status.Code.RESOURCE_EXHAUSTED, unattended.status.getCode());
+
+        FakeCall attended = new FakeCall(MethodType.UNARY);
+        ServerCall.Listener<Object> listener = interceptor.interceptCall(attended, attended(true), handler);
+
+        listener.onMessage(SignRequest.newBuilder().setAttended(false).build()); // the header wins
+        listener.onHalfClose();
+
+        assertNull(attended.status);
+        assertEquals(1, handler.halfClosed.get());
+    }
+
+    @Test
+    void dropsTheStreamOfUnattendedCallsWithoutHeader() {
+        AtomicInteger waiting = new AtomicInteger();
+        AdmissionInterceptor interceptor = new AdmissionInterceptor(() -> 0, waiting::get, 0, 0, 10, new MetricsRegistry());
+        Handler handler = new Handler();
+
+        FakeCall call = new FakeCall(MethodType.CLIENT_STREAMING);
+        ServerCall.Listener<Object> listener = interceptor.interceptCall(call, new Metadata(), handler);
+
+        waiting.set(1);
+
+        listener.onMessage(SignStreamRequest.newBuilder().setHeader(SignRequest.newBuilder().setAttended(false)).build());
+        listener.onMessage(SignStreamRequest.getDefaultInstance());
+        listener.onHalfClose();
+
+        assertEquals(Status.Code.RESOURCE_EXHAUSTED, call.status.getCode());
+        assertEquals(0, handler.messages.get());
+        assertEquals(0, handler.halfClosed.get());
+
+        FakeCall attended = new FakeCall(MethodType.CLIENT_STREAMING);
+        listener = interceptor.interceptCall(attended, new Metadata(), handler);
+
+        listener.onMessage(SignStreamRequest.newBuilder().setHeader(SignRequest.newBuilder().setAttended(true)).build());
+        listener.onMessage(SignStreamRequest.getDefaultInstance());
+        listener.onHalfClose();
+
+        assertNull(attended.status);
+        assertEquals(2, handler.messages.get());
+        assertEquals(1, handler.halfClosed.get());
+    }
+
+    @Test
+    void rejectsCallsWhileTheQueueIsFull() {
+        AtomicInteger ahead = new AtomicInteger(3);
+        AdmissionInterceptor interceptor = new AdmissionInterceptor(ahead::get, ahead::get, 2, 0, 10, new MetricsRegistry());
+        Handler handler = new Handler();
+
+        FakeCall rejected = new FakeCall(MethodType.UNARY);
+        interceptor.interceptCall(rejected, new Metadata(), handler);
+
+        assertEquals(0, handler.started.get());
+        assertEquals(Status.Code.RESOURCE_EXHAUSTED, rejected.status.getCode());
+        assertTrue(rejected.status.getDescription().contains("3 tasks queued"));
+    }
+
+    /**
+     * Creates an interceptor with an empty queue.
+     * @param maxQueued The maximum tasks waiting
+     * @param maxInFlight The maximum calls in flight
+     * @return The interceptor
+     */
+    private static AdmissionInterceptor interceptor(int maxQueued, int maxInFlight) {
+        return new AdmissionInterceptor(() -> 0, () -> 0, maxQueued, 0, maxInFlight, new MetricsRegistry());
+    }
+
+    /**
+     * Creates the headers of a call.
+     * @param attended Whether the signatures are attended
+     * @return The headers
+     */
+    private static Metadata attended(boolean attended) {
+        Metadata headers = new Metadata();
+        headers.put(AdmissionInterceptor.ATTENDED, Boolean.toString(attended));
+
+        return headers;
+    }
+
+    /**
+     * A call handler counting the started calls.
+     */
+    private static final class Handler implements ServerCallHandler<Object, Object> {
+
+        /**
+         * The started calls.
+         */
+        private final AtomicInteger started = new AtomicInteger();
+        /**
+         * The messages received.
+         */
+        private final AtomicInteger messages = new AtomicInteger();
+        /**
+         * The half-closed calls.
+         */
+        private final AtomicInteger halfClosed = new AtomicInteger();
+
+        @Override
+        public ServerCall.Listener<Object> startCall(ServerCall<Object, Object> call, Metadata headers) {
+            started.incrementAndGet();
+
+            return new Listener();
+        }
+
+        /**
+         * The listener of a started call.
+         */
+        private final class Listener extends ServerCall.Listener<Object> {
+
+            @Override
+            public void onMessage(Object message) {
+                messages.incrementAndGet();
+            }
+
+            @Override
+            public void onHalfClose() {
+                halfClosed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A call recording its status.
+     */
+    private static final class FakeCall extends ServerCall<Object, Object> {
+
+        /**
+         * The method.
+         */
+        private final MethodDescriptor<Object, Object> method;
+
+        /**
+         * The closing status (null if open).
+         */
+        private Status status;
+        /**
+         * The closing trailers (null if open).
+         */
+        private Metadata trailers;
+
+        FakeCall(MethodType type) {
+            method = MethodDescriptor.<Object, Object>newBuilder()
+                .setType(type)
+                .setFullMethodName(MethodDescriptor.generateFullMethodName("Test", "Call"))
+                .setRequestMarshaller(new Marshaller())
+                .setResponseMarshaller(new Marshaller())
+                .build();
+        }
+
+        @Override
+        public void request(int numMessages) {
+        }
+
+        @Override
+        public void sendHeaders(Metadata headers) {
+        }
+
+        @Override
+        public void sendMessage(Object message) {
+        }
+
+        @Override
+        public void close(Status status, Metadata trailers) {
+            this.status = status;
+            this.trailers = trailers;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public MethodDescriptor<Object, Object> getMethodDescriptor() {
+            return method;
+        }
+    }
+
+    /**
+     * A marshaller of the test messages.
+     */
+    private static final class Marshaller implements MethodDescriptor.Marshaller<Object> {
+
+        @Override
+        public InputStream stream(Object value) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+
+        @Override
+        public Object parse(InputStream stream) {
+            return null;
+        }
+    }
+}
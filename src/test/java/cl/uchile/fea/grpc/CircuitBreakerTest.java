@@ -0,0 +1,192 @@
+package cl.uchile.fea.grpc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import cl.uchile.fea.grpc.CircuitBreaker.State;
+import cl.uchile.fea.metrics.MetricsRegistry;
+
+/**
+ * The Segpres circuit breaker.
+ */
+class CircuitBreakerTest {
+
+    /**
+     * The duration of a slow call (in milliseconds).
+     */
+    private static final long SLOW_CALL = 100;
+    /**
+     * The duration of a fast call (in nanoseconds).
+     */
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+    /**
+     * The duration of a slow call (in nanoseconds).
+     */
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(SLOW_CALL);
+
+    @Test
+    void opensOnTheFailureRate() throws Exception {
+        CircuitBreaker breaker = breaker(4, 60000, 2);
+
+        call(breaker, false);
+        call(breaker, true);
+        call(breaker, false);
+
+        assertEquals(State.CLOSED, breaker.getState()); // under the minimum calls
+
+        call(breaker, true);
+
+        assertEquals(State.OPEN, breaker.getState());
+        assertFalse(breaker.isAvailable());
+        assertThrows(CircuitBreaker.OpenException.class, breaker::acquire);
+    }
+
+    @Test
+    void opensOnTheSlowCallRate() throws Exception {
+        CircuitBreaker breaker = breaker(4, 60000, 2);
+
+        for (int i = 0; i < 4; i++) {
+            breaker.record(breaker.acquire(), false, i % 2 == 0 ? SLOW : FAST);
+        }
+
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void evictsTheOldestCalls() throws Exception {
+        CircuitBreaker breaker = breaker(4, 60000, 2);
+
+        call(breaker, true);
+
+        for (int i = 0; i < 4; i++) {
+            call(breaker, false);
+        }
+
+        call(breaker, true);
+
+        assertEquals(State.CLOSED, breaker.getState()); // 1 of the last 4 calls failed
+    }
+
+    @Test
+    void closesAfterHealthyTrialCalls() throws Exception {
+        CircuitBreaker breaker = open(2);
+
+        Thread.sleep(50);
+
+        assertTrue(breaker.isAvailable());
+
+        long first = breaker.acquire();
+        long second = breaker.acquire();
+
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertThrows(CircuitBreaker.OpenException.class, breaker::acquire); // no trial call left
+
+        breaker.record(first, false, FAST);
+
+        assertEquals(State.HALF_OPEN, breaker.getState());
+
+        breaker.record(second, false, FAST);
+
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void reopensAfterFailedTrialCalls() throws Exception {
+        CircuitBreaker breaker = open(2);
+
+        Thread.sleep(50);
+
+        long first = breaker.acquire();
+        long second = breaker.acquire();
+
+        breaker.record(first, false, FAST);
+        breaker.record(second, true, FAST);
+
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    @Test
+    void ignoresCallsAcquiredBeforeATransition() throws Exception {
+        CircuitBreaker breaker = breaker(2, 20, 1);
+
+        long stale = breaker.acquire();
+
+        call(breaker, true);
+        call(breaker, true);
+
+        assertEquals(State.OPEN, breaker.getState());
+
+        Thread.sleep(50);
+
+        long trial = breaker.acquire();
+
+        breaker.record(stale, true, SLOW); // would be taken as the trial call
+
+        assertEquals(State.HALF_OPEN, breaker.getState());
+
+        breaker.record(trial, false, FAST);
+
+        assertEquals(State.CLOSED, breaker.getState());
+
+        breaker.record(stale, true, SLOW);
+        breaker.record(trial, true, SLOW); // would reopen the breaker
+
+        assertEquals(State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    void allowsEveryCallWhenDisabled() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(0, 0, 50, 100, SLOW_CALL, 60000, 2, new MetricsRegistry());
+
+        for (int i = 0; i < 10; i++) {
+            call(breaker, true);
+        }
+
+        assertEquals(State.CLOSED, breaker.getState());
+        assertTrue(breaker.isAvailable());
+    }
+
+    /**
+     * Creates a breaker opening at a 50% failure rate or a 50% slow call rate.
+     * @param windowSize The number of calls of the rolling window (also the minimum calls)
+     * @param openDuration The duration of the open state (in milliseconds)
+     * @param halfOpenCalls The number of trial calls
+     * @return The breaker
+     */
+    private static CircuitBreaker breaker(int windowSize, long openDuration, int halfOpenCalls) {
+        return new CircuitBreaker(windowSize, windowSize, 50, 50, SLOW_CALL, openDuration, halfOpenCalls, new MetricsRegistry());
+    }
+
+    /**
+     * Creates a breaker opened by failed calls, half-opening after 20 milliseconds.
+     * @param halfOpenCalls The number of trial calls
+     * @return The breaker
+     * @throws Exception if a call is rejected
+     */
+    private static CircuitBreaker open(int halfOpenCalls) throws Exception {
+        CircuitBreaker breaker = breaker(2, 20, halfOpenCalls);
+
+        call(breaker, true);
+        call(breaker, true);
+
+        assertEquals(State.OPEN, breaker.getState());
+
+        return breaker;
+    }
+
+    /**
+     * Acquires a fast call and records its outcome.
+     * @param breaker The breaker
+     * @param failure Whether the call failed
+     * @throws Exception if the call is rejected
+     */
+    private static void call(CircuitBreaker breaker, boolean failure) throws Exception {
+        breaker.record(breaker.acquire(), failure, FAST);
+    }
+}
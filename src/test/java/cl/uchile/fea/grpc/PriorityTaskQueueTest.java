@@ -0,0 +1,192 @@
+package cl.uchile.fea.grpc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import cl.uchile.fea.grpc.SignerExecutor.Priority;
+import cl.uchile.fea.grpc.SignerExecutor.Queued;
+
+/**
+ * The signer executor queue.
+ */
+class PriorityTaskQueueTest {
+
+    /**
+     * The maximum wait that is never reached by the tests (in milliseconds).
+     */
+    private static final long NEVER = TimeUnit.MINUTES.toMillis(10);
+
+    @Test
+    void servesLanesInPriorityOrder() {
+        PriorityTaskQueue queue = new PriorityTaskQueue(4, NEVER);
+
+        Queued unattended = task(Priority.UNATTENDED);
+        Queued callback = task(Priority.DEFAULT);
+        Queued attended = task(Priority.ATTENDED);
+
+        queue.offer(unattended);
+        queue.offer(callback);
+        queue.offer(attended);
+
+        assertEquals(3, queue.size());
+        assertSame(attended, queue.poll());
+        assertSame(callback, queue.poll());
+        assertSame(unattended, queue.poll());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void servesEachLaneInOrder() {
+        PriorityTaskQueue queue = new PriorityTaskQueue(4, NEVER);
+
+        Queued first = task(Priority.ATTENDED);
+        Queued second = task(Priority.ATTENDED);
+
+        queue.offer(first);
+        queue.offer(second);
+
+        assertSame(first, queue.poll());
+        assertSame(second, queue.poll());
+    }
+
+    @Test
+    void wrapsPlainTasksAsCallbacks() {
+        PriorityTaskQueue queue = new PriorityTaskQueue(4, NEVER);
+
+        queue.offer(() -> { });
+
+        assertEquals(1, queue.size(Priority.DEFAULT));
+    }
+
+    @Test
+    void reservesThreadsForAttendedTasks() {
+        PriorityTaskQueue queue = new PriorityTaskQueue(1, NEVER);
+
+        Queued first = task(Priority.UNATTENDED);
+        Queued second = task(Priority.UNATTENDED);
+        Queued attended = task(Priority.ATTENDED);
+
+        queue.offer(first);
+        queue.offer(second);
+
+        assertSame(first, queue.poll());
+        assertEquals(1, queue.getUnattended());
+        assertNull(queue.poll()); // the other threads are reserved
+
+        queue.offer(attended);
+
+        assertSame(attended, queue.poll());
+
+        queue.done(first);
+
+        assertEquals(0, queue.getUnattended());
+        assertSame(second, queue.poll());
+        assertEquals(1, queue.getUnattended());
+    }
+
+    @Test
+    void servesAgedUnattendedTasksFirst() throws InterruptedException {
+        PriorityTaskQueue queue = new PriorityTaskQueue(1, 10);
+
+        Queued unattended = task(Priority.UNATTENDED);
+        Queued attended = task(Priority.ATTENDED);
+
+        queue.offer(unattended);
+        queue.offer(attended);
+
+        Thread.sleep(50);
+
+        assertSame(unattended, queue.poll());
+        assertSame(attended, queue.poll());
+        assertEquals(1, queue.getAged());
+    }
+
+    @Test
+    void doesNotAgeOverTheUnattendedLimit() throws InterruptedException {
+        PriorityTaskQueue queue = new PriorityTaskQueue(1, 10);
+
+        Queued running = task(Priority.UNATTENDED);
+        Queued unattended = task(Priority.UNATTENDED);
+        Queued attended = task(Priority.ATTENDED);
+
+        queue.offer(running);
+
+        assertSame(running, queue.poll());
+
+        queue.offer(unattended);
+        queue.offer(attended);
+
+        Thread.sleep(50);
+
+        assertSame(attended, queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.getAged());
+    }
+
+    @Test
+    void ignoresTasksNotTakenFromTheQueue() {
+        PriorityTaskQueue queue = new PriorityTaskQueue(1, NEVER);
+
+        Queued running = task(Priority.UNATTENDED);
+        Queued waiting = task(Priority.UNATTENDED);
+
+        queue.offer(running);
+
+        assertSame(running, queue.poll());
+
+        queue.offer(waiting);
+
+        queue.done(task(Priority.UNATTENDED)); // handed directly to a new thread
+
+        assertEquals(1, queue.getUnattended());
+        assertNull(queue.poll());
+
+        queue.done(running);
+        queue.done(running);
+
+        assertEquals(0, queue.getUnattended());
+        assertSame(waiting, queue.poll());
+    }
+
+    @Test
+    void takesTheTaskReleasedByAnotherThread() throws InterruptedException {
+        PriorityTaskQueue queue = new PriorityTaskQueue(1, NEVER);
+
+        Queued running = task(Priority.UNATTENDED);
+        Queued waiting = task(Priority.UNATTENDED);
+
+        queue.offer(running);
+        queue.offer(waiting);
+
+        assertSame(running, queue.take());
+
+        Thread thread = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            queue.done(running);
+        });
+        thread.start();
+
+        assertSame(waiting, queue.poll(10, TimeUnit.SECONDS));
+
+        thread.join();
+    }
+
+    /**
+     * Creates an empty task.
+     * @param priority The priority
+     * @return The task
+     */
+    private static Queued task(Priority priority) {
+        return new Queued(() -> { }, priority);
+    }
+}
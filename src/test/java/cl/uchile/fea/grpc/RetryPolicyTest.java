@@ -0,0 +1,217 @@
+package cl.uchile.fea.grpc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import cl.uchile.fea.segpres.CustomHttpResponse;
+
+/**
+ * The Segpres retry policy.
+ */
+class RetryPolicyTest {
+
+    /**
+     * The executor running the attempts on the calling thread.
+     */
+    private static final Executor DIRECT = Runnable::run;
+
+    /**
+     * The policy under test.
+     */
+    private RetryPolicy policy;
+
+    @AfterEach
+    void shutdown() {
+        if (policy != null) {
+            policy.shutdown();
+        }
+    }
+
+    @Test
+    void retriesUnattendedServerErrors() throws Exception {
+        policy = new RetryPolicy(3, 1, 1, 0, 10);
+
+        Attempts attempts = new Attempts(response(503), response(200));
+
+        assertEquals(200, get(policy.execute(attempts, DIRECT, false)).getCode());
+        assertEquals(2, attempts.count.get());
+        assertEquals(1, policy.getRetries());
+    }
+
+    @Test
+    void stopsAfterTheMaximumAttempts() throws Exception {
+        policy = new RetryPolicy(3, 1, 1, 0, 10);
+
+        Attempts attempts = new Attempts(response(503), response(503), response(503), response(200));
+
+        assertEquals(503, get(policy.execute(attempts, DIRECT, false)).getCode());
+        assertEquals(3, attempts.count.get());
+    }
+
+    @Test
+    void doesNotRetryAttendedServerErrors() throws Exception {
+        policy = new RetryPolicy(3, 1, 1, 0, 10);
+
+        Attempts attempts = new Attempts(response(503), response(200));
+
+        assertEquals(503, get(policy.execute(attempts, DIRECT, true)).getCode());
+        assertEquals(1, attempts.count.get());
+    }
+
+    @Test
+    void doesNotRetryInvalidRequests() throws Exception {
+        policy = new RetryPolicy(3, 1, 1, 0, 10);
+
+        Attempts attempts = new Attempts(new CustomHttpResponse(500, "{\"error\":\"" + RetryPolicy.INVALID_FORMAT + "\"}"), response(200));
+
+        assertEquals(500, get(policy.execute(attempts, DIRECT, false)).getCode());
+        assertEquals(1, attempts.count.get());
+    }
+
+    @Test
+    void retriesAttendedErrorsBeforeDelivery() throws Exception {
+        policy = new RetryPolicy(3, 1, 1, 0, 10);
+
+        Attempts attempts = new Attempts(new ConnectException("refused"), response(200));
+
+        assertEquals(200, get(policy.execute(attempts, DIRECT, true)).getCode());
+        assertEquals(2, attempts.count.get());
+    }
+
+    @Test
+    void doesNotRetryAttendedErrorsAfterDelivery() {
+        policy = new RetryPolicy(3, 1, 1, 0, 10);
+
+        Attempts attempts = new Attempts(new SocketTimeoutException("read timed out"), response(200));
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> get(policy.execute(attempts, DIRECT, true)));
+
+        assertInstanceOf(SocketTimeoutException.class, e.getCause());
+        assertEquals(1, attempts.count.get());
+    }
+
+    @Test
+    void throttlesRetriesWhenTheBudgetIsHalfSpent() throws Exception {
+        policy = new RetryPolicy(5, 1, 1, 4, 10);
+
+        Attempts attempts = new Attempts(response(503), response(503), response(503), response(200));
+
+        assertEquals(503, get(policy.execute(attempts, DIRECT, false)).getCode());
+        assertEquals(2, attempts.count.get()); // 4 tokens, 3 after the first failure, 2 after the second
+        assertEquals(1, policy.getRetries());
+        assertEquals(1, policy.getThrottled());
+        assertEquals(2.0, policy.getTokens());
+    }
+
+    @Test
+    void refillsTheBudgetWithHealthyResponses() throws Exception {
+        policy = new RetryPolicy(1, 1, 1, 4, 50);
+
+        get(policy.execute(new Attempts(response(503)), DIRECT, false));
+
+        assertEquals(3.0, policy.getTokens());
+
+        get(policy.execute(new Attempts(response(200)), DIRECT, false));
+        get(policy.execute(new Attempts(response(200)), DIRECT, false));
+        get(policy.execute(new Attempts(response(200)), DIRECT, false));
+
+        assertEquals(4.0, policy.getTokens()); // capped
+    }
+
+    @Test
+    void doesNotRetryRejectedAttempts() {
+        policy = new RetryPolicy(3, 1, 1, 0, 10);
+
+        Attempts attempts = new Attempts(response(200));
+        Executor full = command -> {
+            throw new RejectedExecutionException("full");
+        };
+
+        CompletableFuture<CustomHttpResponse> future = policy.execute(attempts, full, false);
+
+        assertTrue(future.isCompletedExceptionally());
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> get(future));
+
+        assertInstanceOf(RejectedExecutionException.class, e.getCause());
+        assertEquals(0, attempts.count.get());
+        assertEquals(0, policy.getRetries());
+    }
+
+    @Test
+    void classifiesServerErrors() {
+        assertTrue(RetryPolicy.isRetryable(502, null));
+        assertTrue(RetryPolicy.isRetryable(500, "ERROR : otro error"));
+        assertFalse(RetryPolicy.isRetryable(500, RetryPolicy.INVALID_FORMAT));
+        assertFalse(RetryPolicy.isRetryable(400, null));
+    }
+
+    /**
+     * Waits for the result of a request.
+     * @param future The future response
+     * @return The response
+     * @throws Exception if the request failed or timed out
+     */
+    private static CustomHttpResponse get(CompletableFuture<CustomHttpResponse> future) throws Exception {
+        return future.get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Creates an HTTP response.
+     * @param code The status code
+     * @return The response
+     */
+    private static CustomHttpResponse response(int code) {
+        return new CustomHttpResponse(code, "{}");
+    }
+
+    /**
+     * A request returning or throwing the given outcomes in order.
+     */
+    private static final class Attempts implements Callable<CustomHttpResponse> {
+
+        /**
+         * The outcomes left (responses or exceptions).
+         */
+        private final Deque<Object> outcomes;
+        /**
+         * The number of attempts made.
+         */
+        private final AtomicInteger count = new AtomicInteger();
+
+        Attempts(Object... outcomes) {
+            this.outcomes = new ArrayDeque<>(Arrays.asList(outcomes));
+        }
+
+        @Override
+        public synchronized CustomHttpResponse call() throws Exception {
+            count.incrementAndGet();
+
+            Object outcome = outcomes.poll();
+            if (outcome instanceof Exception) {
+                throw (Exception) outcome;
+            }
+
+            return (CustomHttpResponse) outcome;
+        }
+    }
+}
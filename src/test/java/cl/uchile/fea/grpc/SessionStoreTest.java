@@ -0,0 +1,45 @@
+package cl.uchile.fea.grpc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import cl.uchile.fea.grpc.SessionStore.Session;
+
+/**
+ * The prepared signature store.
+ */
+class SessionStoreTest {
+
+    /**
+     * The time to live that is never reached by the tests (in milliseconds).
+     */
+    private static final long NEVER = TimeUnit.MINUTES.toMillis(10);
+
+    @Test
+    void keepsTheSessionOfAnotherSigner() throws Exception {
+        SessionStore store = new SessionStore(NEVER, 10, 1024);
+
+        Session session = store.put(null, "0123456785", false, 100);
+
+        assertThrows(SignException.class, () -> store.remove(session.id, "0987654321"));
+        assertEquals(1, store.getSize());
+        assertEquals(100, store.getMemory());
+
+        assertSame(session, store.remove(session.id, "0123456785"));
+        assertEquals(0, store.getSize());
+        assertNull(store.remove(session.id, "0123456785"));
+    }
+
+    @Test
+    void ignoresUnknownSessions() throws Exception {
+        SessionStore store = new SessionStore(NEVER, 10, 1024);
+
+        assertNull(store.remove("unknown", "0123456785"));
+    }
+}
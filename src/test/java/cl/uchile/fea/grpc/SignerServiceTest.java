@@ -0,0 +1,120 @@
+package cl.uchile.fea.grpc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.SocketTimeoutException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import cl.uchile.fea.lib.proto.SignReply;
+import cl.uchile.fea.metrics.MetricsRegistry;
+import cl.uchile.fea.segpres.models.HashResponse;
+
+/**
+ * The signer service.
+ */
+class SignerServiceTest {
+
+    /**
+     * The coalescer sending every hash on its own.
+     */
+    private final RequestCoalescer coalescer = new RequestCoalescer(10, 1);
+
+    /**
+     * The service under test, without Segpres nor stamping.
+     */
+    private final SignerService service = new SignerService(null, null, null, coalescer, null, 0, null, null, null, null, null, null, null, new MetricsRegistry());
+
+    @AfterEach
+    void shutdown() {
+        coalescer.shutdown();
+    }
+
+    @Test
+    void doesNotRetryCoalescedJwtFailures() throws Exception {
+        Throwable t = fail(new InvalidKeyException("Invalid secret"));
+
+        SignReply.Builder builder = SignReply.newBuilder();
+
+        assertNull(service.handle(builder, null, t));
+        assertFalse(builder.getRetry());
+        assertEquals("Invalid secret", builder.getMessage());
+    }
+
+    @Test
+    void retriesCoalescedRequestsWithoutResponse() throws Exception {
+        Throwable t = fail(new SocketTimeoutException("Read timed out"));
+
+        SignReply.Builder builder = SignReply.newBuilder();
+
+        assertNull(service.handle(builder, null, t));
+        assertTrue(builder.getRetry());
+        assertEquals("Read timed out", builder.getMessage());
+    }
+
+    @Test
+    void findsTheHashByItsOriginal() throws Exception {
+        HashResponse first = hash("a");
+        HashResponse second = hash("b");
+
+        List<HashResponse> hashes = Arrays.asList(second, first); // reordered
+
+        assertSame(first, SignerService.find(hashes, "a", 0));
+        assertSame(second, SignerService.find(hashes, "b", 1));
+    }
+
+    @Test
+    void findsTheHashByItsPositionWithoutOriginals() throws Exception {
+        HashResponse first = hash(null);
+        HashResponse second = hash(null);
+
+        assertSame(second, SignerService.find(Arrays.asList(first, second), "b", 1));
+    }
+
+    @Test
+    void doesNotFindForeignHashesByPosition() {
+        List<HashResponse> hashes = Arrays.asList(hash("a"), hash("c"));
+
+        assertThrows(SignException.class, () -> SignerService.find(hashes, "b", 1));
+    }
+
+    /**
+     * Creates a hash response.
+     * @param original The original hash (null if not returned)
+     * @return The hash response
+     */
+    private static HashResponse hash(String original) {
+        HashResponse hash = new HashResponse();
+        hash.setHashOriginal(original);
+        hash.setContent("content");
+
+        return hash;
+    }
+
+    /**
+     * Submits a hash whose coalesced sender fails, as the unattended signatures do when the JWT
+     * cannot be generated.
+     * @param cause The error of the sender
+     * @return The error completing the hash future
+     * @throws Exception if the future did not complete
+     */
+    private Throwable fail(Exception cause) throws Exception {
+        CompletableFuture<RequestCoalescer.Coalesced> future = coalescer.submit("0123456785", "hash", contents -> {
+            throw new CompletionException(cause);
+        });
+
+        return future.handle((coalesced, t) -> t).get(10, TimeUnit.SECONDS);
+    }
+}